@@ -1,5 +1,12 @@
 package org.blockartistry.common.chunkio;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.blockartistry.world.chunk.storage.RegionFile;
+import org.blockartistry.world.chunk.storage.RegionFileCache;
 import org.blockartistry.world.gen.ChunkProviderServer;
 
 import net.minecraft.world.World;
@@ -14,6 +21,13 @@ public class ChunkIOExecutor {
     public static final int BASE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 3);
     public static final int PLAYERS_PER_THREAD = 10;
 
+    // Loads queued during a tick are handed to the region cache together so
+    // their chunks are read in bulk rather than one at a time by the IO
+    // threads. A player logging in or crossing into new terrain queues a
+    // few hundred at once. Coordinates are packed as x << 32 | z.
+    private static final int PRELOAD_MIN_CHUNKS = 4;
+    private static final Map<String, List<Long>> queuedThisTick = new HashMap<String, List<Long>>();
+
     private static final AsynchronousExecutor<QueuedChunk, Chunk, Runnable, RuntimeException> instance = new AsynchronousExecutor<QueuedChunk, net.minecraft.world.chunk.Chunk, Runnable, RuntimeException>(new ChunkIOProvider(), BASE_THREADS);
 
     public static Chunk syncChunkLoad(World world, AnvilChunkLoader loader, ChunkProviderServer provider, int x, int z) {
@@ -21,9 +35,43 @@ public class ChunkIOExecutor {
     }
 
     public static void queueChunkLoad(World world, AnvilChunkLoader loader, ChunkProviderServer provider, int x, int z, Runnable runnable) {
+        // Get the read going while the load waits for a chunk IO thread
+        if (RegionFile.USE_ASYNC_READS)
+            RegionFileCache.prefetchChunk(loader.chunkSaveLocation.getPath(), x, z);
+        queuePreload(loader.chunkSaveLocation.getPath(), x, z);
         instance.add(new QueuedChunk(x, z, loader, world, provider), runnable);
     }
 
+    private static void queuePreload(String saveDir, int x, int z) {
+        synchronized (queuedThisTick) {
+            List<Long> chunks = queuedThisTick.get(saveDir);
+            if (chunks == null) {
+                chunks = new ArrayList<Long>();
+                queuedThisTick.put(saveDir, chunks);
+            }
+            chunks.add(((long) x << 32) | (z & 0xFFFFFFFFL));
+        }
+    }
+
+    private static void preloadQueued() {
+        synchronized (queuedThisTick) {
+            for (Map.Entry<String, List<Long>> entry : queuedThisTick.entrySet()) {
+                final List<Long> chunks = entry.getValue();
+                if (chunks.size() < PRELOAD_MIN_CHUNKS)
+                    continue;
+                final int[] x = new int[chunks.size()];
+                final int[] z = new int[chunks.size()];
+                for (int i = 0; i < x.length; i++) {
+                    final long packed = chunks.get(i);
+                    x[i] = (int) (packed >> 32);
+                    z[i] = (int) packed;
+                }
+                RegionFileCache.preloadChunks(entry.getKey(), x, z);
+            }
+            queuedThisTick.clear();
+        }
+    }
+
     // Abuses the fact that hashCode and equals for QueuedChunk only use world and coords
     public static void dropQueuedChunkLoad(World world, int x, int z, Runnable runnable) {
         instance.drop(new QueuedChunk(x, z, null, world, null), runnable);
@@ -35,6 +83,7 @@ public class ChunkIOExecutor {
     }
 
     public static void tick() {
+        preloadQueued();
         instance.finishActive();
     }
 }
\ No newline at end of file
@@ -74,21 +74,102 @@ public class Transformer implements IClassTransformer {
 				"world.chunk.storage.RegionFileCache$RegionFileEviction");
 		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$RegionFileKey",
 				"world.chunk.storage.RegionFileCache$RegionFileKey");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$RegionCompactor",
+				"world.chunk.storage.RegionFileCache$RegionCompactor");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$RegionSnapshot",
+				"world.chunk.storage.RegionFileCache$RegionSnapshot");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$EvictedSnapshot",
+				"world.chunk.storage.RegionFileCache$EvictedSnapshot");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$DictionaryTrainer",
+				"world.chunk.storage.RegionFileCache$DictionaryTrainer");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$CachedRegionSource",
+				"world.chunk.storage.RegionFileCache$CachedRegionSource");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$RegionScrub",
+				"world.chunk.storage.RegionFileCache$RegionScrub");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$StorageStats",
+				"world.chunk.storage.RegionFileCache$StorageStats");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$Preloaded",
+				"world.chunk.storage.RegionFileCache$Preloaded");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$PreloadRelease",
+				"world.chunk.storage.RegionFileCache$PreloadRelease");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileCache$ChunkPreload",
+				"world.chunk.storage.RegionFileCache$ChunkPreload");
 
 		targets.put("net.minecraft.world.chunk.storage.RegionFile", "world.chunk.storage.RegionFile");
+		targets.put("net.minecraft.world.chunk.storage.RegionFile$Relocation",
+				"world.chunk.storage.RegionFile$Relocation");
+		targets.put("net.minecraft.world.chunk.storage.SectorAllocator", "world.chunk.storage.SectorAllocator");
 
 		targets.put("net.minecraft.world.chunk.storage.ChunkBuffer", "world.chunk.storage.ChunkBuffer");
 		targets.put("net.minecraft.world.chunk.storage.ChunkOutputStream", "world.chunk.storage.ChunkOutputStream");
 		targets.put("net.minecraft.world.chunk.storage.ChunkInputStream", "world.chunk.storage.ChunkInputStream");
+		targets.put("net.minecraft.world.chunk.storage.ChunkStreamCodec", "world.chunk.storage.ChunkStreamCodec");
+		targets.put("net.minecraft.world.chunk.storage.ChunkWriteBatch", "world.chunk.storage.ChunkWriteBatch");
+		targets.put("net.minecraft.world.chunk.storage.ChunkDictionary", "world.chunk.storage.ChunkDictionary");
+		targets.put("net.minecraft.world.chunk.storage.ChunkReadAhead", "world.chunk.storage.ChunkReadAhead");
+		targets.put("net.minecraft.world.chunk.storage.ChunkReadAhead$Fetch",
+				"world.chunk.storage.ChunkReadAhead$Fetch");
+		targets.put("net.minecraft.world.chunk.storage.ChunkSectionWriter", "world.chunk.storage.ChunkSectionWriter");
+		targets.put("net.minecraft.world.chunk.storage.ChunkSectionWriter$Blocks",
+				"world.chunk.storage.ChunkSectionWriter$Blocks");
+		targets.put("net.minecraft.world.chunk.storage.SectionedInflaterInputStream",
+				"world.chunk.storage.SectionedInflaterInputStream");
+		targets.put("net.minecraft.world.chunk.storage.DirectBufferPool", "world.chunk.storage.DirectBufferPool");
+		targets.put("net.minecraft.world.chunk.storage.ChunkAsyncReader", "world.chunk.storage.ChunkAsyncReader");
+		targets.put("net.minecraft.world.chunk.storage.ChunkAsyncReader$Read",
+				"world.chunk.storage.ChunkAsyncReader$Read");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter", "world.chunk.storage.RegionFileConverter");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$Direction",
+				"world.chunk.storage.RegionFileConverter$Direction");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$Report",
+				"world.chunk.storage.RegionFileConverter$Report");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$Conversion",
+				"world.chunk.storage.RegionFileConverter$Conversion");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$Worker",
+				"world.chunk.storage.RegionFileConverter$Worker");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$Workers",
+				"world.chunk.storage.RegionFileConverter$Workers");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$VanillaRegionFile",
+				"world.chunk.storage.RegionFileConverter$VanillaRegionFile");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$RegionJob",
+				"world.chunk.storage.RegionFileConverter$RegionJob");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$ImportJob",
+				"world.chunk.storage.RegionFileConverter$ImportJob");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$ExportJob",
+				"world.chunk.storage.RegionFileConverter$ExportJob");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$ChunkTask",
+				"world.chunk.storage.RegionFileConverter$ChunkTask");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$RegionTask",
+				"world.chunk.storage.RegionFileConverter$RegionTask");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$ConversionTask",
+				"world.chunk.storage.RegionFileConverter$ConversionTask");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileConverter$RegionFilter",
+				"world.chunk.storage.RegionFileConverter$RegionFilter");
+		targets.put("net.minecraft.world.chunk.storage.RegionScrubber", "world.chunk.storage.RegionScrubber");
+		targets.put("net.minecraft.world.chunk.storage.RegionScrubber$Report",
+				"world.chunk.storage.RegionScrubber$Report");
+		targets.put("net.minecraft.world.chunk.storage.RegionScrubber$RegionSource",
+				"world.chunk.storage.RegionScrubber$RegionSource");
+		targets.put("net.minecraft.world.chunk.storage.RegionScrubber$OfflineSource",
+				"world.chunk.storage.RegionScrubber$OfflineSource");
+		targets.put("net.minecraft.world.chunk.storage.RegionScrubber$RegionFilter",
+				"world.chunk.storage.RegionScrubber$RegionFilter");
+		targets.put("net.minecraft.world.chunk.storage.RegionScrubber$ScrubTask",
+				"world.chunk.storage.RegionScrubber$ScrubTask");
+		targets.put("net.minecraft.world.chunk.storage.ChunkStreamCache", "world.chunk.storage.ChunkStreamCache");
+		targets.put("net.minecraft.world.chunk.storage.RegionFileStats", "world.chunk.storage.RegionFileStats");
+		targets.put("net.minecraft.world.chunk.storage.LatencyHistogram", "world.chunk.storage.LatencyHistogram");
+		targets.put("net.minecraft.world.chunk.storage.RegionStorageMXBean",
+				"world.chunk.storage.RegionStorageMXBean");
 
 		targets.put("net.minecraft.world.chunk.storage.AnvilChunkLoader", "world.chunk.storage.AnvilChunkLoader");
-		targets.put("net.minecraft.world.chunk.storage.AnvilChunkLoader$ChunkFlush",
-				"world.chunk.storage.AnvilChunkLoader$ChunkFlush");
 		targets.put("net.minecraft.world.chunk.storage.AnvilChunkLoader$WriteChunkStream",
 				"world.chunk.storage.AnvilChunkLoader$WriteChunkStream");
 
 		targets.put("net.minecraft.world.chunk.storage.AttachableByteArrayInputStream",
 				"world.chunk.storage.AttachableByteArrayInputStream");
+		targets.put("net.minecraft.world.chunk.storage.AttachableByteBufferInputStream",
+				"world.chunk.storage.AttachableByteBufferInputStream");
 
 		targets.put("net.minecraft.world.storage.ThreadedFileIOBase", "world.storage.ThreadedFileIOBase");
 		targets.put("net.minecraft.world.storage.ThreadedFileIOBase$WrapperIThreadedFileIO",
@@ -126,15 +207,25 @@ public class Transformer implements IClassTransformer {
 		targets.put("aqj$RegionFileLoader", "world.chunk.storage.RegionFileCache$RegionFileLoader");
 		targets.put("aqj$RegionFileEviction", "world.chunk.storage.RegionFileCache$RegionFileEviction");
 		targets.put("aqj$RegionFileKey", "world.chunk.storage.RegionFileCache$RegionFileKey");
+		targets.put("aqj$RegionCompactor", "world.chunk.storage.RegionFileCache$RegionCompactor");
+		targets.put("aqj$RegionSnapshot", "world.chunk.storage.RegionFileCache$RegionSnapshot");
+		targets.put("aqj$EvictedSnapshot", "world.chunk.storage.RegionFileCache$EvictedSnapshot");
+		targets.put("aqj$DictionaryTrainer", "world.chunk.storage.RegionFileCache$DictionaryTrainer");
+		targets.put("aqj$CachedRegionSource", "world.chunk.storage.RegionFileCache$CachedRegionSource");
+		targets.put("aqj$RegionScrub", "world.chunk.storage.RegionFileCache$RegionScrub");
+		targets.put("aqj$StorageStats", "world.chunk.storage.RegionFileCache$StorageStats");
+		targets.put("aqj$Preloaded", "world.chunk.storage.RegionFileCache$Preloaded");
+		targets.put("aqj$PreloadRelease", "world.chunk.storage.RegionFileCache$PreloadRelease");
+		targets.put("aqj$ChunkPreload", "world.chunk.storage.RegionFileCache$ChunkPreload");
 
 		targets.put("aqh", "world.chunk.storage.RegionFile");
+		targets.put("aqh$Relocation", "world.chunk.storage.RegionFile$Relocation");
 
 		targets.put("azr", "world.storage.ThreadedFileIOBase");
 		targets.put("azr$WrapperIThreadedFileIO", "world.storage.ThreadedFileIOBase$WrapperIThreadedFileIO");
 		targets.put("azr$CompletionCallback", "world.storage.ThreadedFileIOBase$CompletionCallback");
 
 		targets.put("aqk", "world.chunk.storage.AnvilChunkLoader");
-		targets.put("aqk$ChunkFlush", "world.chunk.storage.AnvilChunkLoader$ChunkFlush");
 		targets.put("aqk$WriteChunkStream", "world.chunk.storage.AnvilChunkLoader$WriteChunkStream");
 
 		targets.put("ms", "world.gen.ChunkProviderServer");
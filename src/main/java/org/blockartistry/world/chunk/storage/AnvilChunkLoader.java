@@ -28,8 +28,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 
 import net.minecraft.block.Block;
@@ -57,9 +61,6 @@ import org.blockartistry.world.storage.ThreadedFileIOBase;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
 
 /**
  * Implementation of a new AnvilChunkLoader. The improvements that have been
@@ -80,11 +81,58 @@ import com.google.common.cache.RemovalNotification;
  * reading the lock file every time a chunk save came through. Mechanism should
  * be changed to use a file as a semaphore by obtaining an exclusive lock when
  * the world loads and croak at that time if there is contention.
+ * 
+ * + Optionally writes chunks as sectioned streams with each section in a
+ * block of its own. Sections that haven't changed since the last save are
+ * carried over still compressed rather than being deflated again.
+ * 
+ * + The codec chunks are saved with can be picked at startup through the
+ * jiffy.chunkCodec system property, e.g. -Djiffy.chunkCodec=DEFLATE_FAST.
  *
  */
 public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO {
 
 	private static final Logger logger = LogManager.getLogger("AnvilChunkLoader");
+
+	// Write chunks as sectioned streams. Streams written this way can't be
+	// read by versions that predate the format.
+	private static final boolean USE_SECTIONED_STREAMS = false;
+
+	// Codec named by the jiffy.chunkCodec system property. Null if it isn't
+	// set, in which case the region picks the codec as usual. Naming the
+	// sectioned codec turns on sectioned streams.
+	private static final String CODEC_PROPERTY = "jiffy.chunkCodec";
+	private static final ChunkStreamCodec SAVE_CODEC = saveCodec();
+	private static final boolean SECTIONED = USE_SECTIONED_STREAMS
+			|| SAVE_CODEC == ChunkStreamCodec.DEFLATE_SECTIONED;
+
+	// Chunks of the same region that are waiting to be saved go out
+	// together as a ChunkWriteBatch: the region is locked once, sectors are
+	// allocated in one pass and the streams are written in file order.
+	// Sectioned streams are always written one at a time.
+	private static final boolean USE_BATCHED_WRITES = true;
+	private static final int WRITE_BATCH_MAX_CHUNKS = 64;
+
+	private static ChunkStreamCodec saveCodec() {
+		final String name = System.getProperty(CODEC_PROPERTY);
+		if (name == null)
+			return null;
+		try {
+			final ChunkStreamCodec codec = ChunkStreamCodec.valueOf(name.trim().toUpperCase());
+			logger.info("Saving chunks with the " + codec + " codec");
+			return codec;
+		} catch (final IllegalArgumentException ex) {
+			logger.warn("Unknown chunk codec '" + name + "' for " + CODEC_PROPERTY + "; using the default");
+			return null;
+		}
+	}
+
+	// NBT tag types, and the size of the type and empty name that
+	// CompressedStreamTools puts in front of a root compound.
+	private static final int NBT_END = 0;
+	private static final int NBT_LIST = 9;
+	private static final int NBT_COMPOUND = 10;
+	private static final int NBT_ROOT_HEADER_SIZE = 3;
 	public final File chunkSaveLocation;
 
 	// Interned version of the save location. This will be exploited by
@@ -92,23 +140,14 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO {
 	// dynamically change while running.
 	protected final String saveDir;
 
-	private final class ChunkFlush implements RemovalListener<ChunkCoordIntPair, NBTTagCompound> {
-		@Override
-		public void onRemoval(final RemovalNotification<ChunkCoordIntPair, NBTTagCompound> notification) {
-			try {
-				// Only flush the entry if it was invalidated. Any entry could
-				// be updated prior to it being written by an IO thread so we
-				// want to avoid unnecessary writes.
-				if (notification.getCause() == RemovalCause.EXPLICIT)
-					AnvilChunkLoader.this.writeChunkNBTTags(notification.getKey(), notification.getValue());
-			} catch (final Exception e) {
-				e.printStackTrace();
-			}
-		}
-	}
+	// Chunks waiting on an IO thread. Any entry could be updated prior to
+	// it being written so the NBT is only taken when the write happens.
+	private final Cache<ChunkCoordIntPair, NBTTagCompound> pendingIO = CacheBuilder.newBuilder().build();
 
-	private final Cache<ChunkCoordIntPair, NBTTagCompound> pendingIO = CacheBuilder.newBuilder()
-			.removalListener(new ChunkFlush()).build();
+	// Chunks taken from pendingIO for a batch that hasn't been committed
+	// yet. Loads look here as well so they don't read the old copy from
+	// disk in the meantime.
+	private final ConcurrentMap<ChunkCoordIntPair, NBTTagCompound> batchedIO = new ConcurrentHashMap<ChunkCoordIntPair, NBTTagCompound>();
 
 	public AnvilChunkLoader(final File saveLocation) {
 		this.chunkSaveLocation = saveLocation;
@@ -117,7 +156,7 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO {
 
 	public boolean chunkExists(final World world, final int chunkX, final int chunkZ) throws Exception {
 		final ChunkCoordIntPair coords = new ChunkCoordIntPair(chunkX, chunkZ);
-		if (pendingIO.getIfPresent(coords) != null)
+		if (pendingIO.getIfPresent(coords) != null || batchedIO.containsKey(coords))
 			return true;
 		return RegionFileCache.createOrLoadRegionFile(saveDir, chunkX, chunkZ).chunkExists(chunkX & 31, chunkZ & 31);
 	}
@@ -142,7 +181,9 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO {
 			throws IOException, ExecutionException {
 		final ChunkCoordIntPair coords = new ChunkCoordIntPair(chunkX, chunkZ);
 		NBTTagCompound nbt = pendingIO.getIfPresent(coords);
-		
+		if (nbt == null)
+			nbt = batchedIO.get(coords);
+
 		if (nbt == null) {
 			DataInputStream stream = null;
 
@@ -217,10 +258,17 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO {
 
 		@Override
 		public Void call() throws Exception {
-			// A simple invalidate will cause the eviction routine
-			// to kick in for the entry. It is what actually does the
-			// write to disk.
-			AnvilChunkLoader.this.pendingIO.invalidate(chunkCoords);
+			try {
+				if (USE_BATCHED_WRITES && !SECTIONED) {
+					AnvilChunkLoader.this.writeRegionBatch(this.chunkCoords);
+				} else {
+					final NBTTagCompound nbt = AnvilChunkLoader.this.pendingIO.asMap().remove(this.chunkCoords);
+					if (nbt != null)
+						AnvilChunkLoader.this.writeChunkNBTTags(this.chunkCoords, nbt);
+				}
+			} catch (final Exception e) {
+				e.printStackTrace();
+			}
 			return null;
 		}
 
@@ -253,13 +301,123 @@ public class AnvilChunkLoader implements IChunkLoader, IThreadedFileIO {
 		return false;
 	}
 
-	private void writeChunkNBTTags(final ChunkCoordIntPair coords, final NBTTagCompound nbt) throws Exception {
-		final DataOutputStream stream = RegionFileCache.getChunkOutputStream(saveDir, coords.chunkXPos,
+	// Writes the chunk along with every other chunk of its region that is
+	// waiting to be saved, up to the batch limit, as one batch. Later tasks
+	// for chunks that went out with the batch find nothing to do.
+	private void writeRegionBatch(final ChunkCoordIntPair coords) throws Exception {
+		final ConcurrentMap<ChunkCoordIntPair, NBTTagCompound> pending = this.pendingIO.asMap();
+		if (!pending.containsKey(coords))
+			return;
+
+		final int regionX = coords.chunkXPos >> 5;
+		final int regionZ = coords.chunkZPos >> 5;
+		final ChunkWriteBatch batch = RegionFileCache.getChunkWriteBatch(saveDir, coords.chunkXPos,
 				coords.chunkZPos);
+		final List<ChunkCoordIntPair> keys = new ArrayList<ChunkCoordIntPair>();
+		final List<NBTTagCompound> tags = new ArrayList<NBTTagCompound>();
+		try {
+			for (final ChunkCoordIntPair key : pending.keySet()) {
+				if (keys.size() >= WRITE_BATCH_MAX_CHUNKS)
+					break;
+				if (key.chunkXPos >> 5 != regionX || key.chunkZPos >> 5 != regionZ)
+					continue;
+
+				// Moved over to batchedIO before it leaves pendingIO so a
+				// load always finds it in one or the other. If it was saved
+				// again in the meantime the newer copy has a task of its own.
+				final NBTTagCompound nbt = pending.get(key);
+				if (nbt == null)
+					continue;
+				this.batchedIO.put(key, nbt);
+				if (!pending.remove(key, nbt)) {
+					this.batchedIO.remove(key, nbt);
+					continue;
+				}
+				keys.add(key);
+				tags.add(nbt);
+
+				final DataOutputStream stream = SAVE_CODEC == null ? batch.getChunkDataOutputStream(
+						key.chunkXPos & 31, key.chunkZPos & 31) : batch.getChunkDataOutputStream(key.chunkXPos & 31,
+						key.chunkZPos & 31, SAVE_CODEC);
+				CompressedStreamTools.write(nbt, stream);
+				stream.close();
+			}
+			batch.commit();
+		} finally {
+			for (int i = 0; i < keys.size(); i++)
+				this.batchedIO.remove(keys.get(i), tags.get(i));
+		}
+	}
+
+	private void writeChunkNBTTags(final ChunkCoordIntPair coords, final NBTTagCompound nbt) throws Exception {
+		if (SECTIONED) {
+			writeSectionedChunkNBTTags(coords, nbt);
+			return;
+		}
+
+		final DataOutputStream stream = SAVE_CODEC == null ? RegionFileCache.getChunkOutputStream(saveDir,
+				coords.chunkXPos, coords.chunkZPos) : RegionFileCache.getChunkOutputStream(saveDir,
+				coords.chunkXPos, coords.chunkZPos, SAVE_CODEC);
 		CompressedStreamTools.write(nbt, stream);
 		stream.close();
 	}
 
+	// Writes the chunk with the part of Level up to the section list in one
+	// block, each section in a block of its own, and the closing end tags in
+	// the last. The NBT is the same as CompressedStreamTools would write it
+	// with Level last in the root and Sections last in Level.
+	private void writeSectionedChunkNBTTags(final ChunkCoordIntPair coords, final NBTTagCompound nbt)
+			throws Exception {
+		final NBTTagCompound level = nbt.getCompoundTag("Level");
+		final NBTTagList sections = level.getTagList("Sections", NBT_COMPOUND);
+
+		final ChunkSectionWriter stream = RegionFileCache.getChunkSectionWriter(saveDir, coords.chunkXPos,
+				coords.chunkZPos);
+		stream.writeByte(NBT_COMPOUND);
+		stream.writeUTF("");
+		writeEntries(without(nbt, "Level"), stream);
+		stream.writeByte(NBT_COMPOUND);
+		stream.writeUTF("Level");
+		writeEntries(without(level, "Sections"), stream);
+		stream.writeByte(NBT_LIST);
+		stream.writeUTF("Sections");
+		stream.writeByte(NBT_COMPOUND);
+		stream.writeInt(sections.tagCount());
+		stream.endBlock();
+
+		for (int i = 0; i < sections.tagCount(); i++) {
+			// The entries and end tag of the section compound
+			stream.skip(NBT_ROOT_HEADER_SIZE);
+			CompressedStreamTools.write(sections.getCompoundTagAt(i), stream);
+			stream.endBlock();
+		}
+
+		stream.writeByte(NBT_END);
+		stream.writeByte(NBT_END);
+		stream.close();
+	}
+
+	// Shallow copy of a compound less one of its tags. The original may be
+	// read from the pending IO cache while it is being written so it is
+	// left alone.
+	@SuppressWarnings("unchecked")
+	private static NBTTagCompound without(final NBTTagCompound nbt, final String key) {
+		final NBTTagCompound copy = new NBTTagCompound();
+		for (final String name : (Set<String>) nbt.func_150296_c())
+			if (!name.equals(key))
+				copy.setTag(name, nbt.getTag(name));
+		return copy;
+	}
+
+	// Writes just the entries of a compound. CompressedStreamTools writes it
+	// as a root tag, so the type and name in front and the end tag are
+	// dropped.
+	private static void writeEntries(final NBTTagCompound nbt, final ChunkSectionWriter stream) throws IOException {
+		stream.skip(NBT_ROOT_HEADER_SIZE);
+		CompressedStreamTools.write(nbt, stream);
+		stream.trim(1);
+	}
+
 	public void saveExtraChunkData(final World world, final Chunk chunk) {
 	}
 
@@ -0,0 +1,76 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over a ByteBuffer that provides a mechanism to attach a buffer.
+ * Used to read chunk streams directly out of a mapped window of a RegionFile
+ * without first copying the sectors to the heap.
+ */
+public class AttachableByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buf;
+
+	public AttachableByteBufferInputStream() {
+		this.buf = ByteBuffer.allocate(0);
+	}
+
+	/**
+	 * Attaches the buffer. The stream will read from the current position of
+	 * the buffer up to its limit. The caller should hand over a duplicate so
+	 * that the position/limit changes don't leak.
+	 */
+	public void attach(final ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int read() {
+		return this.buf.hasRemaining() ? this.buf.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, int len) {
+		if (!this.buf.hasRemaining())
+			return -1;
+		len = Math.min(len, this.buf.remaining());
+		this.buf.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		n = Math.max(0, Math.min(n, this.buf.remaining()));
+		this.buf.position(this.buf.position() + (int) n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return this.buf.remaining();
+	}
+}
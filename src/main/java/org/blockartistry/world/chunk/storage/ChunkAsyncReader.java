@@ -0,0 +1,299 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Read engine for chunk loads built on AsynchronousFileChannel. A chunk load
+ * that is queued has its stream read started right away, and the chunk IO
+ * thread that later decodes it picks up the finished read rather than
+ * blocking on one of its own:
+ * 
+ * + The number of reads in flight is set by the engine rather than by the
+ * number of chunk IO threads. A handful of decode threads can keep dozens of
+ * reads going.
+ * 
+ * + Reads land in buffers from the DirectBufferPool. The buffer is handed
+ * over to the ChunkInputStream that bakes the stream.
+ * 
+ * + A read is dropped if its chunk is written or moved while it is pending.
+ * The region file does this while it holds the chunk write lock, the same as
+ * for ChunkReadAhead.
+ * 
+ * + Reads that nobody picks up, such as for a chunk load that was cancelled,
+ * expire and give back their buffer.
+ * 
+ * + Issue, hit and drop counts are kept for tuning.
+ */
+public final class ChunkAsyncReader {
+
+	// Reads that can be in flight or waiting to be picked up. Each one holds
+	// a buffer the size of its stream.
+	private final static int MAX_READS = 64;
+
+	// Threads servicing the channels. Outside of Windows the JDK carries out
+	// each read as a blocking positional read on one of these threads, so
+	// this is the number of reads the disk sees at once.
+	private final static int IO_THREADS = 16;
+
+	// Finished reads that haven't been picked up in this long are dropped
+	private final static long EXPIRATION_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private static final ExecutorService ioThreads = Executors.newFixedThreadPool(IO_THREADS,
+			new ThreadFactoryBuilder().setNameFormat("Chunk Async Read %d").setDaemon(true).build());
+
+	private static final Semaphore permits = new Semaphore(MAX_READS);
+	private static final ConcurrentHashMap<Long, Read> reads = new ConcurrentHashMap<Long, Read>();
+	private static final AtomicLong issued = new AtomicLong();
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong drops = new AtomicLong();
+
+	private static final class Read implements CompletionHandler<Integer, Void> {
+
+		private final AsynchronousFileChannel channel;
+		private final ByteBuffer buffer;
+		private final long position;
+		private long finished;
+		private boolean done;
+		private boolean failed;
+		private boolean dropped;
+
+		public Read(final AsynchronousFileChannel channel, final ByteBuffer buffer, final long position) {
+			this.channel = channel;
+			this.buffer = buffer;
+			this.position = position;
+		}
+
+		public void start() {
+			this.channel.read(this.buffer, this.position + this.buffer.position(), null, this);
+		}
+
+		@Override
+		public void completed(final Integer result, final Void attachment) {
+			// Short reads are continued where they left off
+			if (result > 0 && this.buffer.hasRemaining()) {
+				try {
+					start();
+					return;
+				} catch (final Exception ex) {
+					failed(ex, attachment);
+					return;
+				}
+			}
+			finish(result >= 0 && !this.buffer.hasRemaining());
+		}
+
+		@Override
+		public void failed(final Throwable ex, final Void attachment) {
+			finish(false);
+		}
+
+		private synchronized void finish(final boolean good) {
+			this.done = true;
+			this.failed = !good;
+			this.finished = System.nanoTime();
+			if (this.dropped)
+				release();
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the read to finish. The buffer belongs to the caller
+		 * from here on. Returns null if the read failed.
+		 */
+		public synchronized ByteBuffer await() {
+			boolean interrupted = false;
+			while (!this.done)
+				try {
+					wait();
+				} catch (final InterruptedException ex) {
+					interrupted = true;
+				}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			permits.release();
+			if (this.failed) {
+				DirectBufferPool.release(this.buffer);
+				return null;
+			}
+			this.buffer.flip();
+			return this.buffer;
+		}
+
+		/**
+		 * Drops the read. The buffer is released now, or when the read
+		 * finishes if it is still in flight.
+		 */
+		public synchronized void drop() {
+			this.dropped = true;
+			if (this.done)
+				release();
+		}
+
+		public synchronized boolean expired(final long now) {
+			return this.done && now - this.finished > EXPIRATION_NANOS;
+		}
+
+		private void release() {
+			DirectBufferPool.release(this.buffer);
+			permits.release();
+		}
+	}
+
+	private ChunkAsyncReader() {
+	}
+
+	private static Long key(final int regionId, final int streamId) {
+		return Long.valueOf(((long) regionId << 32) | streamId);
+	}
+
+	/**
+	 * Opens a channel on the region file that is serviced by the engine's
+	 * threads.
+	 */
+	static AsynchronousFileChannel open(final File file) throws IOException {
+		return AsynchronousFileChannel.open(file.toPath(), EnumSet.of(StandardOpenOption.READ), ioThreads);
+	}
+
+	/**
+	 * Starts reading the sectors of a stream. Nothing is done if a read for
+	 * the stream is already pending or the engine is at its limit. Called by
+	 * the region file while it holds the chunk read lock.
+	 */
+	static void schedule(final int regionId, final int streamId, final AsynchronousFileChannel channel,
+			final long position, final int length) {
+		final Long key = key(regionId, streamId);
+		if (reads.containsKey(key))
+			return;
+		if (!permits.tryAcquire()) {
+			expire();
+			if (!permits.tryAcquire())
+				return;
+		}
+
+		final Read read = new Read(channel, DirectBufferPool.acquire(length), position);
+		read.buffer.limit(length);
+		if (reads.putIfAbsent(key, read) != null) {
+			DirectBufferPool.release(read.buffer);
+			permits.release();
+			return;
+		}
+
+		issued.incrementAndGet();
+		try {
+			read.start();
+		} catch (final Exception ex) {
+			// Channel was closed underneath us
+			read.failed(ex, null);
+		}
+	}
+
+	/**
+	 * Removes the pending read of a stream and waits for it to finish.
+	 * Returns the sectors read, or null if there was no read or it failed.
+	 * Called by the region file while it holds the chunk read lock.
+	 */
+	static ByteBuffer take(final int regionId, final int streamId) {
+		final Read read = reads.remove(key(regionId, streamId));
+		if (read == null)
+			return null;
+		final ByteBuffer data = read.await();
+		if (data != null)
+			hits.incrementAndGet();
+		return data;
+	}
+
+	/**
+	 * Drops the pending read of a stream that is being written or moved.
+	 * Called by the region file while it holds the chunk write lock.
+	 */
+	static void invalidate(final int regionId, final int streamId) {
+		final Read read = reads.remove(key(regionId, streamId));
+		if (read != null) {
+			read.drop();
+			drops.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops all pending reads of a region that is being closed.
+	 */
+	static void invalidate(final int regionId) {
+		final Iterator<Map.Entry<Long, Read>> it = reads.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<Long, Read> entry = it.next();
+			if ((int) (entry.getKey().longValue() >>> 32) == regionId) {
+				it.remove();
+				entry.getValue().drop();
+				drops.incrementAndGet();
+			}
+		}
+	}
+
+	private static void expire() {
+		final long now = System.nanoTime();
+		final Iterator<Read> it = reads.values().iterator();
+		while (it.hasNext()) {
+			final Read read = it.next();
+			if (read.expired(now) && reads.values().remove(read)) {
+				read.drop();
+				drops.incrementAndGet();
+			}
+		}
+	}
+
+	public static long issued() {
+		return issued.get();
+	}
+
+	public static long hits() {
+		return hits.get();
+	}
+
+	public static long drops() {
+		return drops.get();
+	}
+
+	public static int pending() {
+		return reads.size();
+	}
+}
@@ -23,8 +23,13 @@
 
 package org.blockartistry.world.chunk.storage;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
 
 /**
  * Replaces Minecraft ChunkBuffer. It improves on Minecraft's implementation in
@@ -39,78 +44,234 @@ import java.io.OutputStream;
  * 
  * + Not based on ByteArrayOutputStream; removed synchronized methods because
  * the buffer is only access by a single thread during writes.
+ * 
+ * + A CRC32 of the stream is calculated and recorded in the header so that
+ * damaged streams can be detected on read.
+ * 
+ * + Streams that grow past what a RegionFile can hold are spooled to a
+ * sidecar file as they are written rather than growing the buffer without
+ * bound.
+ * 
+ * + The stream is staged in a buffer from the DirectBufferPool. A direct
+ * buffer goes to the FileChannel as is, without the JDK copying it through a
+ * temporary buffer of its own.
  */
 public class ChunkBuffer extends OutputStream {
 
 	private final static int DEFAULT_BUFFER_SIZE = RegionFile.SECTOR_SIZE * 8;
 
 	private RegionFile file;
+	private ChunkStreamCodec codec;
 	private int chunkX;
 	private int chunkZ;
-	private byte[] buf;
-	private int count;
+	private ByteBuffer buf;
+	private final CRC32 crc = new CRC32();
 
-	public ChunkBuffer(final int x, final int z, final RegionFile file) {
+	// Spool for oversized streams. Once the stream is spooling the buffer
+	// is used to stage writes to the file.
+	private File spoolFile;
+	private FileChannel spool;
+	private long spooled;
+
+	public ChunkBuffer(final int x, final int z, final RegionFile file, final ChunkStreamCodec codec) {
 		this.file = file;
+		this.codec = codec;
 		this.chunkX = x;
 		this.chunkZ = z;
-		this.buf = new byte[DEFAULT_BUFFER_SIZE];
-		this.count = RegionFile.CHUNK_STREAM_HEADER_SIZE;
+		this.buf = DirectBufferPool.acquire(DEFAULT_BUFFER_SIZE);
+		this.buf.position(RegionFile.CHUNK_STREAM_HEADER_SIZE);
 	}
 
 	public void reset() {
 		// Leave space for the header
-		this.count = RegionFile.CHUNK_STREAM_HEADER_SIZE;
+		this.buf.clear();
+		this.buf.position(RegionFile.CHUNK_STREAM_HEADER_SIZE);
+		this.spooled = 0;
+		this.crc.reset();
 	}
 
 	public int size() {
 		// The header is silent
-		return this.count - RegionFile.CHUNK_STREAM_HEADER_SIZE;
+		return (int) (this.spooled + this.buf.position() - RegionFile.CHUNK_STREAM_HEADER_SIZE);
 	}
 
-	private void ensureCapacity(final int minCapacity) {
-		if (minCapacity - this.buf.length > 0) {
-			final byte[] newBuffer = new byte[this.buf.length << 1];
-			System.arraycopy(this.buf, 0, newBuffer, 0, this.count);
+	private void ensureCapacity(final int minCapacity) throws IOException {
+		if (minCapacity - this.buf.capacity() > 0) {
+			// Stop growing once the buffer can hold the largest stream a
+			// region file can take. Anything past that goes to the spool.
+			if (this.spool != null || this.buf.capacity() >= RegionFile.MAX_CHUNK_STREAM_SIZE) {
+				spoolBuffer();
+				return;
+			}
+			final ByteBuffer newBuffer = DirectBufferPool.acquire(Math.max(this.buf.capacity() << 1, minCapacity));
+			this.buf.flip();
+			newBuffer.put(this.buf);
+			DirectBufferPool.release(this.buf);
 			this.buf = newBuffer;
 		}
 	}
 
-	public void write(final int b) {
-		ensureCapacity(this.count + 1);
-		this.buf[this.count++] = (byte) b;
+	private void spoolBuffer() throws IOException {
+		if (this.spool == null) {
+			this.spoolFile = this.file.createSpoolFile();
+			this.spool = FileChannel.open(this.spoolFile.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		this.buf.flip();
+		spoolWrite(this.buf);
+		this.buf.clear();
 	}
 
-	public void write(final byte[] b, final int off, final int len) {
-		ensureCapacity(this.count + len);
-		System.arraycopy(b, off, this.buf, this.count, len);
-		this.count += len;
+	private void spoolWrite(final ByteBuffer data) throws IOException {
+		// The header at the start of the spool is not part of the checksum
+		final int skip = (int) Math.max(0,
+				Math.min(data.remaining(), RegionFile.CHUNK_STREAM_HEADER_SIZE - this.spooled));
+		final ByteBuffer payload = data.duplicate();
+		payload.position(payload.position() + skip);
+		RegionFile.updateChecksum(this.crc, payload);
+		while (data.hasRemaining())
+			this.spooled += this.spool.write(data);
 	}
 
-	public void close() throws IOException {
+	public void write(final int b) throws IOException {
+		ensureCapacity(this.buf.position() + 1);
+		this.buf.put((byte) b);
+	}
+
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		ensureCapacity(this.buf.position() + len);
+		if (len > this.buf.remaining()) {
+			// Larger than the staging buffer; straight to the spool.
+			spoolWrite(ByteBuffer.wrap(b, off, len));
+			return;
+		}
+		this.buf.put(b, off, len);
+	}
+
+	private static void encodeHeader(final ByteBuffer header, final int len, final int checksum,
+			final ChunkStreamCodec codec) {
 		// Encode the stream length
-		final int len = this.count - RegionFile.CHUNK_STREAM_HEADER_SIZE;
-		this.buf[0] = (byte) ((len >>> 24) & 0xFF);
-		this.buf[1] = (byte) ((len >>> 16) & 0xFF);
-		this.buf[2] = (byte) ((len >>> 8) & 0xFF);
-		this.buf[3] = (byte) ((len >>> 0) & 0xFF);
+		header.putInt(0, len);
 		// Encode the time stamp
-		final int stamp = (int)(System.currentTimeMillis() / 1000);
-		this.buf[4] = (byte) ((stamp >>> 24) & 0xFF);
-		this.buf[5] = (byte) ((stamp >>> 16) & 0xFF);
-		this.buf[6] = (byte) ((stamp >>> 8) & 0xFF);
-		this.buf[7] = (byte) ((stamp >>> 0) & 0xFF);
-		
+		header.putInt(4, (int) (System.currentTimeMillis() / 1000));
+		// Encode the checksum
+		header.putInt(RegionFile.CHUNK_STREAM_CHECKSUM_OFFSET, checksum);
+		// Encode the flags and the codec. Pooled buffers come back dirty so
+		// the reserved bytes are cleared along with them.
+		header.putInt(RegionFile.CHUNK_STREAM_FLAGS_OFFSET,
+				(RegionFile.CHUNK_STREAM_FLAG_CHECKSUM << 24) | ((codec.version() & 0xFF) << 16));
+	}
+
+	/**
+	 * Finalizes the stream header without writing the stream to the region
+	 * file. Used when the buffer is handed to the region as part of a batch.
+	 */
+	void seal() {
+		final int count = this.buf.position();
+		this.buf.limit(count).position(RegionFile.CHUNK_STREAM_HEADER_SIZE);
+		RegionFile.updateChecksum(this.crc, this.buf);
+		this.buf.limit(this.buf.capacity()).position(count);
+		encodeHeader(this.buf, count - RegionFile.CHUNK_STREAM_HEADER_SIZE, (int) this.crc.getValue(), this.codec);
+	}
+
+	boolean isSpooling() {
+		return this.spool != null;
+	}
+
+	int chunkX() {
+		return this.chunkX;
+	}
+
+	int chunkZ() {
+		return this.chunkZ;
+	}
+
+	ChunkStreamCodec codec() {
+		return this.codec;
+	}
+
+	/**
+	 * The sealed stream, header included, from position zero to the limit.
+	 */
+	ByteBuffer data() {
+		final ByteBuffer data = this.buf.duplicate();
+		data.flip();
+		return data;
+	}
+
+	int length() {
+		// Includes the header
+		return this.buf.position();
+	}
+
+	public void close() throws IOException {
 		try {
-			this.file.write(this.chunkX, this.chunkZ, this.buf, this.count);
-		} catch(final Exception ex) {
+			commit();
+		} catch (final Exception ex) {
 			ex.printStackTrace();
 		}
-		this.file = null;
 	}
 
-	public ChunkBuffer reset(final int chunkX, final int chunkZ, final RegionFile file) {
+	/**
+	 * Same as close() except that a failure to store the stream is thrown
+	 * to the caller rather than logged.
+	 */
+	void commit() throws Exception {
+		if (this.spool != null) {
+			closeSpool();
+			return;
+		}
+
+		seal();
+
+		try {
+			this.file.write(this.chunkX, this.chunkZ, data(), this.codec);
+		} finally {
+			this.file = null;
+		}
+	}
+
+	private void closeSpool() throws Exception {
+		try {
+			this.buf.flip();
+			spoolWrite(this.buf);
+			this.buf.clear();
+
+			// The header space was reserved at the start of the spool
+			// when the buffer was first written out.
+			final ByteBuffer header = ByteBuffer.allocate(RegionFile.CHUNK_STREAM_HEADER_SIZE);
+			encodeHeader(header, (int) (this.spooled - RegionFile.CHUNK_STREAM_HEADER_SIZE), (int) this.crc.getValue(),
+					this.codec);
+			long position = 0;
+			while (header.hasRemaining())
+				position += this.spool.write(header, position);
+			this.spool.force(true);
+			this.spool.close();
+
+			this.file.writeExternal(this.chunkX, this.chunkZ, this.spoolFile, this.codec);
+		} catch (final Exception ex) {
+			this.spoolFile.delete();
+			throw ex;
+		} finally {
+			this.spool = null;
+			this.spoolFile = null;
+			this.file = null;
+		}
+	}
+
+	/**
+	 * Gives the staging buffer back to the pool. The ChunkBuffer can't be
+	 * used afterwards.
+	 */
+	void release() {
+		DirectBufferPool.release(this.buf);
+		this.buf = null;
+	}
+
+	public ChunkBuffer reset(final int chunkX, final int chunkZ, final RegionFile file,
+			final ChunkStreamCodec codec) {
 		this.file = file;
+		this.codec = codec;
 		this.chunkX = chunkX;
 		this.chunkZ = chunkZ;
 		this.reset();
@@ -0,0 +1,246 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Adler32;
+
+/**
+ * Preset dictionary for deflating chunk streams. The NBT structure and tag
+ * names of a chunk repeat in every stream, and a dictionary primed with them
+ * lets even the start of a stream be encoded as back references.
+ * 
+ * + One dictionary per region directory, trained from that world's own chunk
+ * streams and stored next to the region files.
+ * 
+ * + A dictionary is never replaced once installed. Streams written with it
+ * remain readable for the life of the world.
+ * 
+ * + The dictionary id is the Adler32 of its contents, which is what deflate
+ * records in the stream header. A stream can be checked against the
+ * dictionary before it is inflated.
+ * 
+ * Training is a simplified form of the cover algorithm: sample streams are cut
+ * into segments, each segment is scored by how many samples share its 8 byte
+ * grams, and the best segments are picked greedily until the dictionary is
+ * full. Higher scoring segments go at the end where back references are
+ * shortest.
+ */
+public final class ChunkDictionary {
+
+	// File in the region directory that holds the dictionary
+	public final static String DICTIONARY_FILE = "chunks.mcd2";
+
+	// Deflate can only reach back 32KB so there is no point in more
+	public final static int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	// The NBT boilerplate that repeats between chunks fits in a few KB.
+	// Larger dictionaries gain next to nothing and the deflater has to hash
+	// the whole dictionary for every stream.
+	public final static int DEFAULT_DICTIONARY_SIZE = 8 * 1024;
+
+	private final static int SEGMENT_SIZE = 64;
+	private final static int SEGMENT_STRIDE = SEGMENT_SIZE / 2;
+	private final static int GRAM_SIZE = 8;
+	private final static int TABLE_BITS = 20;
+
+	// Grams have to show up in at least this many samples to count
+	private final static int MIN_GRAM_FREQUENCY = 2;
+
+	private final static ChunkDictionary NONE = new ChunkDictionary(new byte[0]);
+	private final static ConcurrentMap<String, ChunkDictionary> dictionaries = new ConcurrentHashMap<String, ChunkDictionary>();
+
+	private final byte[] bytes;
+	private final int id;
+
+	private ChunkDictionary(final byte[] bytes) {
+		this.bytes = bytes;
+		final Adler32 adler = new Adler32();
+		adler.update(bytes, 0, bytes.length);
+		this.id = (int) adler.getValue();
+	}
+
+	public byte[] bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Adler32 of the dictionary. Matches Inflater.getAdler() when a stream
+	 * written with the dictionary asks for it.
+	 */
+	public int id() {
+		return this.id;
+	}
+
+	/**
+	 * Dictionary installed in the region directory, or null if there isn't
+	 * one. Lookups are cached.
+	 */
+	public static ChunkDictionary forDirectory(final File dir) {
+		final String key = dir.getAbsolutePath();
+		ChunkDictionary dictionary = dictionaries.get(key);
+		if (dictionary == null) {
+			dictionary = NONE;
+			final File file = new File(dir, DICTIONARY_FILE);
+			if (file.exists()) {
+				try {
+					dictionary = new ChunkDictionary(Files.readAllBytes(file.toPath()));
+				} catch (final IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+			final ChunkDictionary current = dictionaries.putIfAbsent(key, dictionary);
+			if (current != null)
+				dictionary = current;
+		}
+		return dictionary == NONE ? null : dictionary;
+	}
+
+	/**
+	 * Writes the dictionary to the region directory. Does nothing and returns
+	 * the existing dictionary if one is already installed.
+	 */
+	public static ChunkDictionary install(final File dir, final byte[] bytes) throws IOException {
+		synchronized (dictionaries) {
+			final ChunkDictionary existing = forDirectory(dir);
+			if (existing != null)
+				return existing;
+
+			final File spool = File.createTempFile("dict", ".tmp", dir);
+			final FileOutputStream out = new FileOutputStream(spool);
+			try {
+				out.write(bytes);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(spool.toPath(), new File(dir, DICTIONARY_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			final ChunkDictionary dictionary = new ChunkDictionary(bytes);
+			dictionaries.put(dir.getAbsolutePath(), dictionary);
+			return dictionary;
+		}
+	}
+
+	private static int gramHash(final byte[] b, final int p) {
+		long v = 0;
+		for (int i = 0; i < GRAM_SIZE; i++)
+			v = (v << 8) | (b[p + i] & 0xFF);
+		return (int) ((v * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+	}
+
+	private static int score(final byte[] sample, final int offset, final int[] frequency) {
+		int score = 0;
+		for (int p = offset; p <= offset + SEGMENT_SIZE - GRAM_SIZE; p++) {
+			final int f = frequency[gramHash(sample, p)];
+			if (f >= MIN_GRAM_FREQUENCY)
+				score += f;
+		}
+		return score;
+	}
+
+	/**
+	 * Builds a dictionary of up to the requested size from uncompressed
+	 * sample streams.
+	 */
+	public static byte[] train(final List<byte[]> samples, final int size) {
+
+		// Count the number of samples each gram shows up in
+		final int[] frequency = new int[1 << TABLE_BITS];
+		final int[] lastSample = new int[1 << TABLE_BITS];
+		int candidates = 0;
+		for (int s = 0; s < samples.size(); s++) {
+			final byte[] sample = samples.get(s);
+			for (int p = 0; p <= sample.length - GRAM_SIZE; p++) {
+				final int h = gramHash(sample, p);
+				if (lastSample[h] != s + 1) {
+					lastSample[h] = s + 1;
+					frequency[h]++;
+				}
+			}
+			if (sample.length >= SEGMENT_SIZE)
+				candidates += (sample.length - SEGMENT_SIZE) / SEGMENT_STRIDE + 1;
+		}
+
+		// Queue up the candidate segments best first. The key holds the
+		// score in the upper bits and the candidate in the lower, negated
+		// so the natural ordering gives the highest score first.
+		final int[] candidateSample = new int[candidates];
+		final int[] candidateOffset = new int[candidates];
+		final PriorityQueue<Long> queue = new PriorityQueue<Long>(Math.max(candidates, 1));
+		int c = 0;
+		for (int s = 0; s < samples.size(); s++) {
+			final byte[] sample = samples.get(s);
+			for (int p = 0; p + SEGMENT_SIZE <= sample.length; p += SEGMENT_STRIDE) {
+				candidateSample[c] = s;
+				candidateOffset[c] = p;
+				final int score = score(sample, p, frequency);
+				if (score > 0)
+					queue.add(-(((long) score << 32) | c));
+				c++;
+			}
+		}
+
+		// Take the best segment and zero out the grams it covers. Scores
+		// only go down so a segment is rescored when it comes to the top
+		// and put back if something else now beats it.
+		final List<Integer> picked = new ArrayList<Integer>();
+		int total = 0;
+		while (total + SEGMENT_SIZE <= size && !queue.isEmpty()) {
+			final long key = -queue.poll();
+			final int candidate = (int) key;
+			final byte[] sample = samples.get(candidateSample[candidate]);
+			final int score = score(sample, candidateOffset[candidate], frequency);
+			if (score == 0)
+				continue;
+			if (score < (int) (key >>> 32) && !queue.isEmpty() && -queue.peek() >>> 32 > score) {
+				queue.add(-(((long) score << 32) | candidate));
+				continue;
+			}
+
+			for (int p = candidateOffset[candidate]; p <= candidateOffset[candidate] + SEGMENT_SIZE - GRAM_SIZE; p++)
+				frequency[gramHash(sample, p)] = 0;
+			picked.add(candidate);
+			total += SEGMENT_SIZE;
+		}
+
+		final byte[] dictionary = new byte[total];
+		int pos = total;
+		for (final Integer candidate : picked) {
+			pos -= SEGMENT_SIZE;
+			System.arraycopy(samples.get(candidateSample[candidate]), candidateOffset[candidate], dictionary, pos,
+					SEGMENT_SIZE);
+		}
+		return dictionary;
+	}
+}
@@ -25,7 +25,9 @@ package org.blockartistry.world.chunk.storage;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
@@ -40,6 +42,20 @@ import java.util.zip.InflaterInputStream;
  * of buffer allocation over time.
  * 
  * + Share byte buffer with RegionFile for efficiency.
+ * 
+ * + Stream is baked for the codec it was written with. STORED streams are
+ * read directly from the buffer without going through the inflater.
+ * 
+ * + Can be baked against a ByteBuffer, such as a mapped window of the
+ * RegionFile data area. Avoids copying the sectors into the heap buffer.
+ * 
+ * + Streams deflated with a preset dictionary have the dictionary set up
+ * front.
+ * 
+ * + Sectioned streams are inflated block by block through the same Inflater.
+ * 
+ * + Keeps a buffer from the DirectBufferPool that sectors can be read into
+ * without the JDK copying them through a temporary buffer of its own.
  */
 public class ChunkInputStream extends DataInputStream {
 
@@ -63,9 +79,14 @@ public class ChunkInputStream extends DataInputStream {
 	}
 
 	private byte[] inputBuffer;
+	private ByteBuffer directBuffer;
 	private final Inflater inflater;
 	private final AttachableByteArrayInputStream input;
 	private final InflaterInputStream inflaterStream;
+	private final AttachableByteBufferInputStream mappedInput;
+	private final InflaterInputStream mappedInflaterStream;
+	private final SectionedInflaterInputStream sectionedStream;
+	private final byte[] primer = new byte[1];
 
 	public ChunkInputStream() {
 		super(null);
@@ -73,12 +94,82 @@ public class ChunkInputStream extends DataInputStream {
 		this.input = new AttachableByteArrayInputStream(this.inputBuffer);
 		this.inflater = new Inflater();
 		this.inflaterStream = new InflaterInputStream(this.input, this.inflater, COMPRESSION_BUFFER_SIZE);
+		this.mappedInput = new AttachableByteBufferInputStream();
+		this.mappedInflaterStream = new InflaterInputStream(this.mappedInput, this.inflater, COMPRESSION_BUFFER_SIZE);
+		this.sectionedStream = new SectionedInflaterInputStream(this.inflater);
 		this.in = this.inflaterStream;
 	}
 
-	ChunkInputStream bake() {
-		this.input.attach(this.inputBuffer, RegionFile.CHUNK_STREAM_HEADER_SIZE, this.inputBuffer.length);
+	ChunkInputStream bake(final ChunkStreamCodec codec, final int streamLength) {
+		this.input.attach(this.inputBuffer, RegionFile.CHUNK_STREAM_HEADER_SIZE, streamLength);
+		if (codec.isCompressed()) {
+			this.inflater.reset();
+			this.in = this.inflaterStream;
+		} else {
+			this.in = this.input;
+		}
+		return this;
+	}
+
+	/**
+	 * Bakes a stream that was deflated with a preset dictionary. The
+	 * InflaterInputStream reports end of stream when the inflater asks for a
+	 * dictionary, so the stream header is run through here and the
+	 * dictionary set before the stream is handed out. The entire stream is
+	 * given to the inflater leaving nothing for the input stream to supply.
+	 */
+	ChunkInputStream bake(final ChunkStreamCodec codec, final int streamLength, final ChunkDictionary dictionary)
+			throws IOException {
+		if (codec.isSectioned()) {
+			this.sectionedStream.attach(this.inputBuffer, RegionFile.CHUNK_STREAM_HEADER_SIZE, streamLength);
+			this.in = this.sectionedStream;
+			return this;
+		}
+		if (!codec.usesDictionary())
+			return bake(codec, streamLength);
+		if (dictionary == null)
+			throw new IOException("Chunk stream requires a dictionary that is not present");
+
 		this.inflater.reset();
+		this.inflater.setInput(this.inputBuffer, RegionFile.CHUNK_STREAM_HEADER_SIZE, streamLength);
+		this.input.attach(this.inputBuffer, RegionFile.CHUNK_STREAM_HEADER_SIZE + streamLength, 0);
+		this.in = this.inflaterStream;
+
+		try {
+			if (this.inflater.inflate(this.primer) != 0 || !this.inflater.needsDictionary())
+				throw new IOException("Chunk stream was not written with a dictionary");
+			if (this.inflater.getAdler() != dictionary.id())
+				throw new IOException("Chunk stream dictionary does not match");
+			this.inflater.setDictionary(dictionary.bytes());
+		} catch (final DataFormatException ex) {
+			throw new IOException(ex);
+		}
+		return this;
+	}
+
+	/**
+	 * Bakes the stream against a buffer rather than the internal byte array.
+	 * The buffer position is expected to be at the start of the encoded
+	 * stream data, and the limit at the end.
+	 */
+	ChunkInputStream bake(final ChunkStreamCodec codec, final ByteBuffer data, final ChunkDictionary dictionary)
+			throws IOException {
+		// The dictionary setup and the block index work from the heap
+		// buffer
+		if (codec.usesDictionary() || codec.isSectioned()) {
+			final int streamLength = data.remaining();
+			data.get(getBuffer(RegionFile.CHUNK_STREAM_HEADER_SIZE + streamLength),
+					RegionFile.CHUNK_STREAM_HEADER_SIZE, streamLength);
+			return bake(codec, streamLength, dictionary);
+		}
+
+		this.mappedInput.attach(data);
+		if (codec.isCompressed()) {
+			this.inflater.reset();
+			this.in = this.mappedInflaterStream;
+		} else {
+			this.in = this.mappedInput;
+		}
 		return this;
 	}
 	
@@ -99,6 +190,31 @@ public class ChunkInputStream extends DataInputStream {
 		return this.inputBuffer;
 	}
 
+	/**
+	 * Same as getBuffer() but for the pooled buffer. The buffer returned is
+	 * cleared with the limit set to the requested size.
+	 */
+	ByteBuffer getDirectBuffer(final int desiredSize) {
+		if (this.directBuffer == null || desiredSize > this.directBuffer.capacity()) {
+			DirectBufferPool.release(this.directBuffer);
+			this.directBuffer = DirectBufferPool.acquire(Math.max(desiredSize, DEFAULT_BUFFER_SIZE));
+		}
+
+		this.directBuffer.clear();
+		this.directBuffer.limit(desiredSize);
+		return this.directBuffer;
+	}
+
+	/**
+	 * Hands the stream a pooled buffer that was filled elsewhere, such as by
+	 * ChunkAsyncReader. The buffer it had goes back to the pool.
+	 */
+	void setDirectBuffer(final ByteBuffer buffer) {
+		if (this.directBuffer != buffer)
+			DirectBufferPool.release(this.directBuffer);
+		this.directBuffer = buffer;
+	}
+
 	@Override
 	public void close() throws IOException {
 		// To the free list!
@@ -46,6 +46,13 @@ import org.apache.logging.log4j.Logger;
  * 
  * + The deflation parameters have been adjusted to improve performance with
  * little more data size.
+ * 
+ * + Streams can be collected into a ChunkWriteBatch rather than being written
+ * to the region file when closed.
+ * 
+ * + The codec is selected per write. A STORED stream bypasses the deflater
+ * completely and writes straight into the ChunkBuffer. So does a sectioned
+ * stream, which arrives already encoded from a ChunkSectionWriter.
  *
  */
 public class ChunkOutputStream extends DataOutputStream {
@@ -55,18 +62,22 @@ public class ChunkOutputStream extends DataOutputStream {
 	private final static AtomicInteger streamNumber = new AtomicInteger();
 	private final static ConcurrentLinkedQueue<ChunkOutputStream> freeOutputStreams = new ConcurrentLinkedQueue<ChunkOutputStream>();
 
-	static ChunkOutputStream getStream(final int chunkX, final int chunkZ, final RegionFile region) {
+	static ChunkOutputStream getStream(final int chunkX, final int chunkZ, final RegionFile region,
+			final ChunkStreamCodec codec) {
 		ChunkOutputStream buffer = freeOutputStreams.poll();
 		if (buffer == null)
 			buffer = new ChunkOutputStream();
 
-		return buffer.reset(chunkX, chunkZ, region);
+		return buffer.reset(chunkX, chunkZ, region, codec);
+	}
+
+	static ChunkOutputStream getStream(final int chunkX, final int chunkZ, final RegionFile region,
+			final ChunkStreamCodec codec, final ChunkWriteBatch batch) {
+		final ChunkOutputStream stream = getStream(chunkX, chunkZ, region, codec);
+		stream.myBatch = batch;
+		return stream;
 	}
 
-	// Vanilla uses 5 (default) where this uses 4.  Less compression
-	// but takes less time.
-	private final static int COMPRESSION_LEVEL = 4;
-	
 	// Use default strategy.  FILTERED doesn't buy anything, and Huffman
 	// results in larger stream sizes with more overhead.
 	private final static int COMPRESSION_STRATEGY = Deflater.DEFAULT_STRATEGY;
@@ -80,6 +91,8 @@ public class ChunkOutputStream extends DataOutputStream {
 	private final ChunkBuffer myChunkBuffer;
 	private final Deflater myDeflater;
 	private final DeflaterOutputStream myDeflaterOutput;
+	private ChunkStreamCodec myCodec;
+	private ChunkWriteBatch myBatch;
 
 	// Time measurement stuff. Intended to work with
 	// concurrent ChunkBuffer writes in the case of
@@ -101,9 +114,10 @@ public class ChunkOutputStream extends DataOutputStream {
 		
 		// Setup our buffers and deflater. These guys will be
 		// reused over and over...
-		this.myDeflater = new Deflater(COMPRESSION_LEVEL);
+		this.myCodec = ChunkStreamCodec.DEFLATE;
+		this.myDeflater = new Deflater(this.myCodec.level());
 		this.myDeflater.setStrategy(COMPRESSION_STRATEGY);
-		this.myChunkBuffer = new ChunkBuffer(0, 0, null);
+		this.myChunkBuffer = new ChunkBuffer(0, 0, null, this.myCodec);
 		this.myDeflaterOutput = new DeflaterOutputStream(myChunkBuffer, myDeflater, COMPRESSION_BUFFER_SIZE);
 
 		// Set the stream!
@@ -117,7 +131,19 @@ public class ChunkOutputStream extends DataOutputStream {
 		// close(). This will cause an underlying write to occur.
 		// Once all that is done toss the ChunkOutputStream on the
 		// free list so it can be reused.
-		this.myDeflaterOutput.finish();
+		if (this.out == this.myDeflaterOutput)
+			this.myDeflaterOutput.finish();
+
+		// Part of a batch. The batch owns the stream until it has been
+		// committed. Spooled streams are too large to batch and go out
+		// on their own.
+		if (this.myBatch != null && !this.myChunkBuffer.isSpooling()) {
+			this.myChunkBuffer.seal();
+			this.myBatch.add(this);
+			this.myBatch = null;
+			return;
+		}
+		this.myBatch = null;
 		this.myChunkBuffer.close();
 
 		if (DO_TIMINGS) {
@@ -158,10 +184,32 @@ public class ChunkOutputStream extends DataOutputStream {
 		freeOutputStreams.add(this);
 	}
 
-	protected ChunkOutputStream reset(final int chunkX, final int chunkZ, final RegionFile region) {
-		// Reset our ChunkBuffer and Deflater for new work.
-		this.myChunkBuffer.reset(chunkX, chunkZ, region);
-		this.myDeflater.reset();
+	ChunkBuffer buffer() {
+		return this.myChunkBuffer;
+	}
+
+	/**
+	 * Returns the stream to the free list once a batch has been committed.
+	 */
+	void release() {
+		freeOutputStreams.add(this);
+	}
+
+	protected ChunkOutputStream reset(final int chunkX, final int chunkZ, final RegionFile region,
+			final ChunkStreamCodec codec) {
+		// Reset our ChunkBuffer and Deflater for new work. The
+		// level change takes effect on the next deflate.
+		this.myCodec = codec;
+		this.myChunkBuffer.reset(chunkX, chunkZ, region, codec);
+		if (codec.isCompressed() && !codec.isSectioned()) {
+			this.myDeflater.reset();
+			this.myDeflater.setLevel(codec.level());
+			if (codec.usesDictionary())
+				this.myDeflater.setDictionary(region.dictionary().bytes());
+			this.out = this.myDeflaterOutput;
+		} else {
+			this.out = this.myChunkBuffer;
+		}
 		this.written = 0;
 
 		// Getting the timeMarker initialized isn't
@@ -0,0 +1,199 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Holds chunk streams that were read ahead of being asked for. When a chunk
+ * is read its neighbors in the same region are fetched in the background so
+ * the follow up loads as a player moves are served from memory:
+ * 
+ * + Entries are the raw stream bytes, header included, exactly as they sit
+ * in the region file. Cheap to hold and validated as usual when baked.
+ * 
+ * + Shared by all regions with a cap on the total bytes held. Least recently
+ * fetched entries are dropped first.
+ * 
+ * + An entry is removed when it is used. Minecraft keeps a loaded chunk in
+ * memory so it won't be asked for again soon.
+ * 
+ * + Fetches run on a single low priority thread with a bounded queue.
+ * Requests that don't fit are dropped rather than piling up.
+ * 
+ * + Hit, miss, fetch and eviction counts are kept for tuning.
+ */
+public final class ChunkReadAhead {
+
+	private static final Logger logger = LogManager.getLogger("ChunkReadAhead");
+
+	// Memory cap for the cached streams, and the number of fetch requests
+	// that can be waiting.
+	private final static int CACHE_BYTES = 8 * 1024 * 1024;
+	private final static int QUEUE_SIZE = 256;
+
+	// Log the hit rate every so many lookups
+	private final static boolean DO_TIMINGS = false;
+	private final static int REPORT_INTERVAL = 10000;
+
+	private static final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<Long, byte[]>(256, 0.75F, true);
+	private static long cacheBytes;
+	private static long hits;
+	private static long misses;
+	private static long fetches;
+	private static long evictions;
+
+	private static final ThreadPoolExecutor fetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+			new ThreadFactoryBuilder().setNameFormat("Chunk Read Ahead").setDaemon(true)
+					.setPriority(Thread.MIN_PRIORITY).build(),
+			new ThreadPoolExecutor.DiscardPolicy());
+
+	private static final class Fetch implements Runnable {
+
+		private final RegionFile region;
+		private final int[] streamIds;
+
+		public Fetch(final RegionFile region, final int[] streamIds) {
+			this.region = region;
+			this.streamIds = streamIds;
+		}
+
+		@Override
+		public void run() {
+			for (final int streamId : this.streamIds)
+				this.region.readAhead(streamId);
+		}
+	}
+
+	private ChunkReadAhead() {
+	}
+
+	private static Long key(final int regionId, final int streamId) {
+		return Long.valueOf(((long) regionId << 32) | streamId);
+	}
+
+	static void schedule(final RegionFile region, final int[] streamIds) {
+		fetcher.execute(new Fetch(region, streamIds));
+	}
+
+	/**
+	 * Removes and returns the cached stream, or null if it isn't cached.
+	 */
+	static synchronized byte[] take(final int regionId, final int streamId) {
+		final byte[] data = cache.remove(key(regionId, streamId));
+		if (data != null) {
+			cacheBytes -= data.length;
+			hits++;
+		} else {
+			misses++;
+		}
+
+		if (DO_TIMINGS && (hits + misses) % REPORT_INTERVAL == 0)
+			logger.info(String.format("Read ahead hit rate %d%% (hits %d, misses %d, fetches %d, evictions %d, %d KB)",
+					hitRate(), hits, misses, fetches, evictions, cacheBytes / 1024));
+		return data;
+	}
+
+	static synchronized boolean contains(final int regionId, final int streamId) {
+		return cache.containsKey(key(regionId, streamId));
+	}
+
+	static synchronized void put(final int regionId, final int streamId, final byte[] data) {
+		final byte[] old = cache.put(key(regionId, streamId), data);
+		if (old != null)
+			cacheBytes -= old.length;
+		cacheBytes += data.length;
+		fetches++;
+
+		final Iterator<byte[]> it = cache.values().iterator();
+		while (cacheBytes > CACHE_BYTES && it.hasNext()) {
+			cacheBytes -= it.next().length;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drops the cached copy of a stream. Called by the region file while it
+	 * holds the chunk lock for a write so a fetch can't slip in behind it.
+	 */
+	static synchronized void invalidate(final int regionId, final int streamId) {
+		final byte[] data = cache.remove(key(regionId, streamId));
+		if (data != null)
+			cacheBytes -= data.length;
+	}
+
+	/**
+	 * Drops everything cached for a region that is being closed.
+	 */
+	static synchronized void invalidate(final int regionId) {
+		final Iterator<Map.Entry<Long, byte[]>> it = cache.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<Long, byte[]> entry = it.next();
+			if ((int) (entry.getKey().longValue() >>> 32) == regionId) {
+				cacheBytes -= entry.getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	public static synchronized long hits() {
+		return hits;
+	}
+
+	public static synchronized long misses() {
+		return misses;
+	}
+
+	public static synchronized long fetches() {
+		return fetches;
+	}
+
+	public static synchronized long evictions() {
+		return evictions;
+	}
+
+	public static synchronized long cachedBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * Percentage of lookups that were served from the cache.
+	 */
+	public static synchronized int hitRate() {
+		final long lookups = hits + misses;
+		return lookups == 0 ? 0 : (int) (hits * 100 / lookups);
+	}
+}
@@ -0,0 +1,335 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a chunk stream as a series of independently deflated blocks. The
+ * caller marks where one block ends and the next begins while writing the
+ * NBT; AnvilChunkLoader gives each ExtendedBlockStorage section a block of
+ * its own. Improvements over writing the whole stream through a single
+ * deflater:
+ * 
+ * + Blocks whose raw bytes are the same as a block in the stream currently
+ * stored are carried over still compressed. Only sections that changed since
+ * the last save are deflated.
+ * 
+ * + Inflating the blocks one after another yields the original NBT, so
+ * readers get an ordinary stream back from the region file.
+ * 
+ * + Object pool for the writers and their deflaters, same as
+ * ChunkOutputStream.
+ * 
+ * Stream layout following the chunk stream header:
+ * 
+ * INTEGER: block count
+ * 
+ * INTEGER[4] per block: raw length, encoded length, CRC32 and Adler32 of the
+ * raw bytes. The pair of checksums identifies a block when matching it
+ * against the stored stream.
+ * 
+ * BYTE: the encoded blocks in index order, each a complete zlib stream
+ */
+public final class ChunkSectionWriter extends DataOutputStream {
+
+	private final static Logger logger = LogManager.getLogger("ChunkSectionWriter");
+
+	final static int INDEX_ENTRY_SIZE = 16;
+	final static int MAX_BLOCKS = 64;
+
+	private final static ConcurrentLinkedQueue<ChunkSectionWriter> freeWriters = new ConcurrentLinkedQueue<ChunkSectionWriter>();
+
+	static ChunkSectionWriter getWriter(final int chunkX, final int chunkZ, final RegionFile region) {
+		ChunkSectionWriter writer = freeWriters.poll();
+		if (writer == null)
+			writer = new ChunkSectionWriter();
+		return writer.reset(chunkX, chunkZ, region);
+	}
+
+	// Log block reuse every so many writes
+	private final static boolean DO_TIMINGS = false;
+	private final static int REPORT_INTERVAL = 1000;
+	private static Object sync = new Object();
+	private static long totalWrites;
+	private static long blocksReused;
+	private static long blocksDeflated;
+	private static long rawBytes;
+	private static long encodedBytes;
+
+	// Raw NBT for the stream. Block boundaries are offsets into the
+	// buffer. Bytes can be skipped on the way in and trimmed off the end
+	// so that a tag written as a standalone root can be spliced into its
+	// parent.
+	private static final class Blocks extends OutputStream {
+
+		private byte[] buf = new byte[RegionFile.SECTOR_SIZE * 32];
+		private int count;
+		private int skip;
+		private int[] ends = new int[MAX_BLOCKS];
+		private int blocks;
+
+		void reset() {
+			this.count = 0;
+			this.skip = 0;
+			this.blocks = 0;
+		}
+
+		@Override
+		public void write(final int b) {
+			if (this.skip > 0) {
+				this.skip--;
+				return;
+			}
+			ensureCapacity(this.count + 1);
+			this.buf[this.count++] = (byte) b;
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) {
+			final int skipped = Math.min(this.skip, len);
+			this.skip -= skipped;
+			off += skipped;
+			len -= skipped;
+			ensureCapacity(this.count + len);
+			System.arraycopy(b, off, this.buf, this.count, len);
+			this.count += len;
+		}
+
+		private void ensureCapacity(final int minCapacity) {
+			if (minCapacity > this.buf.length)
+				this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length << 1, minCapacity));
+		}
+
+		void trim(final int len) {
+			this.count = Math.max(blockStart(this.blocks), this.count - len);
+		}
+
+		void endBlock() throws IOException {
+			if (this.count == blockStart(this.blocks))
+				return;
+			if (this.blocks == MAX_BLOCKS)
+				throw new IOException("Too many blocks in chunk stream");
+			this.ends[this.blocks++] = this.count;
+		}
+
+		int blockStart(final int block) {
+			return block == 0 ? 0 : this.ends[block - 1];
+		}
+	}
+
+	private final Blocks raw;
+	private final Deflater deflater = new Deflater();
+	private final CRC32 crc = new CRC32();
+	private final Adler32 adler = new Adler32();
+	private byte[] encoded = new byte[RegionFile.SECTOR_SIZE * 8];
+	private final int[] index = new int[MAX_BLOCKS * 4];
+	private final int[] encodedStart = new int[MAX_BLOCKS];
+	private RegionFile region;
+	private int chunkX;
+	private int chunkZ;
+
+	private ChunkSectionWriter() {
+		this(new Blocks());
+	}
+
+	private ChunkSectionWriter(final Blocks raw) {
+		super(raw);
+		this.raw = raw;
+	}
+
+	private ChunkSectionWriter reset(final int chunkX, final int chunkZ, final RegionFile region) {
+		this.region = region;
+		this.chunkX = chunkX;
+		this.chunkZ = chunkZ;
+		this.raw.reset();
+		this.written = 0;
+		return this;
+	}
+
+	/**
+	 * Ends the current block. The next bytes written start a new one. Does
+	 * nothing if the current block is empty.
+	 */
+	public void endBlock() throws IOException {
+		this.raw.endBlock();
+	}
+
+	/**
+	 * Drops the next bytes written.
+	 */
+	public void skip(final int count) {
+		this.raw.skip += count;
+	}
+
+	/**
+	 * Removes bytes from the end of the current block.
+	 */
+	public void trim(final int count) {
+		this.raw.trim(count);
+	}
+
+	/**
+	 * Encodes the blocks and writes the stream to the region file. The
+	 * writer goes back to the free list.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.raw.endBlock();
+			final int blocks = this.raw.blocks;
+
+			// Blocks are matched against the stream that is being
+			// replaced. A stream written some other way has nothing to
+			// offer.
+			final byte[] stored = this.region.getChunkStreamPayload(this.chunkX, this.chunkZ,
+					ChunkStreamCodec.DEFLATE_SECTIONED);
+			final int storedBlocks = stored != null ? storedBlockCount(stored) : 0;
+
+			int encodedLength = 0;
+			int reused = 0;
+			for (int i = 0; i < blocks; i++) {
+				final int start = this.raw.blockStart(i);
+				final int length = this.raw.ends[i] - start;
+				this.crc.reset();
+				this.crc.update(this.raw.buf, start, length);
+				this.adler.reset();
+				this.adler.update(this.raw.buf, start, length);
+				final int checksum = (int) this.crc.getValue();
+				final int check = (int) this.adler.getValue();
+
+				this.encodedStart[i] = encodedLength;
+				final int match = findBlock(stored, storedBlocks, length, checksum, check);
+				if (match != -1) {
+					final int matchLength = getInt(stored, 4 + match * INDEX_ENTRY_SIZE + 4);
+					ensureEncodedCapacity(encodedLength + matchLength);
+					System.arraycopy(stored, storedBlockStart(stored, storedBlocks, match), this.encoded,
+							encodedLength, matchLength);
+					encodedLength += matchLength;
+					reused++;
+				} else {
+					encodedLength = deflate(this.raw.buf, start, length, encodedLength);
+				}
+
+				final int base = i * 4;
+				this.index[base] = length;
+				this.index[base + 1] = encodedLength - this.encodedStart[i];
+				this.index[base + 2] = checksum;
+				this.index[base + 3] = check;
+			}
+
+			final DataOutputStream out = ChunkOutputStream.getStream(this.chunkX, this.chunkZ, this.region,
+					ChunkStreamCodec.DEFLATE_SECTIONED);
+			out.writeInt(blocks);
+			for (int i = 0; i < blocks * 4; i++)
+				out.writeInt(this.index[i]);
+			out.write(this.encoded, 0, encodedLength);
+			out.close();
+
+			if (DO_TIMINGS)
+				logReuse(blocks, reused, this.raw.count, encodedLength);
+
+		} finally {
+			this.region = null;
+			freeWriters.add(this);
+		}
+	}
+
+	private int deflate(final byte[] buffer, final int start, final int length, int encodedLength) {
+		this.deflater.reset();
+		this.deflater.setLevel(ChunkStreamCodec.DEFLATE_SECTIONED.level());
+		this.deflater.setInput(buffer, start, length);
+		this.deflater.finish();
+		while (!this.deflater.finished()) {
+			ensureEncodedCapacity(encodedLength + RegionFile.SECTOR_SIZE);
+			encodedLength += this.deflater.deflate(this.encoded, encodedLength, this.encoded.length - encodedLength);
+		}
+		return encodedLength;
+	}
+
+	private void ensureEncodedCapacity(final int minCapacity) {
+		if (minCapacity > this.encoded.length)
+			this.encoded = Arrays.copyOf(this.encoded, Math.max(this.encoded.length << 1, minCapacity));
+	}
+
+	// Number of blocks in a stored payload, or 0 if the index doesn't add
+	// up. A damaged index means nothing gets reused.
+	private static int storedBlockCount(final byte[] stored) {
+		if (stored.length < 4)
+			return 0;
+		final int blocks = getInt(stored, 0);
+		if (blocks <= 0 || blocks > MAX_BLOCKS || stored.length < 4 + blocks * INDEX_ENTRY_SIZE)
+			return 0;
+		long total = 4 + blocks * INDEX_ENTRY_SIZE;
+		for (int i = 0; i < blocks; i++)
+			total += getInt(stored, 4 + i * INDEX_ENTRY_SIZE + 4);
+		return total == stored.length ? blocks : 0;
+	}
+
+	private static int storedBlockStart(final byte[] stored, final int blocks, final int block) {
+		int start = 4 + blocks * INDEX_ENTRY_SIZE;
+		for (int i = 0; i < block; i++)
+			start += getInt(stored, 4 + i * INDEX_ENTRY_SIZE + 4);
+		return start;
+	}
+
+	private static int findBlock(final byte[] stored, final int blocks, final int length, final int checksum,
+			final int check) {
+		for (int i = 0; i < blocks; i++) {
+			final int base = 4 + i * INDEX_ENTRY_SIZE;
+			if (getInt(stored, base) == length && getInt(stored, base + 8) == checksum
+					&& getInt(stored, base + 12) == check)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int getInt(final byte[] buffer, final int offset) {
+		return (buffer[offset] << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8)
+				| (buffer[offset + 3] & 0xFF);
+	}
+
+	private static void logReuse(final int blocks, final int reused, final int raw, final int encoded) {
+		synchronized (sync) {
+			blocksReused += reused;
+			blocksDeflated += blocks - reused;
+			rawBytes += raw;
+			encodedBytes += encoded;
+			if (++totalWrites % REPORT_INTERVAL == 0) {
+				logger.info(String.format("Sectioned writes %d, blocks reused %d deflated %d, raw %d encoded %d",
+						totalWrites, blocksReused, blocksDeflated, rawBytes, encodedBytes));
+			}
+		}
+	}
+}
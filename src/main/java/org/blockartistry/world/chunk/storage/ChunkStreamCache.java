@@ -0,0 +1,167 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the chunk streams that were most recently written or read so that a
+ * chunk that is unloaded and loaded again soon after, as happens when a
+ * player walks back and forth over the same ground, is served from memory
+ * rather than the region file:
+ * 
+ * + Entries are the raw stream bytes, header included, exactly as they sit
+ * in the region file. Only streams that were just written or that passed
+ * their checksum on a read go in, so a hit skips the checksum. The stream
+ * is still inflated; what is saved is the trip to the disk.
+ * 
+ * + Shared by all regions with a cap on the bytes held, which counts a fixed
+ * overhead for each entry. Least recently used entries are dropped first.
+ * 
+ * + Unlike ChunkReadAhead an entry stays put when it is used.
+ * 
+ * + Kept coherent by the region file: a write replaces the entry while the
+ * chunk write lock is held, and a read only adds one under the chunk read
+ * lock. Moving a stream within the file doesn't change its bytes so the
+ * entry stays.
+ * 
+ * + Streams too large to be worth the space are not kept. Neither are
+ * streams that live in sidecar files.
+ */
+public final class ChunkStreamCache {
+
+	// Memory cap for the cached streams, the bookkeeping charged for each
+	// entry, and the largest stream that will be held.
+	private final static long CACHE_BYTES = 16 * 1024 * 1024;
+	private final static int ENTRY_OVERHEAD = 64;
+	private final static int MAX_ENTRY_BYTES = 64 * 1024;
+
+	private static final LinkedHashMap<Long, byte[]> cache = new LinkedHashMap<Long, byte[]>(1024, 0.75F, true);
+	private static long cacheBytes;
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+
+	private ChunkStreamCache() {
+	}
+
+	private static Long key(final int regionId, final int streamId) {
+		return Long.valueOf(((long) regionId << 32) | streamId);
+	}
+
+	private static long charge(final byte[] data) {
+		return data.length + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Returns the cached stream, or null if it isn't cached. The caller must
+	 * not modify the array.
+	 */
+	static synchronized byte[] get(final int regionId, final int streamId) {
+		final byte[] data = cache.get(key(regionId, streamId));
+		if (data != null)
+			hits++;
+		else
+			misses++;
+		return data;
+	}
+
+	/**
+	 * Caches a copy of the stream that runs from the buffer position to its
+	 * limit. The buffer is not disturbed. Caller holds the chunk lock.
+	 */
+	static void put(final int regionId, final int streamId, final ByteBuffer stream) {
+		final int length = stream.remaining();
+		if (length > MAX_ENTRY_BYTES) {
+			invalidate(regionId, streamId);
+			return;
+		}
+		final byte[] data = new byte[length];
+		stream.duplicate().get(data);
+
+		synchronized (ChunkStreamCache.class) {
+			final byte[] old = cache.put(key(regionId, streamId), data);
+			if (old != null)
+				cacheBytes -= charge(old);
+			cacheBytes += charge(data);
+
+			final Iterator<byte[]> it = cache.values().iterator();
+			while (cacheBytes > CACHE_BYTES && it.hasNext()) {
+				cacheBytes -= charge(it.next());
+				it.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached copy of a stream. Caller holds the chunk write lock.
+	 */
+	static synchronized void invalidate(final int regionId, final int streamId) {
+		final byte[] data = cache.remove(key(regionId, streamId));
+		if (data != null)
+			cacheBytes -= charge(data);
+	}
+
+	/**
+	 * Drops everything cached for a region that is being closed.
+	 */
+	static synchronized void invalidate(final int regionId) {
+		final Iterator<Map.Entry<Long, byte[]>> it = cache.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<Long, byte[]> entry = it.next();
+			if ((int) (entry.getKey().longValue() >>> 32) == regionId) {
+				cacheBytes -= charge(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	public static synchronized long hits() {
+		return hits;
+	}
+
+	public static synchronized long misses() {
+		return misses;
+	}
+
+	public static synchronized long evictions() {
+		return evictions;
+	}
+
+	public static synchronized long cachedBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * Percentage of lookups that were served from the cache.
+	 */
+	public static synchronized int hitRate() {
+		final long lookups = hits + misses;
+		return lookups == 0 ? 0 : (int) (hits * 100 / lookups);
+	}
+}
@@ -0,0 +1,131 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.util.zip.Deflater;
+
+/**
+ * Describes the formats a chunk stream can be encoded with inside of a
+ * RegionFile. The stream version byte that is stored in the control region
+ * identifies which codec was used to write a given chunk stream. Improvements:
+ * 
+ * + Codec is picked per write so different formats can coexist in the same
+ * region file. Existing deflate streams remain readable.
+ * 
+ * + DEFLATE_FAST trades compression ratio for CPU. It is still a deflate
+ * stream so the same Inflater handles the read side.
+ * 
+ * + STORED bypasses compression completely. Useful where disk bandwidth is
+ * cheap and the IO threads are CPU bound.
+ * 
+ * + DEFLATE_DICTIONARY primes the deflater with the world's ChunkDictionary.
+ * Streams are smaller since the NBT boilerplate is already in the window.
+ * 
+ * + DEFLATE_SECTIONED deflates the stream in independent blocks, one per
+ * chunk section, so unchanged sections can be carried over from the stored
+ * stream without being compressed again. See ChunkSectionWriter.
+ */
+public enum ChunkStreamCodec {
+
+	// Original Jiffy stream format. Vanilla uses 5 (default) where this
+	// uses 4. Less compression but takes less time.
+	DEFLATE(RegionFile.CHUNK_STREAM_VERSION_FLATION, 4),
+
+	// Raw NBT. No compression at all.
+	STORED(RegionFile.CHUNK_STREAM_VERSION_STORED, Deflater.NO_COMPRESSION),
+
+	// Deflate at the fastest level.
+	DEFLATE_FAST(RegionFile.CHUNK_STREAM_VERSION_FAST_FLATION, Deflater.BEST_SPEED),
+
+	// Same level as DEFLATE with a preset dictionary
+	DEFLATE_DICTIONARY(RegionFile.CHUNK_STREAM_VERSION_DICTIONARY_FLATION, 4, true, false),
+
+	// Same level as DEFLATE, each block of the stream deflated on its own
+	DEFLATE_SECTIONED(RegionFile.CHUNK_STREAM_VERSION_SECTIONED_FLATION, 4, false, true),
+
+	// Deflate at the best level. Cold streams are recompressed with this.
+	DEFLATE_BEST(RegionFile.CHUNK_STREAM_VERSION_BEST_FLATION, Deflater.BEST_COMPRESSION);
+
+	// Avoid the array clone of values() on every lookup
+	private final static ChunkStreamCodec[] codecs = values();
+
+	private final byte version;
+	private final int level;
+	private final boolean dictionary;
+	private final boolean sectioned;
+
+	private ChunkStreamCodec(final byte version, final int level) {
+		this(version, level, false, false);
+	}
+
+	private ChunkStreamCodec(final byte version, final int level, final boolean dictionary,
+			final boolean sectioned) {
+		this.version = version;
+		this.level = level;
+		this.dictionary = dictionary;
+		this.sectioned = sectioned;
+	}
+
+	/**
+	 * Stream version that is recorded in the control region of the
+	 * RegionFile for streams written with this codec.
+	 */
+	public byte version() {
+		return this.version;
+	}
+
+	/**
+	 * Deflate compression level to use when writing.
+	 */
+	public int level() {
+		return this.level;
+	}
+
+	public boolean isCompressed() {
+		return this.level != Deflater.NO_COMPRESSION;
+	}
+
+	public boolean usesDictionary() {
+		return this.dictionary;
+	}
+
+	/**
+	 * Stream is made up of independently deflated blocks rather than being a
+	 * single deflate stream.
+	 */
+	public boolean isSectioned() {
+		return this.sectioned;
+	}
+
+	/**
+	 * Locates the codec that corresponds to the stream version. Returns null
+	 * if the version is not recognized.
+	 */
+	public static ChunkStreamCodec forVersion(final int version) {
+		for (final ChunkStreamCodec codec : codecs)
+			if (codec.version == version)
+				return codec;
+		return null;
+	}
+}
@@ -0,0 +1,94 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects chunk streams for a single RegionFile so they can be written in
+ * one pass. Streams obtained from the batch are encoded as usual, but closing
+ * them hands the finished buffer to the batch rather than writing it. The
+ * region file writes the batch with:
+ * 
+ * + A single acquisition of the region monitor to allocate sectors for all of
+ * the streams.
+ * 
+ * + Streams sorted by file offset, with streams in adjacent sectors coalesced
+ * into a single gathering write.
+ * 
+ * A batch is intended to be filled and committed by a single thread.
+ */
+public final class ChunkWriteBatch {
+
+	private final RegionFile region;
+	private final List<ChunkOutputStream> streams = new ArrayList<ChunkOutputStream>();
+
+	ChunkWriteBatch(final RegionFile region) {
+		this.region = region;
+	}
+
+	public RegionFile region() {
+		return this.region;
+	}
+
+	public int size() {
+		return this.streams.size();
+	}
+
+	public DataOutputStream getChunkDataOutputStream(final int regionX, final int regionZ) {
+		return getChunkDataOutputStream(regionX, regionZ, this.region.defaultCodec());
+	}
+
+	public DataOutputStream getChunkDataOutputStream(final int regionX, final int regionZ,
+			final ChunkStreamCodec codec) {
+		return ChunkOutputStream.getStream(regionX, regionZ, this.region, this.region.resolveCodec(codec), this);
+	}
+
+	void add(final ChunkOutputStream stream) {
+		this.streams.add(stream);
+	}
+
+	/**
+	 * Writes the collected streams to the region file. The batch is empty
+	 * afterwards and can be reused.
+	 */
+	public void commit() throws Exception {
+		if (this.streams.isEmpty())
+			return;
+
+		final List<ChunkBuffer> buffers = new ArrayList<ChunkBuffer>(this.streams.size());
+		for (final ChunkOutputStream stream : this.streams)
+			buffers.add(stream.buffer());
+
+		try {
+			this.region.write(buffers);
+		} finally {
+			for (final ChunkOutputStream stream : this.streams)
+				stream.release();
+			this.streams.clear();
+		}
+	}
+}
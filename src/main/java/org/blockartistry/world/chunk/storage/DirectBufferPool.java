@@ -0,0 +1,123 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the buffers chunk streams are staged in on their way to and from
+ * a RegionFile. A heap buffer handed to a FileChannel is copied through a
+ * temporary direct buffer by the JDK on every call; staging the stream in a
+ * direct buffer to begin with skips that copy:
+ * 
+ * + Buffers come in power of two sizes from one sector up to the largest
+ * stream a region file can hold. A request is served from the smallest size
+ * that fits.
+ * 
+ * + Released buffers are kept up to a cap on the total bytes held. Past that,
+ * and for requests larger than the biggest pool size, the native memory is
+ * freed right away rather than waiting on the GC.
+ * 
+ * + When direct buffers are turned off the pool hands out plain heap buffers
+ * and keeps nothing.
+ */
+public final class DirectBufferPool {
+
+	// Stage chunk streams in direct buffers
+	final static boolean USE_DIRECT_BUFFERS = true;
+
+	// Memory cap for the buffers that are kept for reuse
+	private final static long POOL_BYTES = 32 * 1024 * 1024;
+
+	private final static int MIN_BUFFER_SHIFT = 12;
+	private final static int MAX_BUFFER_SHIFT = 32 - Integer.numberOfLeadingZeros(RegionFile.MAX_CHUNK_STREAM_SIZE - 1);
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final static ConcurrentLinkedQueue<ByteBuffer>[] free = new ConcurrentLinkedQueue[MAX_BUFFER_SHIFT
+			- MIN_BUFFER_SHIFT + 1];
+	private final static AtomicLong pooledBytes = new AtomicLong();
+
+	static {
+		for (int i = 0; i < free.length; i++)
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	private DirectBufferPool() {
+	}
+
+	private static int sizeClass(final int size) {
+		return Math.max(32 - Integer.numberOfLeadingZeros(size - 1), MIN_BUFFER_SHIFT) - MIN_BUFFER_SHIFT;
+	}
+
+	/**
+	 * Gets a buffer with room for at least the requested number of bytes. The
+	 * buffer is cleared; its contents are whatever the last user left.
+	 */
+	public static ByteBuffer acquire(final int size) {
+		if (!USE_DIRECT_BUFFERS)
+			return ByteBuffer.allocate(size);
+
+		final int sizeClass = sizeClass(size);
+		if (sizeClass >= free.length)
+			return ByteBuffer.allocateDirect(size);
+
+		final ByteBuffer buffer = free[sizeClass].poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_BUFFER_SHIFT));
+
+		pooledBytes.addAndGet(-buffer.capacity());
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer obtained from acquire(). The caller must not touch it
+	 * afterwards.
+	 */
+	public static void release(final ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect())
+			return;
+
+		// Odd sized buffers were allocated outside of the pool sizes
+		final int capacity = buffer.capacity();
+		final int sizeClass = sizeClass(capacity);
+		if (sizeClass < free.length && capacity == 1 << (sizeClass + MIN_BUFFER_SHIFT)) {
+			if (pooledBytes.addAndGet(capacity) <= POOL_BYTES) {
+				free[sizeClass].add(buffer);
+				return;
+			}
+			pooledBytes.addAndGet(-capacity);
+		}
+		RegionFile.freeBuffer(buffer);
+	}
+
+	/**
+	 * Bytes held in released buffers waiting for reuse.
+	 */
+	public static long pooledBytes() {
+		return pooledBytes.get();
+	}
+}
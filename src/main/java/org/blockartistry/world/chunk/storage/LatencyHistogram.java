@@ -0,0 +1,130 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distribution of a region file operation. Cheap enough to record
+ * on every operation:
+ * 
+ * + Samples land in power of two buckets of microseconds. Bucket zero holds
+ * everything under a microsecond, bucket n everything from 2^(n-1) up to
+ * 2^n microseconds, and the last bucket everything past that.
+ * 
+ * + Counters are atomic so threads record without any locking. A reader may
+ * see a sample in the count before it shows up in a bucket.
+ * 
+ * + Percentiles are reported as the upper bound of the bucket the
+ * percentile falls in, so they are accurate to a factor of two.
+ */
+public final class LatencyHistogram {
+
+	// Last bucket starts at about 4 seconds
+	private final static int BUCKETS = 24;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	public void record(final long nanos) {
+		final long micros = nanos / 1000;
+		final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		this.buckets.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.totalNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Folds the samples of another histogram into this one.
+	 */
+	public void add(final LatencyHistogram histogram) {
+		for (int i = 0; i < BUCKETS; i++)
+			this.buckets.addAndGet(i, histogram.buckets.get(i));
+		this.count.addAndGet(histogram.count.get());
+		this.totalNanos.addAndGet(histogram.totalNanos.get());
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getMeanMicros() {
+		final long samples = this.count.get();
+		return samples == 0 ? 0 : this.totalNanos.get() / samples / 1000;
+	}
+
+	public long getMedianMicros() {
+		return percentileMicros(50);
+	}
+
+	public long getP99Micros() {
+		return percentileMicros(99);
+	}
+
+	public long getMaxMicros() {
+		return percentileMicros(100);
+	}
+
+	/**
+	 * Sample counts by bucket. Index n counts samples under 2^n
+	 * microseconds that didn't fall in a lower bucket.
+	 */
+	public long[] getBuckets() {
+		final long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			result[i] = this.buckets.get(i);
+		return result;
+	}
+
+	/**
+	 * Upper bound in microseconds of the bucket that the specified
+	 * percentage of samples falls in. The last bucket has no upper bound so
+	 * Long.MAX_VALUE is reported.
+	 */
+	public long percentileMicros(final int percent) {
+		final long[] counts = getBuckets();
+		long samples = 0;
+		for (final long c : counts)
+			samples += c;
+		if (samples == 0)
+			return 0;
+
+		final long target = Math.max(1, (samples * percent + 99) / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return 1L << i;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n %d, mean %dus, p50 <%dus, p99 <%dus", getCount(), getMeanMicros(),
+				getMedianMicros(), getP99Micros());
+	}
+}
@@ -27,15 +27,33 @@ import java.io.*;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RateLimiter;
+
+import net.minecraft.world.ChunkCoordIntPair;
 
 /**
  * Replacement for Minecraft's RegionFile implementation. This version improves
@@ -44,8 +62,9 @@ import com.google.common.collect.Sets;
  * + Sector based reads/writes. It is more efficient to read buffers of
  * information than individual pieces from the file.
  * 
- * + Using BitSet to track used sectors within the data file rather than an
- * array of Boolean objects.
+ * + Using a SectorAllocator to track used sectors within the data file rather
+ * than an array of Boolean objects. Free space is indexed by size so finding
+ * room for a stream doesn't scan the file.
  *
  * + Chunk stream version information is now encoded in the control table.
  * Avoids the need of actually doing a partial read of the stream from the file
@@ -62,7 +81,8 @@ import com.google.common.collect.Sets;
  * 
  * + Extend the data file with multiple empty sectors rather than just what is
  * needed for a given chunk write. This improves the overall aggregate time
- * creating new chunk streams in the file.
+ * creating new chunk streams in the file. The empty sectors are written with a
+ * single write from a shared zeroed buffer rather than one sector at a time.
  * 
  * + Minimum sectors per chunk stream to give a bit of room for lightweight
  * chunks to grow without having to reallocate storage from a region file.
@@ -71,13 +91,41 @@ import com.google.common.collect.Sets;
  * Chunk streams have a tendency to vacillate in size because of things like mob
  * spawns. Keeping the same chunk stream size maximizes write throughput.
  * 
- * + Use a byte array to logically lock chunk streams to avoid concurrent
- * operations on the same chunk stream. Rare occurrence but it would be possible
- * and could lead to corruption.
+ * + Use striped read/write locks to logically lock chunk streams to avoid
+ * concurrent operations on the same chunk stream. Rare occurrence but it would
+ * be possible and could lead to corruption. Readers of a stream can proceed
+ * concurrently, and releasing a lock only wakes threads waiting on that stripe.
  * 
  * + Use a file mapped memory for handling the control region of the file. This
  * permits the best performance of managing/updating the region file control
  * data.
+ * 
+ * + The chunk stream version identifies the codec the stream was written with.
+ * Codecs can be mixed within a region file and are picked per write.
+ * 
+ * + Reallocated chunk streams are written to fresh sectors before the control
+ * entry is flipped, so a failed write leaves the old stream intact. In copy on
+ * write mode every write goes to fresh sectors.
+ * 
+ * + A CRC32 of the stream payload is recorded in the chunk stream header and
+ * verified on read.
+ * 
+ * + Chunk streams too large for the data area are stored in a sidecar file
+ * next to the region file. The stream version table flags these streams.
+ * 
+ * + Streams can be compacted toward the head of the file while it is live.
+ * Gaps left behind by reallocated streams are reclaimed and the tail of the
+ * file truncated.
+ * 
+ * + New streams are placed just after the stream of the chunk that precedes
+ * them in Z-order, if there is room. Streams can also be reordered so they
+ * are laid out in Z-order from the head of the file. The chunks around a
+ * player then load with a few near sequential reads.
+ * 
+ * + Optional memory mapped read path for the data area. The file is mapped in
+ * windows. A chunk stream is copied out of its window into a pooled direct
+ * buffer under the region monitor, so a window can be remapped or unmapped
+ * without pulling it out from under a read, and inflated from there.
  */
 public final class RegionFile {
 
@@ -114,6 +162,11 @@ public final class RegionFile {
 	// Normally the JVM will leave them hanging around till the GC
 	// finishes them, but they need to be closed sooner.
 	private static void freeMemoryMap(final MappedByteBuffer buffer) {
+		freeBuffer(buffer);
+	}
+
+	// Same for direct buffers that are dropped from the pool
+	static void freeBuffer(final ByteBuffer buffer) {
 		if (clean != null && buffer != null && buffer.isDirect()) {
 			try {
 				clean.invoke(cleaner.invoke(buffer));
@@ -127,17 +180,108 @@ public final class RegionFile {
 	// maintain a large portion of it's behavior.
 	public final static String REGION_FILE_EXTENSION = ".mca2";
 
+	// Extension for sidecar files holding chunk streams that are too
+	// large to fit in the region file.
+	public final static String SIDECAR_FILE_EXTENSION = ".mcc2";
+
+	// Extension of the files oversized streams are spooled to before being
+	// moved over their sidecar. Named after the region they belong to.
+	private final static String SPOOL_FILE_EXTENSION = ".spool";
+
+	// Sidecar files that a snapshot still refers to are moved aside with
+	// this suffix when the live stream is replaced.
+	private final static String SNAPSHOT_SIDECAR_SUFFIX = ".snap";
+
 	private final static int INT_SIZE = 4;
 	public final static int SECTOR_SIZE = 4096;
 	private final static int MAX_SECTORS_PER_CHUNK_STREAM = 255;
+	final static int MAX_CHUNK_STREAM_SIZE = MAX_SECTORS_PER_CHUNK_STREAM * SECTOR_SIZE;
 	public final static int MIN_SECTORS_PER_CHUNK_STREAM = 2;
 	private final static int ALLOWED_SECTOR_SHRINKAGE = 2;
 	private final static int NUM_CONTROL_SECTORS = 4;
 	private final static int REGION_CHUNK_DIMENSION = 32;
 	private final static int CHUNKS_IN_REGION = REGION_CHUNK_DIMENSION * REGION_CHUNK_DIMENSION;
 	private final static int EXTEND_SECTOR_QUANTITY = MIN_SECTORS_PER_CHUNK_STREAM * 128;
+
+	// Z-order (Morton order) of the chunks in a region. The bits of the X
+	// and Z coordinates are interleaved, so the rank of a chunk is a
+	// permutation of the stream IDs that keeps neighbors close together.
+	private final static int[] ZORDER = new int[CHUNKS_IN_REGION];
+	private final static int[] ZORDER_RANK = new int[CHUNKS_IN_REGION];
+
+	static {
+		for (int streamId = 0; streamId < CHUNKS_IN_REGION; streamId++) {
+			final int x = streamId % REGION_CHUNK_DIMENSION;
+			final int z = streamId / REGION_CHUNK_DIMENSION;
+			int rank = 0;
+			for (int bit = 0; (1 << bit) < REGION_CHUNK_DIMENSION; bit++)
+				rank |= (((x >> bit) & 1) << (bit * 2)) | (((z >> bit) & 1) << (bit * 2 + 1));
+			ZORDER[rank] = streamId;
+			ZORDER_RANK[streamId] = rank;
+		}
+	}
 	private final static byte[] EMPTY_SECTOR = new byte[SECTOR_SIZE];
 
+	// Strategies for growing the file:
+	//
+	// EXTEND_PER_SECTOR - Original behavior. One positional write per
+	// sector.
+	//
+	// EXTEND_SINGLE_WRITE - Write the new sectors from a shared zeroed direct
+	// buffer. One write per EXTEND_SECTOR_QUANTITY sectors.
+	//
+	// EXTEND_SPARSE - Only write the last new sector and let the file system
+	// fill in the hole. Cheapest, but the sectors may not actually be
+	// allocated on disk until the streams are written.
+	private final static int EXTEND_PER_SECTOR = 0;
+	private final static int EXTEND_SINGLE_WRITE = 1;
+	private final static int EXTEND_SPARSE = 2;
+	private final static int EXTEND_STRATEGY = EXTEND_SINGLE_WRITE;
+	private final static ByteBuffer EMPTY_SECTORS = ByteBuffer.allocateDirect(EXTEND_SECTOR_QUANTITY * SECTOR_SIZE);
+
+	// Read chunk streams through mapped windows of the data area. Windows
+	// overlap the next by the largest possible stream so that a stream never
+	// straddles two of them.
+	private final static boolean USE_MAPPED_DATA = false;
+	private final static int DATA_WINDOW_SECTORS = 1024;
+
+	// Compaction kicks in once gaps make up this percentage of the used
+	// portion of the file, and there are enough of them to be worth the IO.
+	private final static int COMPACTION_THRESHOLD = 25;
+	private final static int COMPACTION_MIN_GAP_SECTORS = EXTEND_SECTOR_QUANTITY;
+
+	// Batched reads merge streams separated by no more than this many
+	// sectors into a single read, up to the maximum read size.
+	private final static int READ_MERGE_GAP_SECTORS = 8;
+	private final static int READ_MAX_SECTORS = 256;
+
+	// Place new streams near the stream of the closest preceding chunk in
+	// Z-order. Looks back this many chunks for one that is present, and
+	// forward this many sectors from the end of its stream for room. Off
+	// by default; it trades best fit for locality, which leaves more gaps.
+	private final static boolean USE_SPATIAL_PLACEMENT = false;
+	private final static int PLACEMENT_LOOKBACK = 4;
+	private final static int PLACEMENT_WINDOW_SECTORS = READ_MERGE_GAP_SECTORS;
+
+	// Reordering kicks in once fewer than this percentage of streams can be
+	// read together with their Z-order predecessor, and there are enough
+	// streams for it to matter.
+	private final static int REORDER_THRESHOLD = 50;
+	private final static int REORDER_MIN_CHUNKS = 16;
+
+	// Identical streams within a region share one sector extent. The CRC32
+	// in the stream header finds candidates and a byte compare confirms
+	// them. Shared extents are never rewritten in place or moved.
+	private final static boolean USE_DEDUP = false;
+
+	// Streams that haven't been written in this long are recompressed with
+	// DEFLATE_BEST in the background, once no chunk of the region has been
+	// written for the idle time. Streams written this way can't be read by
+	// builds that predate the codec.
+	final static boolean USE_COLD_RECOMPRESSION = false;
+	private final static long COLD_STREAM_AGE = TimeUnit.DAYS.toSeconds(14);
+	private final static long IDLE_REGION_AGE = TimeUnit.MINUTES.toSeconds(10);
+
 	//////////////////////
 	//
 	// Region File Control
@@ -158,13 +302,41 @@ public final class RegionFile {
 	private final static int SECTOR_START_SHIFT = 8;
 	private final static int CHUNK_INFO_TABLE_OFFSET = 64;
 	// BYTE: control[4160 - 5183] - chunk stream version information table
+	// The lower 7 bits identify the codec. The upper bit is set when the
+	// stream is held in a sidecar file; the info table entry is zero.
 	private final static byte CHUNK_STREAM_VERSION_UNKNOWN = 0;
-	private final static byte CHUNK_STREAM_VERSION_FLATION = 1;
+	final static byte CHUNK_STREAM_VERSION_FLATION = 1;
+	final static byte CHUNK_STREAM_VERSION_STORED = 2;
+	final static byte CHUNK_STREAM_VERSION_FAST_FLATION = 3;
+	final static byte CHUNK_STREAM_VERSION_DICTIONARY_FLATION = 4;
+	final static byte CHUNK_STREAM_VERSION_SECTIONED_FLATION = 5;
+	final static byte CHUNK_STREAM_VERSION_BEST_FLATION = 6;
+	private final static int CHUNK_STREAM_VERSION_CODEC_MASK = 0x7F;
+	private final static int CHUNK_STREAM_EXTERNAL_FLAG = 0x80;
 	private final static int CHUNK_STREAM_VERSION_TABLE_OFFSET = CHUNK_INFO_TABLE_OFFSET
 			+ (CHUNKS_IN_REGION * INT_SIZE);
-	// BYTE: control[5184 - 16383] - unallocated region (zero)
+	// INTEGER: control[5184 - 5187] - sector map state. The map is only
+	// trusted if the file was closed cleanly after the last change.
+	private final static int SECTOR_MAP_STATE_OFFSET = CHUNK_STREAM_VERSION_TABLE_OFFSET + CHUNKS_IN_REGION;
+	private final static int SECTOR_MAP_DIRTY = 0;
+	private final static int SECTOR_MAP_CLEAN = 1;
+	// INTEGER: control[5188 - 5191] - sectors in the file when the map was saved
+	private final static int SECTOR_MAP_SECTORS_OFFSET = SECTOR_MAP_STATE_OFFSET + INT_SIZE;
+	// INTEGER: control[5192 - 9287] - chunk stream write time table. Seconds
+	// since the epoch, same as the stream header. Zero if not known.
+	private final static int CHUNK_TIMESTAMP_TABLE_OFFSET = SECTOR_MAP_SECTORS_OFFSET + INT_SIZE;
+	// BYTE: control[9288 - 12287] - unallocated region (zero)
 	@SuppressWarnings("unused")
-	private final static int UNALLOCATED = CHUNK_STREAM_VERSION_TABLE_OFFSET + CHUNKS_IN_REGION;
+	private final static int UNALLOCATED = CHUNK_TIMESTAMP_TABLE_OFFSET + (CHUNKS_IN_REGION * INT_SIZE);
+	// BYTE: control[12288 - 16383] - used sector map, one bit per sector.
+	// Files larger than the map can describe are rebuilt on open.
+	private final static int SECTOR_MAP_OFFSET = SECTOR_SIZE * (NUM_CONTROL_SECTORS - 1);
+	private final static int SECTOR_MAP_SIZE = SECTOR_SIZE;
+	private final static int SECTOR_MAP_MAX_SECTORS = SECTOR_MAP_SIZE * 8;
+
+	// Save the used sector map on close so the next open doesn't have to
+	// rebuild it from the control entries.
+	private final static boolean PERSIST_SECTOR_MAP = true;
 
 	// Chunk Stream Version 1
 
@@ -172,8 +344,37 @@ public final class RegionFile {
 	public final static int CHUNK_STREAM_HEADER_SIZE = 16;
 	// INTEGER: buffer[0 - 3] - Chunk Stream Length exclusive of header
 	// INTEGER: buffer[4 - 7] - Time stamp of write
-	// BYTE: buffer[8 - 15] - reserved (zero)
-	// BYTE: buffer[16...] - Deflate compressed NBT stream
+	// INTEGER: buffer[8 - 11] - CRC32 of the encoded stream
+	// BYTE: buffer[12] - header flags
+	// BYTE: buffer[13] - stream version codec (zero if not recorded)
+	// BYTE: buffer[14 - 15] - reserved (zero)
+	// BYTE: buffer[16...] - NBT stream encoded with the stream version codec
+	//
+	// The codec in the header wins over the stream version table. The
+	// control entry and the version byte can't be written as one, so after
+	// a crash between the two only the control entry can be trusted.
+	final static int CHUNK_STREAM_CHECKSUM_OFFSET = 8;
+	final static int CHUNK_STREAM_FLAGS_OFFSET = 12;
+	final static int CHUNK_STREAM_CODEC_OFFSET = 13;
+	final static int CHUNK_STREAM_FLAG_CHECKSUM = 0x01;
+
+	// Verify the stream checksum on read. Streams written before checksums
+	// were recorded don't have the header flag set and are not verified.
+	private final static boolean VERIFY_CHECKSUMS = true;
+
+	// Size of the array direct buffers are copied through to be checksummed
+	private final static int CHECKSUM_SCRATCH_SIZE = 8 * 1024;
+
+	// Always write chunk streams to fresh sectors and force them to disk
+	// before flipping the control entry. A crash mid-write can then never
+	// damage the last good copy of a stream. Costs a sync per write and
+	// leaves more gaps behind for the compactor.
+	private final static boolean USE_COPY_ON_WRITE = false;
+
+	// With copy on write the sectors of a replaced stream are only handed
+	// out again once the control entry pointing away from them has been
+	// forced. Extents are packed as start << 32 | count.
+	private final static int PENDING_RELEASE_INITIAL = 16;
 
 	// getChunkInformation() result structure
 	private final static int INFO_SECTOR_START = 0;
@@ -184,41 +385,130 @@ public final class RegionFile {
 	// Masks for cracking a control entry. Upper byte is
 	// not used and reserved.
 
+	// Codec used when the caller doesn't specify one
+	private final static ChunkStreamCodec DEFAULT_CODEC = ChunkStreamCodec.DEFLATE;
+
+	// Deflate with a dictionary trained from the world's own chunks once
+	// one is available for the region directory. Streams written this way
+	// can't be read by builds that predate the dictionary codec.
+	final static boolean USE_DICTIONARY = false;
+
+	// Fetch the neighbors of a chunk that is read into ChunkReadAhead in the
+	// background. Not used with mapped reads since those are served from
+	// the page cache anyway.
+	private final static boolean USE_READ_AHEAD = false;
+
+	// Start the reads of queued chunk loads in ChunkAsyncReader so the chunk
+	// IO threads only decode. Not used with mapped reads for the same
+	// reason as read ahead. Public so the chunk load queue can skip the
+	// prefetch call altogether when off.
+	public final static boolean USE_ASYNC_READS = false;
+
+	// Keep the streams of recently written and read chunks in
+	// ChunkStreamCache so a chunk that is loaded again soon after doesn't go
+	// back to the disk. Off by default: the page cache already serves most
+	// of those reads, and the cache costs a copy on every read and write
+	// plus a trip through its global lock.
+	private final static boolean USE_STREAM_CACHE = false;
+
 	// Standard options for opening a FileChannel
 	private final static Set<StandardOpenOption> OPEN_OPTIONS = Sets.newHashSet(StandardOpenOption.READ,
 			StandardOpenOption.WRITE, StandardOpenOption.CREATE);
 
+	// Identifies the region in shared caches
+	private final static AtomicInteger regionIds = new AtomicInteger();
+
 	// Instance members
+	private final int regionId = regionIds.incrementAndGet();
 	private String name;
+	private File file;
 	private FileChannel channel;
-	private BitSet sectorUsed;
+	private AsynchronousFileChannel asyncChannel;
+
+	// Gathering writes go through the channel position, which is shared
+	// state. Positional reads and writes are not affected.
+	private final Object gatherLock = new Object();
+	private SectorAllocator sectorUsed;
 	private int sectorsInFile;
 	private MappedByteBuffer control;
+	private boolean sectorMapDirty;
+	private long[] pendingRelease = new long[PENDING_RELEASE_INITIAL];
+	private int pendingReleaseCount;
+	private MappedByteBuffer[] dataWindows = new MappedByteBuffer[0];
+
+	// IO as it happens. getStats() hands out copies with the sector
+	// accounting filled in.
+	private final RegionFileStats stats = new RegionFileStats();
 
 	// Cache to avoid going to underlying map if possible.
 	private int[] chunkInfo = new int[CHUNKS_IN_REGION];
 	private byte[] streamVersionInfo = new byte[CHUNKS_IN_REGION];
+	private int[] chunkTimestamps = new int[CHUNKS_IN_REGION];
+
+	// Bumped every time a stream changes so that a copy read earlier can be
+	// recognized as out of date.
+	private final AtomicIntegerArray writeCounts = new AtomicIntegerArray(CHUNKS_IN_REGION);
+
+	// Point in time copy of the control tables while a snapshot is being
+	// exported. Sectors the copy refers to are not released until the
+	// snapshot ends, and all writes go to fresh sectors.
+	private int[] snapshotInfo;
+	private byte[] snapshotVersions;
+	private int[] snapshotTimestamps;
+	private File snapshotTarget;
+	private final Object snapshotLock = new Object();
+
+	// Write time of streams that recompression found nothing to gain on,
+	// plus one so that zero means none
+	private int[] recompressSkipped;
+
+	// Stream checksum to a stream last known to have it. Built on the first
+	// write that looks for a duplicate. Entries can be stale; candidates
+	// are always verified.
+	private Map<Integer, Integer> dedupIndex;
+	private boolean dedupIndexing;
 
 	// Used to logically lock a chunk while it is being operated on.
 	// It is expected that concurrent calls into RegionFile will be
 	// for different chunks thus allowing good concurrency, but in
 	// the off chance a chunk is being worked on by different threads
-	// we need to put in a guard.
-	private final byte[] chunkLockVector = new byte[CHUNKS_IN_REGION];
+	// we need to put in a guard. Locks are striped across the streams.
+	// Both coordinates go into the stripe, x + 9z, so a row or column of
+	// the region is spread over 32 stripes and the chunks of a 5x5 view
+	// all land on different ones. Stripe count is a power of two.
+	private final static int CHUNK_LOCK_STRIPES = 64;
+	private final static int CHUNK_LOCK_STRIPE_Z_STEP = 9;
+	private final ReentrantReadWriteLock[] chunkLocks = new ReentrantReadWriteLock[CHUNK_LOCK_STRIPES];
+
+	{
+		for (int i = 0; i < CHUNK_LOCK_STRIPES; i++)
+			this.chunkLocks[i] = new ReentrantReadWriteLock();
+	}
 
-	private void lockChunk(final int streamId) throws Exception {
-		synchronized (chunkLockVector) {
-			while (chunkLockVector[streamId] != 0)
-				chunkLockVector.wait();
-			chunkLockVector[streamId] = 1;
-		}
+	private static int lockStripe(final int streamId) {
+		final int x = streamId % REGION_CHUNK_DIMENSION;
+		final int z = streamId / REGION_CHUNK_DIMENSION;
+		return (x + z * CHUNK_LOCK_STRIPE_Z_STEP) & (CHUNK_LOCK_STRIPES - 1);
 	}
 
-	private void unlockChunk(final int streamId) throws Exception {
-		synchronized (chunkLockVector) {
-			chunkLockVector[streamId] = 0;
-			chunkLockVector.notifyAll();
-		}
+	private ReentrantReadWriteLock chunkLock(final int streamId) {
+		return this.chunkLocks[lockStripe(streamId)];
+	}
+
+	private void lockChunkRead(final int streamId) {
+		chunkLock(streamId).readLock().lock();
+	}
+
+	private void unlockChunkRead(final int streamId) {
+		chunkLock(streamId).readLock().unlock();
+	}
+
+	private void lockChunk(final int streamId) {
+		chunkLock(streamId).writeLock().lock();
+	}
+
+	private void unlockChunk(final int streamId) {
+		chunkLock(streamId).writeLock().unlock();
 	}
 
 	private void initializeHeader() {
@@ -238,12 +528,16 @@ public final class RegionFile {
 		try {
 
 			this.name = regionFile.getPath();
+			this.file = regionFile;
+			deleteSpoolFiles();
 			this.channel = FileChannel.open(regionFile.toPath(), OPEN_OPTIONS);
 			this.sectorsInFile = sectorCount();
 			final boolean needsInit = this.sectorsInFile < NUM_CONTROL_SECTORS;
 
-			if (needsInit)
+			if (needsInit) {
+				this.sectorUsed = newSectorAllocator();
 				extendFile(EXTEND_SECTOR_QUANTITY + NUM_CONTROL_SECTORS);
+			}
 
 			this.control = this.channel.map(MapMode.READ_WRITE, 0, SECTOR_SIZE * NUM_CONTROL_SECTORS);
 
@@ -252,48 +546,153 @@ public final class RegionFile {
 			else
 				readHeader();
 
-			// Pre-allocate enough bits to fit either the number of sectors
-			// currently present in the file, or 1024 minimum size chunk
-			// streams.
-			this.sectorUsed = new BitSet(Math.max(CHUNKS_IN_REGION * MIN_SECTORS_PER_CHUNK_STREAM + NUM_CONTROL_SECTORS,
-					this.sectorsInFile));
-			this.sectorUsed.set(0, NUM_CONTROL_SECTORS); // Control sectors
-
 			// If the region file has stream data process the control
-			// cache information and initialize the used sector map.
+			// cache information and initialize the used sector map. A
+			// map saved on a clean close is used as is.
 			if (!needsInit) {
-				for (int j = 0; j < CHUNKS_IN_REGION; j++) {
-					this.chunkInfo[j] = this.control.getInt((j * INT_SIZE) + CHUNK_INFO_TABLE_OFFSET);
-					this.streamVersionInfo[j] = this.control.get(j + CHUNK_STREAM_VERSION_TABLE_OFFSET);
-					final int[] streamInfo = getChunkInformation(j);
-					if (streamInfo != NO_CHUNK_INFORMATION) {
-						final int sectorNumber = streamInfo[INFO_SECTOR_START];
-						final int numberOfSectors = streamInfo[INFO_SECTOR_COUNT];
-						if (sectorNumber + numberOfSectors <= this.sectorsInFile) {
-							this.sectorUsed.set(sectorNumber, sectorNumber + numberOfSectors);
-						} else {
-							logger.error(
-									String.format("%s: stream control data exceeds file size (streamId: %d, info: %d)",
-											name, j, streamInfo));
-							this.control.putInt((j + CHUNK_INFO_TABLE_OFFSET) * INT_SIZE, 0);
-							this.chunkInfo[j] = 0;
-							this.streamVersionInfo[j] = 0;
-						}
-					}
+				loadControlTables();
+				if (!PERSIST_SECTOR_MAP || !loadSectorMap()) {
+					this.sectorUsed = newSectorAllocator();
+					rebuildSectorMap();
 				}
+				loadSharedExtents();
 			}
 		} catch (final Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	private SectorAllocator newSectorAllocator() {
+		// Pre-allocate enough bits to fit either the number of sectors
+		// currently present in the file, or 1024 minimum size chunk
+		// streams.
+		return new SectorAllocator(NUM_CONTROL_SECTORS, this.sectorsInFile,
+				CHUNKS_IN_REGION * MIN_SECTORS_PER_CHUNK_STREAM + NUM_CONTROL_SECTORS);
+	}
+
+	private void loadControlTables() {
+		final ByteBuffer tables = this.control.duplicate();
+		tables.position(CHUNK_INFO_TABLE_OFFSET);
+		tables.asIntBuffer().get(this.chunkInfo);
+		tables.position(CHUNK_STREAM_VERSION_TABLE_OFFSET);
+		tables.get(this.streamVersionInfo);
+		tables.position(CHUNK_TIMESTAMP_TABLE_OFFSET);
+		tables.asIntBuffer().get(this.chunkTimestamps);
+	}
+
+	private boolean loadSectorMap() {
+		if (this.control.getInt(SECTOR_MAP_STATE_OFFSET) != SECTOR_MAP_CLEAN
+				|| this.control.getInt(SECTOR_MAP_SECTORS_OFFSET) != this.sectorsInFile
+				|| this.sectorsInFile > SECTOR_MAP_MAX_SECTORS)
+			return false;
+
+		final ByteBuffer map = this.control.duplicate();
+		map.position(SECTOR_MAP_OFFSET).limit(SECTOR_MAP_OFFSET + SECTOR_MAP_SIZE);
+		this.sectorUsed = new SectorAllocator(NUM_CONTROL_SECTORS, this.sectorsInFile,
+				CHUNKS_IN_REGION * MIN_SECTORS_PER_CHUNK_STREAM + NUM_CONTROL_SECTORS, BitSet.valueOf(map));
+		return true;
+	}
+
+	// Streams that point at the same sectors share them. The reference
+	// counts are not saved; they are rebuilt from the control entries.
+	private void loadSharedExtents() {
+		final BitSet starts = new BitSet();
+		for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+			if (this.chunkInfo[j] == 0)
+				continue;
+			final int sectorNumber = (this.chunkInfo[j] & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
+			if (starts.get(sectorNumber))
+				this.sectorUsed.share(sectorNumber);
+			else
+				starts.set(sectorNumber);
+		}
+	}
+
+	private void rebuildSectorMap() {
+		for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+			final int streamInfo = this.chunkInfo[j];
+			if (streamInfo == 0)
+				continue;
+			final int sectorNumber = (streamInfo & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
+			final int numberOfSectors = streamInfo & SECTOR_COUNT_MASK;
+			if (sectorNumber + numberOfSectors <= this.sectorsInFile) {
+				this.sectorUsed.markUsed(sectorNumber, numberOfSectors);
+			} else {
+				logger.error(String.format("%s: stream control data exceeds file size (streamId: %d, info: %d)",
+						name, j, streamInfo));
+				this.control.putInt((j * INT_SIZE) + CHUNK_INFO_TABLE_OFFSET, 0);
+				this.chunkInfo[j] = 0;
+				this.streamVersionInfo[j] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Flags the saved sector map as stale before the first change to the
+	 * control entries. The flag is forced to disk ahead of the change so a
+	 * crash can't leave a clean map describing an older layout.
+	 */
+	private void markSectorMapDirty() {
+		if (this.sectorMapDirty)
+			return;
+		this.sectorMapDirty = true;
+		if (this.control.getInt(SECTOR_MAP_STATE_OFFSET) != SECTOR_MAP_DIRTY) {
+			this.control.putInt(SECTOR_MAP_STATE_OFFSET, SECTOR_MAP_DIRTY);
+			this.control.force();
+		}
+	}
+
+	private void saveSectorMap() {
+		if (!this.sectorMapDirty && this.control.getInt(SECTOR_MAP_STATE_OFFSET) == SECTOR_MAP_CLEAN)
+			return;
+
+		markSectorMapDirty();
+		if (this.sectorsInFile > SECTOR_MAP_MAX_SECTORS)
+			return;
+
+		// Map goes down first, then the flag that says it can be trusted.
+		final byte[] bits = this.sectorUsed.toByteArray();
+		final ByteBuffer map = this.control.duplicate();
+		map.position(SECTOR_MAP_OFFSET);
+		map.put(EMPTY_SECTOR, 0, SECTOR_MAP_SIZE);
+		map.position(SECTOR_MAP_OFFSET);
+		map.put(bits, 0, Math.min(bits.length, SECTOR_MAP_SIZE));
+		this.control.putInt(SECTOR_MAP_SECTORS_OFFSET, this.sectorsInFile);
+		this.control.force();
+		this.control.putInt(SECTOR_MAP_STATE_OFFSET, SECTOR_MAP_CLEAN);
+		this.sectorMapDirty = false;
+	}
+
 	private void extendFile(final int count) throws Exception {
+		final long start = System.nanoTime();
 		final int base = sectorCount();
-		for (int i = 0; i < count; i++)
-			writeSectors(base + i, EMPTY_SECTOR, SECTOR_SIZE);
+
+		if (EXTEND_STRATEGY == EXTEND_SPARSE) {
+			writeSectors(base + count - 1, EMPTY_SECTOR, SECTOR_SIZE);
+		} else if (EXTEND_STRATEGY == EXTEND_SINGLE_WRITE) {
+			// The zero buffer is shared between region files so work
+			// with a duplicate.
+			final ByteBuffer zeros = EMPTY_SECTORS.duplicate();
+			long position = (long) base * SECTOR_SIZE;
+			final long end = (long) (base + count) * SECTOR_SIZE;
+			while (position < end) {
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), end - position));
+				while (zeros.hasRemaining())
+					position += this.channel.write(zeros, position);
+			}
+			this.stats.recordBytesWritten((long) count * SECTOR_SIZE);
+		} else {
+			for (int i = 0; i < count; i++)
+				writeSectors(base + i, EMPTY_SECTOR, SECTOR_SIZE);
+		}
+
 		this.sectorsInFile = sectorCount();
+		this.sectorUsed.extend(this.sectorsInFile);
 		if (base + count != this.sectorsInFile)
-			logger.error(String.format("%d: extend file incorrect length", name));
+			logger.error(String.format("%s: extend file incorrect length", name));
+
+		this.stats.recordExtension(System.nanoTime() - start);
 	}
 
 	private byte[] readSectors(final int sectorNumber, final int count, byte[] buffer) throws Exception {
@@ -302,18 +701,90 @@ public final class RegionFile {
 		if (buffer == null || buffer.length < dataLength)
 			buffer = new byte[dataLength];
 		final int bytesRead = channel.read(ByteBuffer.wrap(buffer, 0, dataLength), dataPosition);
+		this.stats.recordBytesRead(Math.max(bytesRead, 0));
 		if (bytesRead != dataLength)
 			logger.error(String.format("%s: Incorrect bytes read: %d, expected %d", name, bytesRead, dataLength));
 
 		return buffer;
 	}
 
+	private void readSectors(final int sectorNumber, final ByteBuffer data) throws Exception {
+		final int dataLength = data.remaining();
+		long position = (long) sectorNumber * SECTOR_SIZE;
+		int bytesRead = 0;
+		while (data.hasRemaining()) {
+			final int n = channel.read(data, position);
+			if (n < 0)
+				break;
+			position += n;
+			bytesRead += n;
+		}
+		this.stats.recordBytesRead(bytesRead);
+		if (bytesRead != dataLength)
+			logger.error(String.format("%s: Incorrect bytes read: %d, expected %d", name, bytesRead, dataLength));
+	}
+
 	private void writeSectors(final int sectorNumber, final byte[] buffer, final int length) throws Exception {
-		final int bytesWritten = channel.write(ByteBuffer.wrap(buffer, 0, length), sectorNumber * SECTOR_SIZE);
+		writeSectors(sectorNumber, ByteBuffer.wrap(buffer, 0, length));
+	}
+
+	// The buffer position is left where it was
+	private void writeSectors(final int sectorNumber, final ByteBuffer data) throws Exception {
+		final int base = data.position();
+		final int length = data.remaining();
+		final int bytesWritten = channel.write(data, (long) sectorNumber * SECTOR_SIZE);
+		this.stats.recordBytesWritten(bytesWritten);
+		data.position(base);
 		if (bytesWritten != length)
 			logger.error(String.format("%s: Incorrect bytes written: %d, expected %d", name, bytesWritten, length));
 	}
 
+	/**
+	 * Copies sectors out of a mapped window of the data area. The copy is
+	 * made under the monitor so a window is never unmapped while it is
+	 * being read, and nothing refers to a window once this returns. The
+	 * buffer position is left where it was.
+	 */
+	private void mapSectors(final int sectorNumber, final int count, final ByteBuffer data) throws Exception {
+		final int windowId = sectorNumber / DATA_WINDOW_SECTORS;
+		final int windowStart = windowId * DATA_WINDOW_SECTORS;
+		final int requiredLength = (sectorNumber + count - windowStart) * SECTOR_SIZE;
+
+		synchronized (this) {
+			if (windowId >= this.dataWindows.length)
+				this.dataWindows = Arrays.copyOf(this.dataWindows, windowId + 1);
+
+			// Windows at the end of the file are clamped to the file size.
+			// Remap if the file has grown past what was mapped.
+			MappedByteBuffer window = this.dataWindows[windowId];
+			if (window == null || window.capacity() < requiredLength) {
+				if (window != null)
+					freeMemoryMap(window);
+				final int sectors = Math.min(DATA_WINDOW_SECTORS + MAX_SECTORS_PER_CHUNK_STREAM,
+						this.sectorsInFile - windowStart);
+				window = this.channel.map(MapMode.READ_ONLY, (long) windowStart * SECTOR_SIZE,
+						(long) sectors * SECTOR_SIZE);
+				this.dataWindows[windowId] = window;
+			}
+
+			final ByteBuffer view = window.duplicate();
+			final int offset = (sectorNumber - windowStart) * SECTOR_SIZE;
+			view.limit(offset + count * SECTOR_SIZE).position(offset);
+			final int base = data.position();
+			data.put(view);
+			data.position(base);
+		}
+		this.stats.recordBytesRead(count * SECTOR_SIZE);
+	}
+
+	// Caller holds the monitor
+	private void freeDataWindows() {
+		for (int i = 0; i < this.dataWindows.length; i++)
+			if (this.dataWindows[i] != null)
+				freeMemoryMap(this.dataWindows[i]);
+		this.dataWindows = new MappedByteBuffer[0];
+	}
+
 	private boolean isValidFileRegion(final int sector, final int count) {
 		return sector >= NUM_CONTROL_SECTORS && (sector + count) <= this.sectorUsed.length();
 	}
@@ -332,24 +803,42 @@ public final class RegionFile {
 			return false;
 
 		final int streamId = getChunkStreamId(regionX, regionZ);
-		lockChunk(streamId);
+		lockChunkRead(streamId);
 
 		try {
 			return getStreamVersion(streamId) != CHUNK_STREAM_VERSION_UNKNOWN;
 		} finally {
-			unlockChunk(streamId);
+			unlockChunkRead(streamId);
 		}
 	}
 
 	public DataInputStream getChunkDataInputStream(final int regionX, final int regionZ) throws Exception {
+		final long start = System.nanoTime();
+		final DataInputStream stream = readChunkStream(regionX, regionZ, true);
+		if (stream != null)
+			this.stats.recordRead(System.nanoTime() - start);
+		return stream;
+	}
+
+	/**
+	 * Reads a chunk stream. Background readers that pass over a whole region
+	 * go around ChunkStreamCache so they neither flush it nor, for the
+	 * scrubber, get served a copy in place of what is on the disk.
+	 */
+	private DataInputStream readChunkStream(final int regionX, final int regionZ, final boolean useCache)
+			throws Exception {
 
 		if (outOfBounds(regionX, regionZ))
 			return null;
 
 		final int streamId = getChunkStreamId(regionX, regionZ);
-		lockChunk(streamId);
+		lockChunkRead(streamId);
 
 		try {
+			final byte version = getStreamVersion(streamId);
+			if ((version & CHUNK_STREAM_EXTERNAL_FLAG) != 0)
+				return getExternalDataInputStream(regionX, regionZ, version);
+
 			final int[] info = getChunkInformation(streamId);
 			if (info == NO_CHUNK_INFORMATION)
 				return null;
@@ -358,7 +847,8 @@ public final class RegionFile {
 			final int numberOfSectors = info[INFO_SECTOR_COUNT];
 			final int streamVersion = info[INFO_STREAM_VERSION];
 
-			if (streamVersion != CHUNK_STREAM_VERSION_FLATION) {
+			final ChunkStreamCodec codec = ChunkStreamCodec.forVersion(streamVersion);
+			if (codec == null) {
 				logger.error(String.format("%s: Unrecognized stream version: %d", name, streamVersion));
 				return null;
 			}
@@ -372,15 +862,51 @@ public final class RegionFile {
 				final ChunkInputStream stream = ChunkInputStream.getStream();
 				final int dataLength = numberOfSectors * SECTOR_SIZE;
 
-				final int streamLength = getInt(
-						readSectors(sectorNumber, numberOfSectors, stream.getBuffer(dataLength)));
+				if (USE_MAPPED_DATA) {
+					// Copied out while the read lock is held. Once it is
+					// released the sectors can go to another stream.
+					final ByteBuffer data = stream.getDirectBuffer(dataLength);
+					mapSectors(sectorNumber, numberOfSectors, data);
+					return bakeStream(regionX, regionZ, stream, codec, data, useCache);
+				}
+
+				if (USE_ASYNC_READS) {
+					final ByteBuffer data = ChunkAsyncReader.take(this.regionId, streamId);
+					if (data != null && data.limit() == dataLength) {
+						this.stats.recordBytesRead(dataLength);
+						stream.setDirectBuffer(data);
+						return bakeStream(regionX, regionZ, stream, codec, data, useCache);
+					}
+					DirectBufferPool.release(data);
+				}
+
+				if (USE_STREAM_CACHE && useCache) {
+					// Entries were checked when they went in
+					final byte[] cached = ChunkStreamCache.get(this.regionId, streamId);
+					if (cached != null) {
+						System.arraycopy(cached, 0, stream.getBuffer(cached.length), 0, cached.length);
+						return bake(regionX, regionZ, stream, codec, cached.length - CHUNK_STREAM_HEADER_SIZE);
+					}
+				}
+
+				if (USE_READ_AHEAD) {
+					final byte[] cached = ChunkReadAhead.take(this.regionId, streamId);
+					scheduleReadAhead(regionX, regionZ);
+					if (cached != null) {
+						System.arraycopy(cached, 0, stream.getBuffer(dataLength), 0, cached.length);
+						return bakeStream(regionX, regionZ, stream, codec, dataLength, useCache);
+					}
+				}
 
-				if (streamLength > 0 && streamLength <= (dataLength - CHUNK_STREAM_HEADER_SIZE))
-					return stream.bake();
+				if (DirectBufferPool.USE_DIRECT_BUFFERS) {
+					final ByteBuffer data = stream.getDirectBuffer(dataLength);
+					readSectors(sectorNumber, data);
+					data.flip();
+					return bakeStream(regionX, regionZ, stream, codec, data, useCache);
+				}
 
-				logger.error(String.format("%s: x%d z%d streamLength (%d) return null", name, regionX, regionZ,
-						streamLength));
-				ChunkInputStream.returnStream(stream);
+				readSectors(sectorNumber, numberOfSectors, stream.getBuffer(dataLength));
+				return bakeStream(regionX, regionZ, stream, codec, dataLength, useCache);
 			} else {
 				logger.error(String.format("%s: returning null (%d, %d) for streamId %d", name, sectorNumber,
 						numberOfSectors, streamId));
@@ -389,192 +915,2374 @@ public final class RegionFile {
 		} catch (final Exception e) {
 			e.printStackTrace();
 		} finally {
-			unlockChunk(streamId);
+			unlockChunkRead(streamId);
 		}
 
 		return null;
 	}
 
-	public DataOutputStream getChunkDataOutputStream(final int regionX, final int regionZ) {
-		if (outOfBounds(regionX, regionZ))
+	private DataInputStream bake(final int regionX, final int regionZ, final ChunkInputStream stream,
+			final ChunkStreamCodec codec, final int streamLength) throws IOException {
+		try {
+			final ChunkStreamCodec actual = streamCodec(
+					stream.getBuffer(CHUNK_STREAM_HEADER_SIZE)[CHUNK_STREAM_CODEC_OFFSET], codec);
+			return stream.bake(actual, streamLength, dictionaryFor(actual));
+		} catch (final IOException ex) {
+			logger.error(String.format("%s: x%d z%d %s return null", name, regionX, regionZ, ex.getMessage()));
+			ChunkInputStream.returnStream(stream);
 			return null;
+		}
+	}
+
+	// The codec recorded in the stream header if there is one, otherwise
+	// the one from the stream version table.
+	private static ChunkStreamCodec streamCodec(final byte recorded, final ChunkStreamCodec codec) {
+		if (recorded == CHUNK_STREAM_VERSION_UNKNOWN || recorded == codec.version())
+			return codec;
+		final ChunkStreamCodec actual = ChunkStreamCodec.forVersion(recorded);
+		return actual != null ? actual : codec;
+	}
+
+	private void scheduleReadAhead(final int regionX, final int regionZ) {
+		final int[] neighbors = new int[8];
+		int count = 0;
+		for (int dz = -1; dz <= 1; dz++)
+			for (int dx = -1; dx <= 1; dx++) {
+				final int x = regionX + dx;
+				final int z = regionZ + dz;
+				if ((dx == 0 && dz == 0) || outOfBounds(x, z))
+					continue;
+				final int streamId = getChunkStreamId(x, z);
+				if (this.chunkInfo[streamId] != 0 && !ChunkReadAhead.contains(this.regionId, streamId))
+					neighbors[count++] = streamId;
+			}
+		if (count > 0)
+			ChunkReadAhead.schedule(this, Arrays.copyOf(neighbors, count));
+	}
+
+	/**
+	 * Starts reading a chunk stream in ChunkAsyncReader ahead of a queued
+	 * chunk load. The chunk lock is only tried since this is called from the
+	 * server thread. Writers and relocations drop the read while holding the
+	 * write lock, so a read that is picked up is still current.
+	 */
+	void readAsync(final int regionX, final int regionZ) {
+		if (!USE_ASYNC_READS || USE_MAPPED_DATA || outOfBounds(regionX, regionZ))
+			return;
+
+		final int streamId = getChunkStreamId(regionX, regionZ);
+		final ReentrantReadWriteLock.ReadLock lock = chunkLock(streamId).readLock();
+		if (!lock.tryLock())
+			return;
+
+		try {
+			if ((getStreamVersion(streamId) & CHUNK_STREAM_EXTERNAL_FLAG) != 0)
+				return;
+
+			final int[] info = getChunkInformation(streamId);
+			if (info == NO_CHUNK_INFORMATION)
+				return;
+
+			final AsynchronousFileChannel async;
+			synchronized (this) {
+				if (this.channel == null || !isValidFileRegion(info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT]))
+					return;
+				if (this.asyncChannel == null)
+					this.asyncChannel = ChunkAsyncReader.open(this.file);
+				async = this.asyncChannel;
+			}
 
-		return ChunkOutputStream.getStream(regionX, regionZ, this);
+			ChunkAsyncReader.schedule(this.regionId, streamId, async, (long) info[INFO_SECTOR_START] * SECTOR_SIZE,
+					info[INFO_SECTOR_COUNT] * SECTOR_SIZE);
+		} catch (final Exception e) {
+			// The blocking read will report any trouble
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	protected int findContiguousSectors(final int count) {
-		// Start the search after the control sectors
-		int index = NUM_CONTROL_SECTORS;
-		do {
-			// Find the first clear bit. If it winds up
-			// at the end or past, we are appending
-			index = this.sectorUsed.nextClearBit(index);
-			if (index >= this.sectorsInFile)
-				return this.sectorsInFile;
+	/**
+	 * Pulls a chunk stream into ChunkReadAhead. The chunk read lock is held
+	 * so a write can't land between the read and the cache insert; writers
+	 * drop the cached copy while holding the write lock.
+	 */
+	void readAhead(final int streamId) {
+		lockChunkRead(streamId);
+		try {
+			if (ChunkReadAhead.contains(this.regionId, streamId))
+				return;
 
-			// Find the next used sector. If there isn't
-			// one we are free to write.
-			final int nextUsedSector = this.sectorUsed.nextSetBit(index);
-			if (nextUsedSector == -1)
-				return index;
+			final int[] info = getChunkInformation(streamId);
+			if (info == NO_CHUNK_INFORMATION)
+				return;
 
-			// If the region is large enough, go for it.
-			if ((nextUsedSector - index) >= count)
-				return index;
+			synchronized (this) {
+				if (this.channel == null || !isValidFileRegion(info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT]))
+					return;
+			}
 
-			// Doesn't fit our criteria. Advance to the
-			// used bit and start searching again.
-			index = nextUsedSector;
-		} while (index < this.sectorsInFile);
+			final byte[] buffer = readSectors(info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT], null);
+			final int streamLength = getInt(buffer);
+			if (streamLength > 0 && streamLength <= info[INFO_SECTOR_COUNT] * SECTOR_SIZE - CHUNK_STREAM_HEADER_SIZE)
+				ChunkReadAhead.put(this.regionId, streamId,
+						Arrays.copyOf(buffer, streamLength + CHUNK_STREAM_HEADER_SIZE));
+		} catch (final Exception e) {
+			// Region was closed underneath the fetch. Nothing to do.
+		} finally {
+			unlockChunkRead(streamId);
+		}
+	}
 
-		return this.sectorsInFile;
+	/**
+	 * Validates the stream data sitting in the buffer of the ChunkInputStream
+	 * and bakes it. The stream is returned to the free list if the data is
+	 * not good.
+	 */
+	private DataInputStream bakeStream(final int regionX, final int regionZ, final ChunkInputStream stream,
+			final ChunkStreamCodec codec, final int dataLength, final boolean useCache) throws Exception {
+		final byte[] buffer = stream.getBuffer(dataLength);
+		final int streamLength = getInt(buffer);
+
+		if (streamLength > 0 && streamLength <= (dataLength - CHUNK_STREAM_HEADER_SIZE)) {
+			if (checksumMatches(ByteBuffer.wrap(buffer), streamLength)) {
+				final DataInputStream result = bake(regionX, regionZ, stream, codec, streamLength);
+				if (result != null && useCache)
+					cacheStream(regionX, regionZ,
+							ByteBuffer.wrap(buffer, 0, streamLength + CHUNK_STREAM_HEADER_SIZE));
+				return result;
+			}
+			logger.error(String.format("%s: x%d z%d checksum mismatch return null", name, regionX, regionZ));
+		} else {
+			logger.error(String.format("%s: x%d z%d streamLength (%d) return null", name, regionX, regionZ,
+					streamLength));
+		}
+		ChunkInputStream.returnStream(stream);
+		return null;
 	}
 
-	void write(final int regionX, final int regionZ, final byte[] buffer, final int length) throws Exception {
+	/**
+	 * Same as above for stream data that sits in a buffer, such as a mapped
+	 * window or a direct buffer. The buffer runs from the stream header to
+	 * the end of the sectors read.
+	 */
+	private DataInputStream bakeStream(final int regionX, final int regionZ, final ChunkInputStream stream,
+			final ChunkStreamCodec codec, final ByteBuffer data, final boolean useCache) throws Exception {
+		final int streamLength = data.getInt(data.position());
+
+		if (streamLength > 0 && streamLength <= (data.remaining() - CHUNK_STREAM_HEADER_SIZE)) {
+			if (checksumMatches(data, streamLength)) {
+				final ByteBuffer whole = data.duplicate();
+				whole.limit(whole.position() + CHUNK_STREAM_HEADER_SIZE + streamLength);
+				final ChunkStreamCodec actual = streamCodec(data.get(data.position() + CHUNK_STREAM_CODEC_OFFSET),
+						codec);
+				final int streamStart = data.position() + CHUNK_STREAM_HEADER_SIZE;
+				data.limit(streamStart + streamLength).position(streamStart);
+				try {
+					final DataInputStream result = stream.bake(actual, data, dictionaryFor(actual));
+					if (useCache)
+						cacheStream(regionX, regionZ, whole);
+					return result;
+				} catch (final IOException ex) {
+					logger.error(String.format("%s: x%d z%d %s return null", name, regionX, regionZ,
+							ex.getMessage()));
+				}
+			} else {
+				logger.error(String.format("%s: x%d z%d checksum mismatch return null", name, regionX, regionZ));
+			}
+		} else {
+			logger.error(String.format("%s: x%d z%d streamLength (%d) return null", name, regionX, regionZ,
+					streamLength));
+		}
+		ChunkInputStream.returnStream(stream);
+		return null;
+	}
 
-		if (outOfBounds(regionX, regionZ))
-			return;
+	/**
+	 * Keeps a copy of a stream that was read and checked out in
+	 * ChunkStreamCache. The buffer runs from the stream header to the end of
+	 * the stream. Caller holds the chunk read lock.
+	 */
+	private void cacheStream(final int regionX, final int regionZ, final ByteBuffer data) {
+		if (USE_STREAM_CACHE)
+			ChunkStreamCache.put(this.regionId, getChunkStreamId(regionX, regionZ), data);
+	}
 
-		// Incoming buffer has header incorporated. Need to enforce the
-		// minimum sectors per chunk stream policy.
-		int sectorsRequired = Math.max((length + SECTOR_SIZE - 1) / SECTOR_SIZE, MIN_SECTORS_PER_CHUNK_STREAM);
-		if (sectorsRequired > MAX_SECTORS_PER_CHUNK_STREAM) {
-			logger.error("Chunk stream required more than " + MAX_SECTORS_PER_CHUNK_STREAM + "sectors to write");
-			return;
+	/**
+	 * Reads several chunk streams in one pass. The requested streams are
+	 * sorted by file position and streams that sit close together are read
+	 * with a single read. The result lines up with the coordinates passed in,
+	 * with null for chunks that are not present or could not be read.
+	 */
+	public DataInputStream[] getChunkDataInputStreams(final int[] regionX, final int[] regionZ) throws Exception {
+
+		final int size = regionX.length;
+		final DataInputStream[] result = new DataInputStream[size];
+
+		// Mapped windows already avoid the reads
+		if (USE_MAPPED_DATA) {
+			for (int i = 0; i < size; i++)
+				result[i] = getChunkDataInputStream(regionX[i], regionZ[i]);
+			return result;
 		}
 
-		final int streamId = getChunkStreamId(regionX, regionZ);
-		lockChunk(streamId);
+		final long start = System.nanoTime();
+		final boolean[] stripes = new boolean[CHUNK_LOCK_STRIPES];
+		for (int i = 0; i < size; i++)
+			if (!outOfBounds(regionX[i], regionZ[i]))
+				stripes[lockStripe(getChunkStreamId(regionX[i], regionZ[i]))] = true;
+		for (int i = 0; i < CHUNK_LOCK_STRIPES; i++)
+			if (stripes[i])
+				this.chunkLocks[i].readLock().lock();
 
 		try {
 
-			final int[] info = getChunkInformation(streamId);
-			int sectorNumber = info[INFO_SECTOR_START];
-			final int currentSectorCount = info[INFO_SECTOR_COUNT];
+			// Gather up the streams that live in the region file. The
+			// index rides along in the low bits of the sort key.
+			final int[][] info = new int[size][];
+			final long[] order = new long[size];
+			int count = 0;
 
-			// A new stream is required if:
-			//
-			// - Its a brand new chunk stream for the file
-			//
-			// - The size of the incoming stream is greater than the current
-			// sector allocation.
-			//
-			// - The size of the incoming stream is less, and exceeds the
-			// allowed shrinkage amount
-			final boolean newChunkStream = sectorNumber == 0 || sectorsRequired > currentSectorCount
-					|| sectorsRequired < (currentSectorCount - ALLOWED_SECTOR_SHRINKAGE);
+			synchronized (this) {
+				for (int i = 0; i < size; i++) {
+					if (outOfBounds(regionX[i], regionZ[i]))
+						continue;
+					final int streamId = getChunkStreamId(regionX[i], regionZ[i]);
+					final byte version = getStreamVersion(streamId);
+					if ((version & CHUNK_STREAM_EXTERNAL_FLAG) != 0)
+						continue;
+					info[i] = getChunkInformation(streamId);
+					if (info[i] == NO_CHUNK_INFORMATION)
+						continue;
+					if (!isValidFileRegion(info[i][INFO_SECTOR_START], info[i][INFO_SECTOR_COUNT])) {
+						logger.error(String.format("%s: returning null (%d, %d) for streamId %d", name,
+								info[i][INFO_SECTOR_START], info[i][INFO_SECTOR_COUNT], streamId));
+						continue;
+					}
+					order[count++] = ((long) info[i][INFO_SECTOR_START] << 32) | i;
+				}
+			}
 
-			if (newChunkStream)
-				synchronized (this) {
-					// "Free" up the existing sectors
-					if (sectorNumber != 0)
-						this.sectorUsed.clear(sectorNumber, sectorNumber + currentSectorCount);
+			// External streams are read on their own
+			for (int i = 0; i < size; i++) {
+				if (info[i] == null && !outOfBounds(regionX[i], regionZ[i])) {
+					final byte version = getStreamVersion(getChunkStreamId(regionX[i], regionZ[i]));
+					if ((version & CHUNK_STREAM_EXTERNAL_FLAG) != 0)
+						result[i] = getExternalDataInputStream(regionX[i], regionZ[i], version);
+				}
+			}
 
-					// Find some free sectors to write on. If we can't find any
-					// need to extend the file.
-					sectorNumber = findContiguousSectors(sectorsRequired);
-					if (this.sectorsInFile - sectorNumber < sectorsRequired)
-						extendFile(Math.max(sectorsRequired, EXTEND_SECTOR_QUANTITY));
+			Arrays.sort(order, 0, count);
+
+			byte[] scratch = null;
+			int i = 0;
+			while (i < count) {
+				// Extend the run while the next stream is close enough
+				// and the read stays within limits.
+				final int first = (int) order[i];
+				final int runStart = info[first][INFO_SECTOR_START];
+				int runEnd = runStart + info[first][INFO_SECTOR_COUNT];
+				int j = i + 1;
+				for (; j < count; j++) {
+					final int[] next = info[(int) order[j]];
+					final int end = Math.max(runEnd, next[INFO_SECTOR_START] + next[INFO_SECTOR_COUNT]);
+					if (next[INFO_SECTOR_START] - runEnd > READ_MERGE_GAP_SECTORS || end - runStart > READ_MAX_SECTORS)
+						break;
+					runEnd = end;
+				}
+
+				scratch = readSectors(runStart, runEnd - runStart, scratch);
+
+				for (int k = i; k < j; k++) {
+					final int idx = (int) order[k];
+					final ChunkStreamCodec codec = ChunkStreamCodec.forVersion(info[idx][INFO_STREAM_VERSION]);
+					if (codec == null) {
+						logger.error(String.format("%s: Unrecognized stream version: %d", name,
+								info[idx][INFO_STREAM_VERSION]));
+						continue;
+					}
 
-					// Mark our sectors used and update the mapping
-					this.sectorUsed.set(sectorNumber, sectorNumber + sectorsRequired);
-					setChunkInformation(streamId, sectorNumber, sectorsRequired, CHUNK_STREAM_VERSION_FLATION);
+					final int dataLength = info[idx][INFO_SECTOR_COUNT] * SECTOR_SIZE;
+					final ChunkInputStream stream = ChunkInputStream.getStream();
+					System.arraycopy(scratch, (info[idx][INFO_SECTOR_START] - runStart) * SECTOR_SIZE,
+							stream.getBuffer(dataLength), 0, dataLength);
+					result[idx] = bakeStream(regionX[idx], regionZ[idx], stream, codec, dataLength, true);
 				}
 
-			writeSectors(sectorNumber, buffer, length);
+				i = j;
+			}
 
-		} catch (final Exception ex) {
-			ex.printStackTrace();
+		} catch (final Exception e) {
+			e.printStackTrace();
 		} finally {
-			unlockChunk(streamId);
+			for (int i = CHUNK_LOCK_STRIPES - 1; i >= 0; i--)
+				if (stripes[i])
+					this.chunkLocks[i].readLock().unlock();
 		}
-	}
 
-	private static int getChunkStreamId(final int regionX, final int regionZ) {
-		return regionX + regionZ * REGION_CHUNK_DIMENSION;
+		int streams = 0;
+		for (int i = 0; i < size; i++)
+			if (result[i] != null)
+				streams++;
+		if (streams > 0)
+			this.stats.recordBatchRead(streams, System.nanoTime() - start);
+		return result;
 	}
 
-	private int getInt(final byte[] buffer) {
-		return getInt(buffer, 0);
-	}
+	private DataInputStream getExternalDataInputStream(final int regionX, final int regionZ, final byte version)
+			throws Exception {
+		final ChunkStreamCodec codec = ChunkStreamCodec.forVersion(version & CHUNK_STREAM_VERSION_CODEC_MASK);
+		if (codec == null) {
+			logger.error(String.format("%s: Unrecognized stream version: %d", name, version));
+			return null;
+		}
 
-	private int getInt(final byte[] buffer, final int index) {
-		int base = index * INT_SIZE;
-		final int b0 = buffer[base++];
-		final int b1 = buffer[base++];
-		final int b2 = buffer[base++];
-		final int b3 = buffer[base];
-		return (b0 << 24) | ((b1 & 0xFF) << 16) | ((b2 & 0xFF) << 8) | (b3 & 0xFF);
+		final FileChannel sidecar = FileChannel.open(getSidecarFile(regionX, regionZ).toPath(),
+				StandardOpenOption.READ);
+		try {
+			final ChunkInputStream stream = ChunkInputStream.getStream();
+			final int dataLength = (int) sidecar.size();
+			final ByteBuffer data = ByteBuffer.wrap(stream.getBuffer(dataLength), 0, dataLength);
+			while (data.hasRemaining() && sidecar.read(data) != -1)
+				;
+
+			final int streamLength = getInt(data.array());
+			if (streamLength > 0 && streamLength <= (dataLength - CHUNK_STREAM_HEADER_SIZE)) {
+				if (checksumMatches(ByteBuffer.wrap(data.array()), streamLength))
+					return bake(regionX, regionZ, stream, codec, streamLength);
+				logger.error(String.format("%s: x%d z%d sidecar checksum mismatch return null", name, regionX,
+						regionZ));
+			} else {
+				logger.error(String.format("%s: x%d z%d sidecar streamLength (%d) return null", name, regionX,
+						regionZ, streamLength));
+			}
+			ChunkInputStream.returnStream(stream);
+			return null;
+		} finally {
+			sidecar.close();
+		}
 	}
 
-	private static boolean outOfBounds(final int regionX, final int regionZ) {
-		return regionX < 0 || regionX >= REGION_CHUNK_DIMENSION || regionZ < 0 || regionZ >= REGION_CHUNK_DIMENSION;
+	/**
+	 * Checks the payload of the stream against the checksum recorded in its
+	 * header. The buffer position is the start of the stream header. Direct
+	 * and mapped buffers are checksummed in place.
+	 */
+	private static boolean checksumMatches(final ByteBuffer stream, final int streamLength) {
+		final int base = stream.position();
+		if (!VERIFY_CHECKSUMS || (stream.get(base + CHUNK_STREAM_FLAGS_OFFSET) & CHUNK_STREAM_FLAG_CHECKSUM) == 0)
+			return true;
+
+		final CRC32 crc = new CRC32();
+		final ByteBuffer payload = stream.duplicate();
+		payload.limit(base + CHUNK_STREAM_HEADER_SIZE + streamLength).position(base + CHUNK_STREAM_HEADER_SIZE);
+		updateChecksum(crc, payload);
+		return (int) crc.getValue() == stream.getInt(base + CHUNK_STREAM_CHECKSUM_OFFSET);
 	}
 
-	public boolean isChunkSaved(final int regionX, final int regionZ) {
-		if (outOfBounds(regionX, regionZ))
-			return false;
-		return getChunkInformation(getChunkStreamId(regionX, regionZ)) != NO_CHUNK_INFORMATION;
+	/**
+	 * Adds the remaining bytes of the buffer to the checksum. The position
+	 * of the buffer is left alone. CRC32 can't take a ByteBuffer before
+	 * Java 8 so direct and mapped buffers are copied through a scratch
+	 * array.
+	 */
+	static void updateChecksum(final CRC32 crc, final ByteBuffer data) {
+		if (data.hasArray()) {
+			crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		final ByteBuffer source = data.duplicate();
+		final byte[] scratch = new byte[Math.min(source.remaining(), CHECKSUM_SCRATCH_SIZE)];
+		while (source.hasRemaining()) {
+			final int length = Math.min(source.remaining(), scratch.length);
+			source.get(scratch, 0, length);
+			crc.update(scratch, 0, length);
+		}
 	}
 
-	private byte getStreamVersion(final int streamId) {
-		return this.streamVersionInfo[streamId];
+	File getSidecarFile(final int regionX, final int regionZ) {
+		String base = this.file.getName();
+		if (base.endsWith(REGION_FILE_EXTENSION))
+			base = base.substring(0, base.length() - REGION_FILE_EXTENSION.length());
+		return new File(this.file.getParentFile(), new StringBuilder(64).append(base).append('.').append(regionX)
+				.append('.').append(regionZ).append(SIDECAR_FILE_EXTENSION).toString());
 	}
 
-	private int[] getChunkInformation(final int streamId) {
-		final int streamInfo = this.chunkInfo[streamId];
-		if (streamInfo == 0)
-			return NO_CHUNK_INFORMATION;
-
-		final int sectorNumber = (streamInfo & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
-		final int numberOfSectors = streamInfo & SECTOR_COUNT_MASK;
-		final byte streamVersion = this.streamVersionInfo[streamId];
+	/**
+	 * Creates a uniquely named file next to the region file for spooling an
+	 * oversized chunk stream. It is moved over the sidecar once complete.
+	 */
+	File createSpoolFile() throws IOException {
+		return File.createTempFile(spoolPrefix(), SPOOL_FILE_EXTENSION, this.file.getAbsoluteFile().getParentFile());
+	}
 
-		return new int[] { sectorNumber, numberOfSectors, streamVersion };
+	private String spoolPrefix() {
+		return this.file.getName() + '.';
 	}
 
-	private void setChunkInformation(final int streamId, final int sectorNumber, final int sectorCount,
-			final byte streamVersion) throws IOException {
-		final int streamInfo = (sectorNumber << SECTOR_START_SHIFT) & SECTOR_START_MASK
-				| (sectorCount & SECTOR_COUNT_MASK);
-		if(this.chunkInfo[streamId] != streamInfo) {
-			this.chunkInfo[streamId] = streamInfo;
-			this.control.putInt((streamId * INT_SIZE) + CHUNK_INFO_TABLE_OFFSET, streamInfo);
-		}
-		if(this.streamVersionInfo[streamId] != streamVersion) {
-			this.streamVersionInfo[streamId] = streamVersion;
-			this.control.put(streamId + CHUNK_STREAM_VERSION_TABLE_OFFSET, streamVersion);
+	// Removes spool files left behind by writes that were cut short. Only
+	// the open RegionFile writes to a region so none of its spools can be
+	// in use while it is being opened. Spools of other regions are left
+	// alone.
+	private void deleteSpoolFiles() {
+		final String prefix = spoolPrefix();
+		final File[] files = this.file.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null)
+			return;
+		for (final File spool : files) {
+			final String name = spool.getName();
+			if (name.startsWith(prefix) && name.endsWith(SPOOL_FILE_EXTENSION) && spool.delete())
+				logger.info("Deleted leftover spool file '" + spool + "'");
 		}
 	}
 
-	private int[] analyzeSectors() {
-		final int lastUsedSector = this.sectorUsed.length() - 1;
-		final int gapSectors = lastUsedSector - this.sectorUsed.cardinality() + 1;
+	/**
+	 * Copy of the encoded payload of a chunk stream, without the header, if
+	 * the stream was written with the specified codec. Returns null if it
+	 * wasn't, if the stream is held in a sidecar, or if it can't be read or
+	 * fails its checksum.
+	 */
+	byte[] getChunkStreamPayload(final int regionX, final int regionZ, final ChunkStreamCodec codec) {
+		if (outOfBounds(regionX, regionZ))
+			return null;
 
-		int generatedChunks = 0;
-		int sectors = 0;
-		for (int i = 0; i < CHUNKS_IN_REGION; i++) {
-			final int[] info = getChunkInformation(i);
-			if (info != NO_CHUNK_INFORMATION) {
-				generatedChunks++;
-				sectors += info[INFO_SECTOR_COUNT];
+		final int streamId = getChunkStreamId(regionX, regionZ);
+		lockChunkRead(streamId);
+
+		try {
+			final int[] info = getChunkInformation(streamId);
+			if (info == NO_CHUNK_INFORMATION || info[INFO_STREAM_VERSION] != codec.version())
+				return null;
+
+			synchronized (this) {
+				if (this.channel == null || !isValidFileRegion(info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT]))
+					return null;
+			}
+
+			final byte[] buffer = readSectors(info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT], null);
+			final int streamLength = getInt(buffer);
+			if (streamLength <= 0 || streamLength > info[INFO_SECTOR_COUNT] * SECTOR_SIZE - CHUNK_STREAM_HEADER_SIZE
+					|| !checksumMatches(ByteBuffer.wrap(buffer), streamLength))
+				return null;
+			return Arrays.copyOfRange(buffer, CHUNK_STREAM_HEADER_SIZE, CHUNK_STREAM_HEADER_SIZE + streamLength);
+		} catch (final Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			unlockChunkRead(streamId);
+		}
+	}
+
+	public DataOutputStream getChunkDataOutputStream(final int regionX, final int regionZ) {
+		return getChunkDataOutputStream(regionX, regionZ, defaultCodec());
+	}
+
+	public DataOutputStream getChunkDataOutputStream(final int regionX, final int regionZ,
+			final ChunkStreamCodec codec) {
+		if (outOfBounds(regionX, regionZ))
+			return null;
+
+		return ChunkOutputStream.getStream(regionX, regionZ, this, resolveCodec(codec));
+	}
+
+	File directory() {
+		return this.file.getAbsoluteFile().getParentFile();
+	}
+
+	/**
+	 * Dictionary for the region directory, or null if one hasn't been
+	 * trained yet.
+	 */
+	ChunkDictionary dictionary() {
+		return ChunkDictionary.forDirectory(directory());
+	}
+
+	private ChunkDictionary dictionaryFor(final ChunkStreamCodec codec) {
+		return codec.usesDictionary() ? dictionary() : null;
+	}
+
+	ChunkStreamCodec defaultCodec() {
+		return USE_DICTIONARY && dictionary() != null ? ChunkStreamCodec.DEFLATE_DICTIONARY : DEFAULT_CODEC;
+	}
+
+	/**
+	 * Falls back to plain deflate if the dictionary codec is asked for before
+	 * a dictionary is available. Sectioned streams only come from a
+	 * ChunkSectionWriter, so a plain stream asking for one is deflated as
+	 * usual.
+	 */
+	ChunkStreamCodec resolveCodec(final ChunkStreamCodec codec) {
+		if (codec.isSectioned())
+			return DEFAULT_CODEC;
+		return codec.usesDictionary() && dictionary() == null ? DEFAULT_CODEC : codec;
+	}
+
+	/**
+	 * Reads up to the specified number of chunk streams, spread across the
+	 * region, and returns their decoded contents. Used to train a
+	 * dictionary.
+	 */
+	List<byte[]> sampleChunkStreams(final int count) throws Exception {
+		final List<byte[]> samples = new ArrayList<byte[]>();
+		final int stride = Math.max(1, CHUNKS_IN_REGION / count);
+		for (int start = 0; start < stride && samples.size() < count; start++) {
+			for (int i = start; i < CHUNKS_IN_REGION && samples.size() < count; i += stride) {
+				final DataInputStream stream = readChunkStream(i % REGION_CHUNK_DIMENSION,
+						i / REGION_CHUNK_DIMENSION, false);
+				if (stream != null) {
+					try {
+						samples.add(ByteStreams.toByteArray(stream));
+					} finally {
+						stream.close();
+					}
+				}
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Creates a batch for writing several chunk streams to this region file
+	 * in one pass.
+	 */
+	public ChunkWriteBatch newWriteBatch() {
+		return new ChunkWriteBatch(this);
+	}
+
+	/**
+	 * Creates a writer for a chunk stream made up of independently deflated
+	 * blocks.
+	 */
+	public ChunkSectionWriter getChunkSectionWriter(final int regionX, final int regionZ) {
+		if (outOfBounds(regionX, regionZ))
+			return null;
+
+		return ChunkSectionWriter.getWriter(regionX, regionZ, this);
+	}
+
+	protected int findContiguousSectors(final int streamId, final int count) {
+		return findContiguousSectorsNear(count, USE_SPATIAL_PLACEMENT ? placementHint(streamId) : -1);
+	}
+
+	private int findContiguousSectorsNear(final int count, final int hint) {
+		commitReleases();
+
+		// Near the hint if there is room. Otherwise best fit from the
+		// free extents. If nothing fits the result will be the tail of
+		// the file and the caller extends.
+		if (hint != -1) {
+			final int near = this.sectorUsed.findNear(count, hint, PLACEMENT_WINDOW_SECTORS);
+			if (near != -1)
+				return near;
+		}
+		return this.sectorUsed.find(count);
+	}
+
+	/**
+	 * Sector just past the stream of the closest chunk that precedes the
+	 * specified chunk in Z-order, or -1 if none of them are present. Caller
+	 * holds the monitor.
+	 */
+	private int placementHint(final int streamId) {
+		final int rank = ZORDER_RANK[streamId];
+		for (int i = rank - 1; i >= 0 && i >= rank - PLACEMENT_LOOKBACK; i--) {
+			final int[] info = getChunkInformation(ZORDER[i]);
+			if (info != NO_CHUNK_INFORMATION)
+				return info[INFO_SECTOR_START] + info[INFO_SECTOR_COUNT];
+		}
+		return -1;
+	}
+
+	void write(final int regionX, final int regionZ, final byte[] buffer, final int length,
+			final ChunkStreamCodec codec) throws Exception {
+		write(regionX, regionZ, ByteBuffer.wrap(buffer, 0, length), codec);
+	}
+
+	/**
+	 * Writes a chunk stream. The stream, header included, runs from the
+	 * buffer position to its limit.
+	 */
+	void write(final int regionX, final int regionZ, final ByteBuffer buffer, final ChunkStreamCodec codec)
+			throws Exception {
+		final long start = System.nanoTime();
+		writeStream(regionX, regionZ, buffer, codec);
+		this.stats.recordWrite(System.nanoTime() - start);
+	}
+
+	private void writeStream(final int regionX, final int regionZ, final ByteBuffer buffer,
+			final ChunkStreamCodec codec) throws Exception {
+
+		if (outOfBounds(regionX, regionZ))
+			return;
+
+		// Incoming buffer has header incorporated. Need to enforce the
+		// minimum sectors per chunk stream policy.
+		final int sectorsRequired = sectorsRequired(buffer.remaining());
+		if (sectorsRequired > MAX_SECTORS_PER_CHUNK_STREAM) {
+			writeExternal(regionX, regionZ, buffer, codec);
+			return;
+		}
+
+		final int streamId = getChunkStreamId(regionX, regionZ);
+		lockChunk(streamId);
+
+		try {
+
+			final boolean wasExternal = (getStreamVersion(streamId) & CHUNK_STREAM_EXTERNAL_FLAG) != 0;
+			final int[] info = getChunkInformation(streamId);
+			int sectorNumber = info[INFO_SECTOR_START];
+			final int currentSectorCount = info[INFO_SECTOR_COUNT];
+
+			if (USE_DEDUP && adoptDuplicate(streamId, info, buffer, sectorsRequired, codec)) {
+				chunkWritten(streamId);
+				cacheWritten(streamId, buffer);
+				if (wasExternal && !preserveSidecar(regionX, regionZ))
+					getSidecarFile(regionX, regionZ).delete();
+				return;
+			}
+
+			final boolean newChunkStream = needsNewStream(sectorNumber, currentSectorCount, sectorsRequired);
+
+			if (newChunkStream)
+				synchronized (this) {
+					final long start = System.nanoTime();
+
+					// Find some free sectors to write on. If we can't find any
+					// need to extend the file. The existing sectors stay
+					// reserved until the new stream is down.
+					sectorNumber = findContiguousSectors(streamId, sectorsRequired);
+					if (this.sectorsInFile - sectorNumber < sectorsRequired)
+						extendFile(Math.max(sectorsRequired, EXTEND_SECTOR_QUANTITY));
+
+					// Mark our sectors used
+					this.sectorUsed.markUsed(sectorNumber, sectorsRequired);
+
+					this.stats.recordAllocation(currentSectorCount != 0 ? 1 : 0, System.nanoTime() - start);
+				}
+
+			try {
+				writeSectors(sectorNumber, buffer);
+				if (newChunkStream && USE_COPY_ON_WRITE)
+					this.channel.force(false);
+			} catch (final Exception ex) {
+				if (newChunkStream)
+					synchronized (this) {
+						this.sectorUsed.free(sectorNumber, sectorsRequired);
+					}
+				throw ex;
+			}
+
+			if (newChunkStream) {
+				// Flip the mapping over to the new stream and "free" up
+				// the old sectors.
+				synchronized (this) {
+					setChunkInformation(streamId, sectorNumber, sectorsRequired, codec.version());
+					if (info[INFO_SECTOR_START] != 0)
+						releaseSectors(streamId, info[INFO_SECTOR_START], currentSectorCount);
+				}
+			} else if (info[INFO_STREAM_VERSION] != codec.version()) {
+				// Rewriting in place with a different codec only needs the
+				// version flipped once the data is down.
+				synchronized (this) {
+					setChunkInformation(streamId, sectorNumber, currentSectorCount, codec.version());
+				}
+			}
+
+			if (USE_DEDUP)
+				indexStream(streamId, buffer);
+			chunkWritten(streamId);
+			cacheWritten(streamId, buffer);
+
+			// Stream shrunk enough to come back into the region file
+			if (wasExternal && !preserveSidecar(regionX, regionZ))
+				getSidecarFile(regionX, regionZ).delete();
+
+		} finally {
+			unlockChunk(streamId);
+		}
+	}
+
+	private static int sectorsRequired(final int length) {
+		return Math.max((length + SECTOR_SIZE - 1) / SECTOR_SIZE, MIN_SECTORS_PER_CHUNK_STREAM);
+	}
+
+	private boolean needsNewStream(final int sectorNumber, final int currentSectorCount,
+			final int sectorsRequired) {
+		// A new stream is required if:
+		//
+		// - Its a brand new chunk stream for the file
+		//
+		// - The size of the incoming stream is greater than the current
+		// sector allocation.
+		//
+		// - The size of the incoming stream is less, and exceeds the
+		// allowed shrinkage amount
+		//
+		// - Copy on write is in effect, or a snapshot is being taken
+		//
+		// - The sectors are shared with an identical stream
+		return sectorNumber == 0 || sectorsRequired > currentSectorCount
+				|| sectorsRequired < (currentSectorCount - ALLOWED_SECTOR_SHRINKAGE) || USE_COPY_ON_WRITE
+				|| this.snapshotInfo != null || isSharedExtent(sectorNumber);
+	}
+
+	private synchronized boolean isSharedExtent(final int sectorNumber) {
+		return this.sectorUsed.isShared(sectorNumber);
+	}
+
+	/**
+	 * Points the stream at the sectors of an identical stream in the region
+	 * rather than writing it out. Caller holds the chunk write lock. Returns
+	 * true if the stream now shares an extent.
+	 */
+	private boolean adoptDuplicate(final int streamId, final int[] info, final ByteBuffer buffer,
+			final int sectorsRequired, final ChunkStreamCodec codec) throws Exception {
+		final int base = buffer.position();
+		if ((buffer.get(base + CHUNK_STREAM_FLAGS_OFFSET) & CHUNK_STREAM_FLAG_CHECKSUM) == 0)
+			return false;
+
+		final Map<Integer, Integer> index = dedupIndex();
+		if (index == null)
+			return false;
+
+		final int owner;
+		synchronized (this) {
+			if (this.channel == null || this.snapshotInfo != null)
+				return false;
+			final Integer candidate = index.get(buffer.getInt(base + CHUNK_STREAM_CHECKSUM_OFFSET));
+			if (candidate == null)
+				return false;
+			owner = candidate;
+		}
+
+		// The owner's lock is only tried. Waiting on it while holding our
+		// own could deadlock with a writer going the other way.
+		final ReentrantReadWriteLock.ReadLock lock = chunkLock(owner).readLock();
+		if (!lock.tryLock())
+			return false;
+
+		try {
+			final int[] ownerInfo = getChunkInformation(owner);
+			if (ownerInfo == NO_CHUNK_INFORMATION || ownerInfo[INFO_SECTOR_COUNT] != sectorsRequired
+					|| ownerInfo[INFO_STREAM_VERSION] != codec.version())
+				return false;
+
+			final int sectorNumber = ownerInfo[INFO_SECTOR_START];
+			synchronized (this) {
+				if (this.channel == null || !isValidFileRegion(sectorNumber, sectorsRequired))
+					return false;
+			}
+
+			// The write time in the header is allowed to differ
+			final int length = buffer.remaining();
+			final byte[] existing = readSectors(sectorNumber, sectorsRequired, null);
+			if (getInt(existing) != buffer.getInt(base))
+				return false;
+			final ByteBuffer incoming = buffer.duplicate();
+			incoming.position(base + CHUNK_STREAM_CHECKSUM_OFFSET);
+			if (!incoming.equals(ByteBuffer.wrap(existing, CHUNK_STREAM_CHECKSUM_OFFSET,
+					length - CHUNK_STREAM_CHECKSUM_OFFSET)))
+				return false;
+
+			synchronized (this) {
+				if (this.snapshotInfo != null)
+					return false;
+				if (sectorNumber == info[INFO_SECTOR_START])
+					return true;
+				this.sectorUsed.share(sectorNumber);
+				setChunkInformation(streamId, sectorNumber, sectorsRequired, codec.version());
+				if (info[INFO_SECTOR_START] != 0)
+					releaseSectors(streamId, info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT]);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void indexStream(final int streamId, final ByteBuffer buffer) {
+		final int base = buffer.position();
+		if ((buffer.get(base + CHUNK_STREAM_FLAGS_OFFSET) & CHUNK_STREAM_FLAG_CHECKSUM) == 0)
+			return;
+		synchronized (this) {
+			if (this.dedupIndex != null)
+				this.dedupIndex.put(buffer.getInt(base + CHUNK_STREAM_CHECKSUM_OFFSET), streamId);
+		}
+	}
+
+	// The dedup index, reading the header of every stream in the file to
+	// build it if needed. The reads are done without the monitor and the
+	// index is published once built. Writes that come through while it is
+	// being built don't look for duplicates, and aren't in it; they are
+	// picked up when next written. Returns null if there is no index yet.
+	// Caller does not hold the monitor.
+	private Map<Integer, Integer> dedupIndex() throws Exception {
+		final FileChannel channel;
+		final int[] starts = new int[CHUNKS_IN_REGION];
+		synchronized (this) {
+			if (this.dedupIndex != null || this.dedupIndexing || this.channel == null)
+				return this.dedupIndex;
+			this.dedupIndexing = true;
+			channel = this.channel;
+			for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+				final int[] info = getChunkInformation(j);
+				if (info != NO_CHUNK_INFORMATION && (info[INFO_STREAM_VERSION] & CHUNK_STREAM_EXTERNAL_FLAG) == 0)
+					starts[j] = info[INFO_SECTOR_START];
+			}
+		}
+
+		final Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(CHUNK_STREAM_HEADER_SIZE);
+			for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+				if (starts[j] == 0)
+					continue;
+				header.clear();
+				channel.read(header, (long) starts[j] * SECTOR_SIZE);
+				if ((header.get(CHUNK_STREAM_FLAGS_OFFSET) & CHUNK_STREAM_FLAG_CHECKSUM) != 0)
+					index.put(header.getInt(CHUNK_STREAM_CHECKSUM_OFFSET), j);
+			}
+		} finally {
+			synchronized (this) {
+				this.dedupIndexing = false;
+			}
+		}
+
+		synchronized (this) {
+			if (this.channel != null)
+				this.dedupIndex = index;
+			return this.dedupIndex;
+		}
+	}
+
+	/**
+	 * Writes a batch of sealed chunk buffers. Sectors for the whole batch are
+	 * allocated under a single acquisition of the region monitor, and the
+	 * streams are written in file order with neighbors coalesced into a
+	 * single gathering write. If a chunk appears more than once the last
+	 * buffer wins.
+	 */
+	void write(final List<ChunkBuffer> batch) throws Exception {
+
+		final long start = System.nanoTime();
+		final int size = batch.size();
+		final ChunkBuffer[] pending = new ChunkBuffer[size];
+		final int[] streamIds = new int[size];
+		final boolean[] seen = new boolean[CHUNKS_IN_REGION];
+		int count = 0;
+
+		// Walk backwards so that the most recent write for a chunk is
+		// the one kept. Oversized streams go out on their own.
+		for (int i = size - 1; i >= 0; i--) {
+			final ChunkBuffer buffer = batch.get(i);
+			if (outOfBounds(buffer.chunkX(), buffer.chunkZ()))
+				continue;
+			final int streamId = getChunkStreamId(buffer.chunkX(), buffer.chunkZ());
+			if (seen[streamId])
+				continue;
+			seen[streamId] = true;
+			if (sectorsRequired(buffer.length()) > MAX_SECTORS_PER_CHUNK_STREAM) {
+				write(buffer.chunkX(), buffer.chunkZ(), buffer.data(), buffer.codec());
+				continue;
+			}
+			pending[count] = buffer;
+			streamIds[count++] = streamId;
+		}
+
+		if (count == 0)
+			return;
+
+		// Stripes are locked in index order so two batches can't
+		// deadlock each other.
+		final boolean[] stripes = new boolean[CHUNK_LOCK_STRIPES];
+		for (int i = 0; i < count; i++)
+			stripes[lockStripe(streamIds[i])] = true;
+		for (int i = 0; i < CHUNK_LOCK_STRIPES; i++)
+			if (stripes[i])
+				this.chunkLocks[i].writeLock().lock();
+
+		try {
+
+			// Streams identical to one already in the region take its
+			// sectors and drop out of the batch.
+			if (USE_DEDUP) {
+				int kept = 0;
+				for (int i = 0; i < count; i++) {
+					final ChunkBuffer buffer = pending[i];
+					final int streamId = streamIds[i];
+					final boolean external = (getStreamVersion(streamId) & CHUNK_STREAM_EXTERNAL_FLAG) != 0;
+					if (adoptDuplicate(streamId, getChunkInformation(streamId), buffer.data(),
+							sectorsRequired(buffer.length()), buffer.codec())) {
+						chunkWritten(streamId);
+						cacheWritten(streamId, buffer.data());
+						if (external && !preserveSidecar(buffer.chunkX(), buffer.chunkZ()))
+							getSidecarFile(buffer.chunkX(), buffer.chunkZ()).delete();
+						continue;
+					}
+					pending[kept] = buffer;
+					streamIds[kept++] = streamId;
+				}
+				count = kept;
+			}
+
+			final int[][] info = new int[count][];
+			final int[] sectorNumber = new int[count];
+			final int[] sectorCount = new int[count];
+			final boolean[] newChunkStream = new boolean[count];
+			final boolean[] wasExternal = new boolean[count];
+
+			// Allocate in Z-order. A stream whose predecessor is in the
+			// batch is placed after where the predecessor is going rather
+			// than where it was.
+			final long[] placement = new long[count];
+			for (int i = 0; i < count; i++)
+				placement[i] = ((long) ZORDER_RANK[streamIds[i]] << 32) | i;
+			Arrays.sort(placement);
+
+			synchronized (this) {
+				final long allocationStart = System.nanoTime();
+				int reallocations = 0;
+
+				int lastRank = -PLACEMENT_LOOKBACK - 1;
+				int lastEnd = -1;
+				for (int k = 0; k < count; k++) {
+					final int i = (int) placement[k];
+					final int streamId = streamIds[i];
+					final int rank = ZORDER_RANK[streamId];
+					final int sectorsRequired = sectorsRequired(pending[i].length());
+					wasExternal[i] = (getStreamVersion(streamId) & CHUNK_STREAM_EXTERNAL_FLAG) != 0;
+					info[i] = getChunkInformation(streamId);
+					newChunkStream[i] = needsNewStream(info[i][INFO_SECTOR_START], info[i][INFO_SECTOR_COUNT],
+							sectorsRequired);
+
+					if (newChunkStream[i]) {
+						int hint = -1;
+						if (USE_SPATIAL_PLACEMENT)
+							hint = rank - lastRank <= PLACEMENT_LOOKBACK ? lastEnd : placementHint(streamId);
+						sectorNumber[i] = findContiguousSectorsNear(sectorsRequired, hint);
+						if (this.sectorsInFile - sectorNumber[i] < sectorsRequired)
+							extendFile(Math.max(sectorsRequired, EXTEND_SECTOR_QUANTITY));
+						this.sectorUsed.markUsed(sectorNumber[i], sectorsRequired);
+						sectorCount[i] = sectorsRequired;
+						if (info[i][INFO_SECTOR_COUNT] != 0)
+							reallocations++;
+					} else {
+						sectorNumber[i] = info[i][INFO_SECTOR_START];
+						sectorCount[i] = info[i][INFO_SECTOR_COUNT];
+					}
+					lastRank = rank;
+					lastEnd = sectorNumber[i] + sectorCount[i];
+				}
+
+				this.stats.recordAllocation(reallocations, System.nanoTime() - allocationStart);
+			}
+
+			try {
+				writeSorted(pending, sectorNumber, sectorCount, count);
+				if (USE_COPY_ON_WRITE)
+					this.channel.force(false);
+			} catch (final Exception ex) {
+				synchronized (this) {
+					for (int i = 0; i < count; i++)
+						if (newChunkStream[i])
+							this.sectorUsed.free(sectorNumber[i], sectorCount[i]);
+				}
+				throw ex;
+			}
+
+			// Flip the mappings over to the new streams and "free" up
+			// the old sectors.
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					final byte version = pending[i].codec().version();
+					if (newChunkStream[i]) {
+						setChunkInformation(streamIds[i], sectorNumber[i], sectorCount[i], version);
+						if (info[i][INFO_SECTOR_START] != 0)
+							releaseSectors(streamIds[i], info[i][INFO_SECTOR_START], info[i][INFO_SECTOR_COUNT]);
+					} else if (info[i][INFO_STREAM_VERSION] != version) {
+						setChunkInformation(streamIds[i], sectorNumber[i], sectorCount[i], version);
+					}
+					if (USE_DEDUP)
+						indexStream(streamIds[i], pending[i].data());
+					chunkWritten(streamIds[i]);
+				}
+			}
+
+			for (int i = 0; i < count; i++)
+				cacheWritten(streamIds[i], pending[i].data());
+
+			for (int i = 0; i < count; i++)
+				if (wasExternal[i] && !preserveSidecar(pending[i].chunkX(), pending[i].chunkZ()))
+					getSidecarFile(pending[i].chunkX(), pending[i].chunkZ()).delete();
+
+		} catch (final Exception ex) {
+			ex.printStackTrace();
+		} finally {
+			for (int i = CHUNK_LOCK_STRIPES - 1; i >= 0; i--)
+				if (stripes[i])
+					this.chunkLocks[i].writeLock().unlock();
+		}
+
+		this.stats.recordBatchWrite(count, System.nanoTime() - start);
+	}
+
+	private void writeSorted(final ChunkBuffer[] pending, final int[] sectorNumber, final int[] sectorCount,
+			final int count) throws Exception {
+
+		// Sort by file position. The index rides along in the low
+		// bits of the key.
+		final long[] order = new long[count];
+		for (int i = 0; i < count; i++)
+			order[i] = ((long) sectorNumber[i] << 32) | i;
+		Arrays.sort(order);
+
+		final ByteBuffer[] gather = new ByteBuffer[count * 2];
+		int i = 0;
+		while (i < count) {
+			// Collect a run of streams that sit back to back in the
+			// file. The slack at the end of each stream's sectors is
+			// filled from the shared zero buffer.
+			final int first = (int) order[i];
+			int elements = 0;
+			long bytes = 0;
+			int next = sectorNumber[first];
+			int j = i;
+			for (; j < count; j++) {
+				final int idx = (int) order[j];
+				if (sectorNumber[idx] != next)
+					break;
+
+				final ChunkBuffer buffer = pending[idx];
+				if (elements > 0) {
+					// Pad out the previous stream
+					final int pad = (int) ((long) (sectorNumber[idx] - sectorNumber[first]) * SECTOR_SIZE - bytes);
+					if (pad > EMPTY_SECTORS.capacity())
+						break;
+					if (pad > 0) {
+						final ByteBuffer zeros = EMPTY_SECTORS.duplicate();
+						zeros.limit(pad);
+						gather[elements++] = zeros;
+						bytes += pad;
+					}
+				}
+
+				gather[elements++] = buffer.data();
+				bytes += buffer.length();
+				next = sectorNumber[idx] + sectorCount[idx];
+			}
+
+			if (j - i == 1) {
+				final ChunkBuffer buffer = pending[first];
+				writeSectors(sectorNumber[first], buffer.data());
+			} else {
+				synchronized (this.gatherLock) {
+					this.channel.position((long) sectorNumber[first] * SECTOR_SIZE);
+					long written = 0;
+					while (written < bytes)
+						written += this.channel.write(gather, 0, elements);
+					this.stats.recordBytesWritten(written);
+				}
+			}
+
+			Arrays.fill(gather, 0, elements, null);
+			i = j;
+		}
+	}
+
+	private void writeExternal(final int regionX, final int regionZ, final ByteBuffer buffer,
+			final ChunkStreamCodec codec) throws Exception {
+		final File spool = createSpoolFile();
+		final FileChannel out = FileChannel.open(spool.toPath(), StandardOpenOption.WRITE);
+		try {
+			final ByteBuffer data = buffer.duplicate();
+			while (data.hasRemaining())
+				out.write(data);
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		moveExternal(regionX, regionZ, spool, codec);
+	}
+
+	/**
+	 * Moves a completed spool file over the sidecar for the chunk and flags
+	 * the stream as external. Sectors held by the chunk in the region file are
+	 * released.
+	 */
+	void writeExternal(final int regionX, final int regionZ, final File spool, final ChunkStreamCodec codec)
+			throws Exception {
+		final long start = System.nanoTime();
+		moveExternal(regionX, regionZ, spool, codec);
+		this.stats.recordWrite(System.nanoTime() - start);
+	}
+
+	private void moveExternal(final int regionX, final int regionZ, final File spool, final ChunkStreamCodec codec)
+			throws Exception {
+
+		if (outOfBounds(regionX, regionZ)) {
+			spool.delete();
+			return;
+		}
+
+		final int streamId = getChunkStreamId(regionX, regionZ);
+		lockChunk(streamId);
+
+		try {
+			preserveSidecar(regionX, regionZ);
+
+			// Replace in one step so a reader never sees a partial stream
+			Files.move(spool.toPath(), getSidecarFile(regionX, regionZ).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			final int[] info = getChunkInformation(streamId);
+			synchronized (this) {
+				setChunkInformation(streamId, 0, 0, (byte) (codec.version() | CHUNK_STREAM_EXTERNAL_FLAG));
+				if (info != NO_CHUNK_INFORMATION)
+					releaseSectors(streamId, info[INFO_SECTOR_START], info[INFO_SECTOR_COUNT]);
+			}
+			chunkWritten(streamId);
+		} finally {
+			unlockChunk(streamId);
+		}
+	}
+
+	private static int getChunkStreamId(final int regionX, final int regionZ) {
+		return regionX + regionZ * REGION_CHUNK_DIMENSION;
+	}
+
+	private int getInt(final byte[] buffer) {
+		return getInt(buffer, 0);
+	}
+
+	private int getInt(final byte[] buffer, final int index) {
+		int base = index * INT_SIZE;
+		final int b0 = buffer[base++];
+		final int b1 = buffer[base++];
+		final int b2 = buffer[base++];
+		final int b3 = buffer[base];
+		return (b0 << 24) | ((b1 & 0xFF) << 16) | ((b2 & 0xFF) << 8) | (b3 & 0xFF);
+	}
+
+	private static boolean outOfBounds(final int regionX, final int regionZ) {
+		return regionX < 0 || regionX >= REGION_CHUNK_DIMENSION || regionZ < 0 || regionZ >= REGION_CHUNK_DIMENSION;
+	}
+
+	public boolean isChunkSaved(final int regionX, final int regionZ) {
+		if (outOfBounds(regionX, regionZ))
+			return false;
+		return getStreamVersion(getChunkStreamId(regionX, regionZ)) != CHUNK_STREAM_VERSION_UNKNOWN;
+	}
+
+	private byte getStreamVersion(final int streamId) {
+		return this.streamVersionInfo[streamId];
+	}
+
+	private int[] getChunkInformation(final int streamId) {
+		final int streamInfo = this.chunkInfo[streamId];
+		if (streamInfo == 0)
+			return NO_CHUNK_INFORMATION;
+
+		final int sectorNumber = (streamInfo & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
+		final int numberOfSectors = streamInfo & SECTOR_COUNT_MASK;
+		final byte streamVersion = this.streamVersionInfo[streamId];
+
+		return new int[] { sectorNumber, numberOfSectors, streamVersion };
+	}
+
+	private void setChunkInformation(final int streamId, final int sectorNumber, final int sectorCount,
+			final byte streamVersion) throws IOException {
+		markSectorMapDirty();
+		final int streamInfo = (sectorNumber << SECTOR_START_SHIFT) & SECTOR_START_MASK
+				| (sectorCount & SECTOR_COUNT_MASK);
+		if(this.chunkInfo[streamId] != streamInfo) {
+			this.chunkInfo[streamId] = streamInfo;
+			this.control.putInt((streamId * INT_SIZE) + CHUNK_INFO_TABLE_OFFSET, streamInfo);
+		}
+		if(this.streamVersionInfo[streamId] != streamVersion) {
+			this.streamVersionInfo[streamId] = streamVersion;
+			this.control.put(streamId + CHUNK_STREAM_VERSION_TABLE_OFFSET, streamVersion);
+		}
+	}
+
+	/**
+	 * Bookkeeping once a new copy of a chunk stream is visible. Caller holds
+	 * the chunk write lock.
+	 */
+	private void chunkWritten(final int streamId) {
+		this.writeCounts.incrementAndGet(streamId);
+		setChunkTimestamp(streamId, (int) (System.currentTimeMillis() / 1000));
+		if (USE_READ_AHEAD)
+			ChunkReadAhead.invalidate(this.regionId, streamId);
+		if (USE_ASYNC_READS)
+			ChunkAsyncReader.invalidate(this.regionId, streamId);
+		if (USE_STREAM_CACHE)
+			ChunkStreamCache.invalidate(this.regionId, streamId);
+	}
+
+	/**
+	 * Keeps a stream that was just written in ChunkStreamCache. The buffer
+	 * runs from the stream header to the end of the stream. Caller holds the
+	 * chunk write lock.
+	 */
+	private void cacheWritten(final int streamId, final ByteBuffer stream) {
+		if (USE_STREAM_CACHE)
+			ChunkStreamCache.put(this.regionId, streamId, stream);
+	}
+
+	/**
+	 * Number of times the stream of a chunk has changed since the region was
+	 * opened. A copy of the stream read while the count was the same as it is
+	 * now is current.
+	 */
+	int getWriteCount(final int regionX, final int regionZ) {
+		if (outOfBounds(regionX, regionZ))
+			return 0;
+		return this.writeCounts.get(getChunkStreamId(regionX, regionZ));
+	}
+
+	private void setChunkTimestamp(final int streamId, final int stamp) {
+		if (this.chunkTimestamps[streamId] != stamp) {
+			this.chunkTimestamps[streamId] = stamp;
+			this.control.putInt((streamId * INT_SIZE) + CHUNK_TIMESTAMP_TABLE_OFFSET, stamp);
+		}
+	}
+
+	/**
+	 * Time of the last write of the chunk stream in milliseconds, with a
+	 * resolution of one second. Returns 0 if the chunk doesn't exist or was
+	 * last written by a build that did not record write times.
+	 */
+	public long getChunkTimestamp(final int regionX, final int regionZ) {
+		if (outOfBounds(regionX, regionZ))
+			return 0;
+		final int streamId = getChunkStreamId(regionX, regionZ);
+		if (getStreamVersion(streamId) == CHUNK_STREAM_VERSION_UNKNOWN)
+			return 0;
+		return this.chunkTimestamps[streamId] * 1000L;
+	}
+
+	/**
+	 * Overrides the write time of an existing chunk stream, in milliseconds.
+	 * Used when chunks are carried over from another region file so they
+	 * keep the time they were last saved.
+	 */
+	void setChunkTimestamp(final int regionX, final int regionZ, final long time) {
+		if (outOfBounds(regionX, regionZ))
+			return;
+		final int streamId = getChunkStreamId(regionX, regionZ);
+		lockChunk(streamId);
+		try {
+			if (getStreamVersion(streamId) != CHUNK_STREAM_VERSION_UNKNOWN)
+				synchronized (this) {
+					if (this.control != null)
+						setChunkTimestamp(streamId, (int) (time / 1000));
+				}
+		} finally {
+			unlockChunk(streamId);
+		}
+	}
+
+	/**
+	 * Lists the chunks written at or after the specified time, in
+	 * milliseconds. Only the control tables are consulted. Chunks without a
+	 * recorded write time are always listed since they can't be ruled out.
+	 * Coordinates are relative to the region.
+	 */
+	public List<ChunkCoordIntPair> getChunksModifiedSince(final long time) {
+		final int since = (int) (time / 1000);
+		final List<ChunkCoordIntPair> result = new ArrayList<ChunkCoordIntPair>();
+		for (int i = 0; i < CHUNKS_IN_REGION; i++) {
+			if (getStreamVersion(i) == CHUNK_STREAM_VERSION_UNKNOWN)
+				continue;
+			final int stamp = this.chunkTimestamps[i];
+			if (stamp == 0 || stamp >= since)
+				result.add(new ChunkCoordIntPair(i % REGION_CHUNK_DIMENSION, i / REGION_CHUNK_DIMENSION));
+		}
+		return result;
+	}
+
+	/**
+	 * Frees the sectors of a stream that has been superseded, unless they
+	 * hold the stream as it was when a snapshot was taken. Those are kept
+	 * until the snapshot ends.
+	 */
+	private void releaseSectors(final int streamId, final int sectorNumber, final int count) {
+		if (this.snapshotInfo != null && this.snapshotInfo[streamId] != 0
+				&& ((this.snapshotInfo[streamId] & SECTOR_START_MASK) >> SECTOR_START_SHIFT) == sectorNumber)
+			return;
+		freeSectors(sectorNumber, count);
+	}
+
+	/**
+	 * Gives an extent that nothing in the control tables refers to anymore
+	 * back to the allocator. With copy on write it is held back until the
+	 * control area has been forced; otherwise a crash could leave the old
+	 * entry on disk pointing at sectors that a new stream has overwritten.
+	 * Caller holds the monitor.
+	 */
+	private void freeSectors(final int sectorNumber, final int count) {
+		if (!USE_COPY_ON_WRITE) {
+			this.sectorUsed.release(sectorNumber, count);
+			return;
+		}
+		if (this.pendingReleaseCount == this.pendingRelease.length)
+			this.pendingRelease = Arrays.copyOf(this.pendingRelease, this.pendingRelease.length * 2);
+		this.pendingRelease[this.pendingReleaseCount++] = ((long) sectorNumber << 32) | count;
+	}
+
+	/**
+	 * Forces the control area and releases the extents that were waiting on
+	 * it. Called before sectors are allocated so a held back extent is never
+	 * reused ahead of the flip that freed it. Caller holds the monitor.
+	 */
+	private void commitReleases() {
+		if (this.pendingReleaseCount == 0)
+			return;
+		this.control.force();
+		for (int i = 0; i < this.pendingReleaseCount; i++) {
+			final long extent = this.pendingRelease[i];
+			this.sectorUsed.release((int) (extent >>> 32), (int) extent);
+		}
+		this.pendingReleaseCount = 0;
+		if (this.pendingRelease.length > PENDING_RELEASE_INITIAL)
+			this.pendingRelease = new long[PENDING_RELEASE_INITIAL];
+	}
+
+	private File getSnapshotSidecarFile(final int regionX, final int regionZ) {
+		final File sidecar = getSidecarFile(regionX, regionZ);
+		return new File(sidecar.getParentFile(), sidecar.getName() + SNAPSHOT_SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * Moves the sidecar of a chunk aside if a snapshot still refers to it and
+	 * it is about to be replaced or removed. Caller holds the chunk lock.
+	 * Returns true if the sidecar was moved.
+	 */
+	private boolean preserveSidecar(final int regionX, final int regionZ) throws IOException {
+		synchronized (this) {
+			if (this.snapshotVersions == null)
+				return false;
+			if ((this.snapshotVersions[getChunkStreamId(regionX, regionZ)] & CHUNK_STREAM_EXTERNAL_FLAG) == 0)
+				return false;
+			final File preserved = getSnapshotSidecarFile(regionX, regionZ);
+			if (preserved.exists())
+				return false;
+			Files.move(getSidecarFile(regionX, regionZ).toPath(), preserved.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+	}
+
+	private void lockAllChunks() {
+		for (int i = 0; i < CHUNK_LOCK_STRIPES; i++)
+			this.chunkLocks[i].writeLock().lock();
+	}
+
+	private void unlockAllChunks() {
+		for (int i = CHUNK_LOCK_STRIPES - 1; i >= 0; i--)
+			this.chunkLocks[i].writeLock().unlock();
+	}
+
+	/**
+	 * Freezes the control tables as they are now so that a point in time
+	 * copy of the region can be written to the target file. All chunk locks
+	 * are taken so no write is in flight when the tables are copied. Returns
+	 * false if the region is closed or a snapshot is already in progress.
+	 */
+	public boolean beginSnapshot(final File target) {
+		lockAllChunks();
+		try {
+			synchronized (this) {
+				if (this.channel == null || this.snapshotInfo != null)
+					return false;
+				this.snapshotInfo = this.chunkInfo.clone();
+				this.snapshotVersions = this.streamVersionInfo.clone();
+				this.snapshotTimestamps = this.chunkTimestamps.clone();
+				this.snapshotTarget = target;
+				return true;
+			}
+		} finally {
+			unlockAllChunks();
+		}
+	}
+
+	public synchronized boolean hasSnapshot() {
+		return this.snapshotInfo != null;
+	}
+
+	/**
+	 * Writes the frozen copy of the region to the snapshot target and ends
+	 * the snapshot. The live region keeps taking reads and writes while this
+	 * runs. Does nothing if there is no snapshot in progress.
+	 */
+	public void exportSnapshot() throws Exception {
+		synchronized (this.snapshotLock) {
+			final int[] info;
+			final byte[] versions;
+			final int[] stamps;
+			final File target;
+			synchronized (this) {
+				if (this.snapshotInfo == null)
+					return;
+				info = this.snapshotInfo;
+				versions = this.snapshotVersions;
+				stamps = this.snapshotTimestamps;
+				target = this.snapshotTarget;
+			}
+
+			target.getParentFile().mkdirs();
+			target.delete();
+
+			// Streams are copied as is so the copy needs the same dictionary
+			final ChunkDictionary dictionary = dictionary();
+			if (dictionary != null && ChunkDictionary.install(target.getAbsoluteFile().getParentFile(),
+					dictionary.bytes()).id() != dictionary.id())
+				logger.error(String.format("%s: snapshot target has a different dictionary", name));
+
+			final RegionFile out = new RegionFile(target);
+
+			try {
+				byte[] buffer = null;
+				for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+					if (versions[j] == CHUNK_STREAM_VERSION_UNKNOWN)
+						continue;
+
+					final int regionX = j % REGION_CHUNK_DIMENSION;
+					final int regionZ = j / REGION_CHUNK_DIMENSION;
+					final ChunkStreamCodec codec = ChunkStreamCodec.forVersion(versions[j] & CHUNK_STREAM_VERSION_CODEC_MASK);
+					if (codec == null) {
+						logger.error(String.format("%s: Unrecognized stream version: %d", name, versions[j]));
+						continue;
+					}
+
+					final int dataLength;
+					if ((versions[j] & CHUNK_STREAM_EXTERNAL_FLAG) != 0) {
+						// Lock so the sidecar can't be moved aside while
+						// deciding which file to read.
+						lockChunkRead(j);
+						try {
+							File sidecar = getSnapshotSidecarFile(regionX, regionZ);
+							if (!sidecar.exists())
+								sidecar = getSidecarFile(regionX, regionZ);
+							dataLength = (int) sidecar.length();
+							if (buffer == null || buffer.length < dataLength)
+								buffer = new byte[dataLength];
+							final FileInputStream in = new FileInputStream(sidecar);
+							try {
+								new DataInputStream(in).readFully(buffer, 0, dataLength);
+							} finally {
+								in.close();
+							}
+						} finally {
+							unlockChunkRead(j);
+						}
+					} else {
+						// Sectors of the frozen stream are reserved so they
+						// can be read without the chunk lock.
+						final int sectorNumber = (info[j] & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
+						final int numberOfSectors = info[j] & SECTOR_COUNT_MASK;
+						buffer = readSectors(sectorNumber, numberOfSectors, buffer);
+						dataLength = numberOfSectors * SECTOR_SIZE;
+					}
+
+					final int streamLength = getInt(buffer);
+					if (streamLength <= 0 || streamLength > dataLength - CHUNK_STREAM_HEADER_SIZE) {
+						logger.error(String.format("%s: x%d z%d snapshot streamLength (%d) skipped", name, regionX,
+								regionZ, streamLength));
+						continue;
+					}
+
+					out.write(regionX, regionZ, buffer, streamLength + CHUNK_STREAM_HEADER_SIZE, codec);
+					out.setChunkTimestamp(j, stamps[j]);
+				}
+			} finally {
+				out.close();
+			}
+
+			endSnapshot();
+		}
+	}
+
+	/**
+	 * Drops the frozen control tables and releases the sectors of streams
+	 * that were superseded while the snapshot was in progress.
+	 */
+	private synchronized void endSnapshot() {
+		if (this.snapshotInfo == null)
+			return;
+
+		for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+			final int frozen = this.snapshotInfo[j];
+			if (frozen != 0 && frozen != this.chunkInfo[j])
+				freeSectors((frozen & SECTOR_START_MASK) >> SECTOR_START_SHIFT, frozen & SECTOR_COUNT_MASK);
+			if ((this.snapshotVersions[j] & CHUNK_STREAM_EXTERNAL_FLAG) != 0)
+				getSnapshotSidecarFile(j % REGION_CHUNK_DIMENSION, j / REGION_CHUNK_DIMENSION).delete();
+		}
+
+		this.snapshotInfo = null;
+		this.snapshotVersions = null;
+		this.snapshotTimestamps = null;
+		this.snapshotTarget = null;
+	}
+
+	/**
+	 * Tries to recompress up to the specified number of cold streams with
+	 * DEFLATE_BEST. Nothing is done while the region has seen recent writes.
+	 * Streams are decoded and deflated without any locks held; the chunk lock
+	 * is only taken to swap the new stream in, and only if the stream hasn't
+	 * been written in the meantime. The stream keeps its write time. Returns
+	 * the number of streams rewritten.
+	 */
+	int recompress(final int maxStreams) throws Exception {
+		final long now = System.currentTimeMillis() / 1000;
+		synchronized (this) {
+			if (this.channel == null)
+				return 0;
+			for (int j = 0; j < CHUNKS_IN_REGION; j++)
+				if (this.chunkTimestamps[j] > now - IDLE_REGION_AGE)
+					return 0;
+			if (this.recompressSkipped == null)
+				this.recompressSkipped = new int[CHUNKS_IN_REGION];
+		}
+
+		final ChunkStreamCodec codec = ChunkStreamCodec.DEFLATE_BEST;
+		final Deflater deflater = new Deflater(codec.level());
+		ChunkBuffer buffer = null;
+		byte[] encoded = new byte[SECTOR_SIZE * 8];
+		int attempts = 0;
+		int rewritten = 0;
+
+		try {
+			for (int j = 0; j < CHUNKS_IN_REGION && attempts < maxStreams; j++) {
+				final int streamInfo = this.chunkInfo[j];
+				final byte version = this.streamVersionInfo[j];
+				final int stamp = this.chunkTimestamps[j];
+				if (streamInfo == 0 || version == codec.version() || stamp > now - COLD_STREAM_AGE
+						|| this.recompressSkipped[j] == stamp + 1)
+					continue;
+
+				final int numberOfSectors = streamInfo & SECTOR_COUNT_MASK;
+				if (isSharedExtent((streamInfo & SECTOR_START_MASK) >> SECTOR_START_SHIFT))
+					continue;
+
+				final int regionX = j % REGION_CHUNK_DIMENSION;
+				final int regionZ = j / REGION_CHUNK_DIMENSION;
+				attempts++;
+				final DataInputStream stream = readChunkStream(regionX, regionZ, false);
+				if (stream == null)
+					continue;
+				final byte[] data;
+				try {
+					data = ByteStreams.toByteArray(stream);
+				} finally {
+					stream.close();
+				}
+
+				deflater.reset();
+				deflater.setInput(data);
+				deflater.finish();
+				int length = 0;
+				while (!deflater.finished()) {
+					if (length == encoded.length)
+						encoded = Arrays.copyOf(encoded, encoded.length << 1);
+					length += deflater.deflate(encoded, length, encoded.length - length);
+				}
+
+				// Not worth a rewrite unless it frees a sector
+				final int sectorsRequired = sectorsRequired(length + CHUNK_STREAM_HEADER_SIZE);
+				if (sectorsRequired >= numberOfSectors) {
+					this.recompressSkipped[j] = stamp + 1;
+					continue;
+				}
+
+				lockChunk(j);
+				try {
+					if (this.chunkInfo[j] != streamInfo || this.streamVersionInfo[j] != version
+							|| this.chunkTimestamps[j] != stamp)
+						continue;
+					if (buffer == null)
+						buffer = new ChunkBuffer(regionX, regionZ, this, codec);
+					buffer.reset(regionX, regionZ, this, codec);
+					buffer.write(encoded, 0, length);
+					buffer.close();
+					if (this.streamVersionInfo[j] == codec.version()) {
+						synchronized (this) {
+							if (this.control != null) {
+								setChunkTimestamp(j, stamp);
+								trimExtent(j, sectorsRequired);
+							}
+						}
+						rewritten++;
+					}
+				} finally {
+					unlockChunk(j);
+				}
+			}
+		} finally {
+			deflater.end();
+			if (buffer != null)
+				buffer.release();
+		}
+		return rewritten;
+	}
+
+	/**
+	 * write() leaves a stream that shrinks a little in its old extent so it
+	 * has room to grow back. A cold stream isn't expected to grow, so the
+	 * tail of the extent is given back. Caller holds the chunk lock and the
+	 * monitor.
+	 */
+	private void trimExtent(final int streamId, final int sectorsRequired) throws IOException {
+		final int[] info = getChunkInformation(streamId);
+		final int slack = info[INFO_SECTOR_COUNT] - sectorsRequired;
+		if (slack <= 0 || isSharedExtent(info[INFO_SECTOR_START]))
+			return;
+		if (this.snapshotInfo != null && this.snapshotInfo[streamId] == this.chunkInfo[streamId])
+			return;
+		setChunkInformation(streamId, info[INFO_SECTOR_START], sectorsRequired, (byte) info[INFO_STREAM_VERSION]);
+		freeSectors(info[INFO_SECTOR_START] + sectorsRequired, slack);
+	}
+
+	/**
+	 * Checks the region for damage for RegionScrubber, repairing it if
+	 * asked. Streams are verified one at a time under their chunk read lock,
+	 * with the reads paced by the limiter before the lock is taken. The
+	 * control tables are then checked against the sector map while all chunk
+	 * locks are held; that is a pass over tables in memory. Returns null if
+	 * the region was closed part way.
+	 */
+	RegionScrubber.Report scrub(final RateLimiter limiter, final boolean repair) throws Exception {
+		final RegionScrubber.Report report = new RegionScrubber.Report();
+		report.regions = 1;
+
+		// Extents waiting on a control sync are still marked in the sector
+		// map but no longer owned by a stream. Release them so they aren't
+		// counted as orphans, or released a second time by a rebuild.
+		synchronized (this) {
+			if (this.channel == null)
+				return null;
+			commitReleases();
+		}
+
+		// The entry that failed is kept so a stream that is rewritten
+		// before the repair isn't dropped.
+		final int[] corruptInfo = new int[CHUNKS_IN_REGION];
+		final byte[] corruptVersions = new byte[CHUNKS_IN_REGION];
+		final boolean[] corrupt = new boolean[CHUNKS_IN_REGION];
+		final byte[] scratch = new byte[SECTOR_SIZE * 2];
+
+		for (int streamId = 0; streamId < CHUNKS_IN_REGION; streamId++) {
+			final int regionX = streamId % REGION_CHUNK_DIMENSION;
+			final int regionZ = streamId / REGION_CHUNK_DIMENSION;
+			final boolean external = (this.streamVersionInfo[streamId] & CHUNK_STREAM_EXTERNAL_FLAG) != 0;
+			final long bytes = external ? getSidecarFile(regionX, regionZ).length()
+					: (long) (this.chunkInfo[streamId] & SECTOR_COUNT_MASK) * SECTOR_SIZE;
+			if (this.chunkInfo[streamId] == 0 && this.streamVersionInfo[streamId] == CHUNK_STREAM_VERSION_UNKNOWN)
+				continue;
+			limiter.acquire((int) Math.max(1, Math.min(bytes, Integer.MAX_VALUE)));
+
+			lockChunkRead(streamId);
+			try {
+				final int streamInfo = this.chunkInfo[streamId];
+				final byte version = this.streamVersionInfo[streamId];
+				if (streamInfo == 0 && version == CHUNK_STREAM_VERSION_UNKNOWN)
+					continue;
+
+				final boolean good = verifyStream(regionX, regionZ, scratch);
+				synchronized (this) {
+					if (this.channel == null)
+						return null;
+				}
+
+				report.chunks++;
+				report.bytes += bytes;
+				if (!good) {
+					report.corruptStreams++;
+					corrupt[streamId] = true;
+					corruptInfo[streamId] = streamInfo;
+					corruptVersions[streamId] = version;
+				}
+			} finally {
+				unlockChunkRead(streamId);
+			}
+		}
+
+		lockAllChunks();
+		try {
+			synchronized (this) {
+				if (this.channel == null)
+					return null;
+
+				// Writes made during the stream pass may have queued more
+				commitReleases();
+
+				// Owner of each sector, as the start of the extent plus one,
+				// and the length of the extent recorded at each start.
+				final int[] owner = new int[this.sectorsInFile];
+				final int[] extentAt = new int[this.sectorsInFile];
+				for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+					final int streamInfo = this.chunkInfo[j];
+					if (streamInfo == 0)
+						continue;
+					final int sectorNumber = (streamInfo & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
+					final int numberOfSectors = streamInfo & SECTOR_COUNT_MASK;
+					// Already reported when the stream was read
+					if (sectorNumber < NUM_CONTROL_SECTORS || sectorNumber + numberOfSectors > this.sectorsInFile)
+						continue;
+
+					if (extentAt[sectorNumber] == numberOfSectors) {
+						// Streams sharing an extent have to hold a
+						// reference on it
+						if (!this.sectorUsed.isShared(sectorNumber))
+							report.unsharedExtents++;
+						continue;
+					}
+
+					boolean overlaps = extentAt[sectorNumber] != 0;
+					for (int k = sectorNumber; k < sectorNumber + numberOfSectors; k++)
+						if (owner[k] == 0)
+							owner[k] = sectorNumber + 1;
+						else
+							overlaps = true;
+					if (overlaps)
+						report.overlappingStreams++;
+					else
+						extentAt[sectorNumber] = numberOfSectors;
+				}
+
+				// A snapshot holds on to the sectors of streams that have been
+				// rewritten since it began
+				if (this.snapshotInfo != null)
+					for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+						final int frozen = this.snapshotInfo[j];
+						final int sectorNumber = (frozen & SECTOR_START_MASK) >> SECTOR_START_SHIFT;
+						final int numberOfSectors = frozen & SECTOR_COUNT_MASK;
+						if (frozen != 0 && sectorNumber >= NUM_CONTROL_SECTORS
+								&& sectorNumber + numberOfSectors <= this.sectorsInFile)
+							for (int k = sectorNumber; k < sectorNumber + numberOfSectors; k++)
+								if (owner[k] == 0)
+									owner[k] = sectorNumber + 1;
+					}
+
+				for (int k = NUM_CONTROL_SECTORS; k < this.sectorsInFile; k++) {
+					final boolean used = !this.sectorUsed.isFree(k, 1);
+					if (used && owner[k] == 0)
+						report.orphanedSectors++;
+					else if (!used && owner[k] != 0)
+						report.unmarkedSectors++;
+				}
+
+				// The snapshot's view of the sectors would be lost by a
+				// rebuild, so repairs wait until it is done.
+				if (!repair || report.isClean())
+					return report;
+				if (this.snapshotInfo != null) {
+					logger.warn(String.format("%s: snapshot in progress, not repaired", name));
+					return report;
+				}
+
+				// Rebuild first. A stream whose sectors were only missing
+				// from the map reads fine afterwards and is kept.
+				resetSectorMap();
+				boolean dropped = false;
+				for (int j = 0; j < CHUNKS_IN_REGION; j++) {
+					if (!corrupt[j] || this.chunkInfo[j] != corruptInfo[j]
+							|| this.streamVersionInfo[j] != corruptVersions[j])
+						continue;
+					final int regionX = j % REGION_CHUNK_DIMENSION;
+					final int regionZ = j / REGION_CHUNK_DIMENSION;
+					if (verifyStream(regionX, regionZ, scratch))
+						continue;
+					if ((corruptVersions[j] & CHUNK_STREAM_EXTERNAL_FLAG) != 0)
+						getSidecarFile(regionX, regionZ).delete();
+					setChunkInformation(j, 0, 0, CHUNK_STREAM_VERSION_UNKNOWN);
+					chunkWritten(j);
+					report.droppedStreams++;
+					dropped = true;
+				}
+				if (dropped)
+					resetSectorMap();
+				report.sectorMapsRebuilt = 1;
+
+				logger.info(String.format("%s: dropped %d streams, rebuilt sector map", name,
+						report.droppedStreams));
+				return report;
+			}
+		} finally {
+			unlockAllChunks();
+		}
+	}
+
+	/**
+	 * Reads a chunk stream through to the end. Returns false if it can't be
+	 * read, fails its checksum or doesn't inflate.
+	 */
+	private boolean verifyStream(final int regionX, final int regionZ, final byte[] scratch) throws Exception {
+		final DataInputStream stream = readChunkStream(regionX, regionZ, false);
+		if (stream == null)
+			return false;
+		try {
+			while (stream.read(scratch) != -1)
+				;
+			return true;
+		} catch (final IOException ex) {
+			logger.error(String.format("%s: x%d z%d %s", name, regionX, regionZ, ex.getMessage()));
+			return false;
+		} finally {
+			stream.close();
+		}
+	}
+
+	// Sector accounting from scratch for a repair. Caller holds all chunk
+	// locks and the monitor.
+	private void resetSectorMap() {
+		this.sectorUsed = newSectorAllocator();
+		rebuildSectorMap();
+		loadSharedExtents();
+		markSectorMapDirty();
+	}
+
+	private int[] analyzeSectors() {
+		final int lastUsedSector = this.sectorUsed.length() - 1;
+		final int gapSectors = lastUsedSector - this.sectorUsed.cardinality() + 1;
+
+		int generatedChunks = 0;
+		int sectors = 0;
+		for (int i = 0; i < CHUNKS_IN_REGION; i++) {
+			final int[] info = getChunkInformation(i);
+			if (info != NO_CHUNK_INFORMATION) {
+				generatedChunks++;
+				sectors += info[INFO_SECTOR_COUNT];
 			}
 		}
 		return new int[] { this.sectorsInFile, lastUsedSector, gapSectors, generatedChunks, sectors };
 	}
 
-	public void close() throws Exception {
+	/**
+	 * Indicates whether gaps within the file have crossed the compaction
+	 * threshold.
+	 */
+	public synchronized boolean needsCompaction() {
+		if (this.channel == null || this.snapshotInfo != null)
+			return false;
+		final int length = this.sectorUsed.length();
+		final int gapSectors = length - this.sectorUsed.cardinality();
+		return gapSectors >= COMPACTION_MIN_GAP_SECTORS && gapSectors * 100 / length >= COMPACTION_THRESHOLD;
+	}
+
+	/**
+	 * Relocates chunk streams toward the head of the file and truncates the
+	 * free tail. Each stream is moved while holding its chunk lock so this
+	 * can run against a live file. Returns the number of streams moved.
+	 */
+	public int compact(final int maxMoves) throws Exception {
+		// Work from the end of the file toward the head. Streams at the
+		// end are the ones holding up a truncate. The old sectors of the
+		// streams stay in use until the pass is committed, so no target
+		// overlaps another stream of the pass.
+		final long[] candidates = new long[CHUNKS_IN_REGION];
+		int count = 0;
+		synchronized (this) {
+			if (this.channel == null)
+				return 0;
+			for (int i = 0; i < CHUNKS_IN_REGION; i++) {
+				final int[] info = getChunkInformation(i);
+				if (info != NO_CHUNK_INFORMATION)
+					candidates[count++] = ((long) info[INFO_SECTOR_START] << 32) | i;
+			}
+		}
+		Arrays.sort(candidates, 0, count);
+
+		final List<Relocation> moves = new ArrayList<Relocation>();
+		byte[] buffer = null;
+		try {
+			for (int i = count - 1; i >= 0 && moves.size() < maxMoves; i--) {
+				final int streamId = (int) candidates[i];
+				lockChunk(streamId);
+
+				try {
+					// Reread under the lock. The stream could have been
+					// rewritten since the candidates were gathered.
+					final int[] info = getChunkInformation(streamId);
+					if (info == NO_CHUNK_INFORMATION)
+						continue;
+
+					final int sectorNumber = info[INFO_SECTOR_START];
+					final int numberOfSectors = info[INFO_SECTOR_COUNT];
+					final int target;
+					synchronized (this) {
+						if (this.channel == null)
+							break;
+						if (this.sectorUsed.isShared(sectorNumber))
+							continue;
+						commitReleases();
+						target = this.sectorUsed.findBefore(numberOfSectors, sectorNumber);
+						if (target == -1)
+							continue;
+						this.sectorUsed.markUsed(target, numberOfSectors);
+					}
+
+					buffer = copyStream(info, target, buffer);
+					moves.add(new Relocation(streamId, info, target, this.writeCounts.get(streamId)));
+
+				} finally {
+					unlockChunk(streamId);
+				}
+			}
+		} catch (final Exception ex) {
+			abandonRelocations(moves);
+			throw ex;
+		}
+
+		final int moved = commitRelocations(moves, 0, 0, null);
+		truncateTail();
+		return moved;
+	}
+
+	// A stream that has been copied to sectors marked used for it, waiting
+	// on the commit that flips its control entry over.
+	private static final class Relocation {
+
+		public final int streamId;
+		public final int[] info;
+		public final int target;
+		public final int writeCount;
+
+		public Relocation(final int streamId, final int[] info, final int target, final int writeCount) {
+			this.streamId = streamId;
+			this.info = info;
+			this.target = target;
+			this.writeCount = writeCount;
+		}
+	}
+
+	/**
+	 * Copies a stream to sectors that have already been marked used. The
+	 * copy is not forced; see commitRelocations(). Caller holds the chunk
+	 * lock. Returns the read buffer so it can be reused.
+	 */
+	private byte[] copyStream(final int[] info, final int target, byte[] buffer) throws Exception {
+		final int numberOfSectors = info[INFO_SECTOR_COUNT];
+		try {
+			buffer = readSectors(info[INFO_SECTOR_START], numberOfSectors, buffer);
+			writeSectors(target, buffer, numberOfSectors * SECTOR_SIZE);
+		} catch (final Exception ex) {
+			synchronized (this) {
+				this.sectorUsed.free(target, numberOfSectors);
+			}
+			throw ex;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Makes the copies of a pass durable with a single force and then flips
+	 * the control entries over to them, one chunk lock at a time. Streams
+	 * written since they were copied keep their entry and the copy is given
+	 * back. Old sectors that fall within the kept range are not released
+	 * but are left marked used and noted in the kept set. Returns the number
+	 * of streams moved.
+	 */
+	private int commitRelocations(final List<Relocation> moves, final int keepStart, final int keepEnd,
+			final BitSet kept) throws Exception {
+		if (moves.isEmpty())
+			return 0;
+
+		// The control entry is a single int in the mapped control region
+		// so each switch is atomic. The data has to be down before any of
+		// them could be.
+		try {
+			this.channel.force(false);
+		} catch (final Exception ex) {
+			abandonRelocations(moves);
+			throw ex;
+		}
+
+		int moved = 0;
+		for (final Relocation move : moves) {
+			final int[] info = move.info;
+			final int start = info[INFO_SECTOR_START];
+			final int count = info[INFO_SECTOR_COUNT];
+			lockChunk(move.streamId);
+			try {
+				synchronized (this) {
+					final int[] current = getChunkInformation(move.streamId);
+					if (this.channel == null || this.snapshotInfo != null
+							|| this.writeCounts.get(move.streamId) != move.writeCount
+							|| current[INFO_SECTOR_START] != start || current[INFO_SECTOR_COUNT] != count) {
+						if (this.channel != null)
+							this.sectorUsed.free(move.target, count);
+						continue;
+					}
+					setChunkInformation(move.streamId, move.target, count, (byte) info[INFO_STREAM_VERSION]);
+
+					// Release the parts of the old extent outside the kept range
+					final int keepFrom = Math.max(start, keepStart);
+					final int keepTo = Math.min(start + count, keepEnd);
+					if (keepFrom >= keepTo) {
+						releaseSectors(move.streamId, start, count);
+					} else {
+						if (keepFrom > start)
+							releaseSectors(move.streamId, start, keepFrom - start);
+						if (start + count > keepTo)
+							releaseSectors(move.streamId, keepTo, start + count - keepTo);
+						kept.set(keepFrom, keepTo);
+					}
+				}
+				// A pending read would pick up the old sectors
+				if (USE_ASYNC_READS)
+					ChunkAsyncReader.invalidate(this.regionId, move.streamId);
+				moved++;
+			} finally {
+				unlockChunk(move.streamId);
+			}
+		}
+		moves.clear();
+		return moved;
+	}
+
+	// Gives back the sectors copied to for moves that won't be committed
+	private void abandonRelocations(final List<Relocation> moves) {
+		synchronized (this) {
+			if (this.channel != null)
+				for (final Relocation move : moves)
+					this.sectorUsed.free(move.target, move.info[INFO_SECTOR_COUNT]);
+		}
+		moves.clear();
+	}
+
+	// Gives back the free tail of the file, less one extension's worth of
+	// slack so the next writes don't have to grow it again straight away.
+	// Data windows could reach past the new end so they are dropped and
+	// mapped again when next needed.
+	private void truncateTail() throws Exception {
+		synchronized (this) {
+			if (this.channel != null) {
+				commitReleases();
+				final int length = Math.max(this.sectorUsed.length(), NUM_CONTROL_SECTORS) + EXTEND_SECTOR_QUANTITY;
+				if (length < this.sectorsInFile) {
+					freeDataWindows();
+					this.channel.truncate((long) length * SECTOR_SIZE);
+					this.sectorsInFile = sectorCount();
+					this.sectorUsed.truncate(this.sectorsInFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Indicates whether too few streams sit close enough to their Z-order
+	 * predecessor to be read along with it. Only regions written with
+	 * spatial placement qualify. Without it new streams go wherever fits
+	 * best, so most regions would qualify and a reordered layout would
+	 * decay with the next round of saves.
+	 */
+	public synchronized boolean needsReorder() {
+		if (!USE_SPATIAL_PLACEMENT || this.channel == null || this.snapshotInfo != null)
+			return false;
+		int streams = 0;
+		int inOrder = 0;
+		int lastEnd = NUM_CONTROL_SECTORS;
+		for (int rank = 0; rank < CHUNKS_IN_REGION; rank++) {
+			final int[] info = getChunkInformation(ZORDER[rank]);
+			if (info == NO_CHUNK_INFORMATION)
+				continue;
+			final int gap = info[INFO_SECTOR_START] - lastEnd;
+			if (gap >= 0 && gap <= READ_MERGE_GAP_SECTORS)
+				inOrder++;
+			streams++;
+			lastEnd = info[INFO_SECTOR_START] + info[INFO_SECTOR_COUNT];
+		}
+		return streams >= REORDER_MIN_CHUNKS && inOrder * 100 / streams < REORDER_THRESHOLD;
+	}
+
+	/**
+	 * Lays the chunk streams out in Z-order from the head of the file.
+	 * Streams are visited in Z-order and each one that isn't already next in
+	 * line is given the spot after the last. A pass plans up to the move
+	 * budget under the monitor and then works in two phases. The streams in
+	 * the way of the planned spots are moved to a free extent further on,
+	 * or past the used end of the file if there is none. The planned
+	 * streams are then moved into their spots. Each phase is made durable
+	 * with a single force before its control entries are flipped. Streams
+	 * that are written while the pass runs are left for the next pass, as
+	 * are spots a write got to first. Returns the number of streams moved.
+	 */
+	public int reorder(final int maxMoves) throws Exception {
+		final int[] plannedIds = new int[CHUNKS_IN_REGION];
+		final int[] plannedTargets = new int[CHUNKS_IN_REGION];
+		final int[] evictedIds = new int[CHUNKS_IN_REGION];
+		final int[] evictedTargets = new int[CHUNKS_IN_REGION];
+		final int[][] evictedInfo = new int[CHUNKS_IN_REGION][];
+		int planned = 0;
+		int evicted = 0;
+		int spanStart = 0;
+		int spanEnd = 0;
+
+		// Sectors of the planned spots that are held for the pass. Free
+		// ones are marked used when planned, and those of the streams in
+		// the way are kept marked when they are moved out.
+		final BitSet kept = new BitSet();
+
+		synchronized (this) {
+			if (this.channel == null || this.snapshotInfo != null)
+				return 0;
+			commitReleases();
+
+			// Owner of each sector, built once for the plan
+			final int[] owners = sectorOwners();
+			final boolean[] evicting = new boolean[CHUNKS_IN_REGION];
+			final int[] blocking = new int[CHUNKS_IN_REGION];
+			int cursor = NUM_CONTROL_SECTORS;
+			int moves = 0;
+
+			for (int rank = 0; rank < CHUNKS_IN_REGION && moves < maxMoves; rank++) {
+				final int streamId = ZORDER[rank];
+				final int[] info = getChunkInformation(streamId);
+				if (info == NO_CHUNK_INFORMATION)
+					continue;
+				if (info[INFO_SECTOR_START] == cursor) {
+					cursor += info[INFO_SECTOR_COUNT];
+					continue;
+				}
+				if (this.sectorUsed.isShared(info[INFO_SECTOR_START]))
+					continue;
+
+				// Everything ahead of the cursor is in place or planned, so
+				// whatever sits where this stream goes is later in Z-order.
+				// That includes this stream if it overlaps its own spot.
+				// Shared extents can't be moved; the stream goes after any
+				// that are in the way.
+				int end = cursor + info[INFO_SECTOR_COUNT];
+				int count = 0;
+				for (int sector = cursor; sector < end && sector < owners.length; sector++) {
+					final int i = owners[sector];
+					if (i == -1)
+						continue;
+					final int[] other = getChunkInformation(i);
+					if (other == NO_CHUNK_INFORMATION || other[INFO_SECTOR_START] >= end
+							|| other[INFO_SECTOR_START] + other[INFO_SECTOR_COUNT] <= cursor)
+						continue;
+					if (this.sectorUsed.isShared(other[INFO_SECTOR_START])) {
+						cursor = other[INFO_SECTOR_START] + other[INFO_SECTOR_COUNT];
+						end = cursor + info[INFO_SECTOR_COUNT];
+						count = 0;
+						sector = cursor - 1;
+						continue;
+					}
+					if (!evicting[i])
+						blocking[count++] = i;
+					sector = other[INFO_SECTOR_START] + other[INFO_SECTOR_COUNT] - 1;
+				}
+				if (planned > 0 && moves + count + 1 > maxMoves)
+					break;
+
+				for (int i = 0; i < count; i++) {
+					evicting[blocking[i]] = true;
+					evictedIds[evicted] = blocking[i];
+					evictedInfo[evicted++] = getChunkInformation(blocking[i]);
+				}
+				if (planned == 0)
+					spanStart = cursor;
+				plannedIds[planned] = streamId;
+				plannedTargets[planned++] = cursor;
+				keepFree(cursor, info[INFO_SECTOR_COUNT], kept);
+				moves += count + 1;
+				cursor = end;
+				spanEnd = end;
+			}
+
+			// Places for the streams in the way, past the planned spots
+			for (int i = 0; i < evicted; i++) {
+				final int count = evictedInfo[i][INFO_SECTOR_COUNT];
+				final int free = this.sectorUsed.findFrom(count, spanEnd);
+				evictedTargets[i] = free != -1 ? free : Math.max(this.sectorUsed.length(), spanEnd);
+				reserveSectors(evictedTargets[i], count);
+			}
+		}
+
+		final List<Relocation> moves = new ArrayList<Relocation>();
+		byte[] buffer = null;
+		int moved = 0;
+		int next = 0;
+		try {
+			// Move what is in the way out
+			for (; next < evicted; next++) {
+				final int streamId = evictedIds[next];
+				final int[] planInfo = evictedInfo[next];
+				lockChunk(streamId);
+				try {
+					final int[] info = getChunkInformation(streamId);
+					if (info[INFO_SECTOR_START] != planInfo[INFO_SECTOR_START]
+							|| info[INFO_SECTOR_COUNT] != planInfo[INFO_SECTOR_COUNT] || isSharedExtent(info[INFO_SECTOR_START])) {
+						synchronized (this) {
+							if (this.channel != null)
+								this.sectorUsed.free(evictedTargets[next], planInfo[INFO_SECTOR_COUNT]);
+						}
+						continue;
+					}
+					final int writeCount = this.writeCounts.get(streamId);
+					buffer = copyStream(info, evictedTargets[next], buffer);
+					moves.add(new Relocation(streamId, info, evictedTargets[next], writeCount));
+				} finally {
+					unlockChunk(streamId);
+				}
+			}
+			moved += commitRelocations(moves, spanStart, spanEnd, kept);
+
+			// With copy on write the old entries have to be off the disk
+			// before the sectors they pointed at are written over.
+			if (USE_COPY_ON_WRITE)
+				synchronized (this) {
+					if (this.channel != null)
+						this.control.force();
+				}
+
+			// Then move the planned streams into their spots
+			for (int i = 0; i < planned; i++) {
+				final int streamId = plannedIds[i];
+				final int target = plannedTargets[i];
+				lockChunk(streamId);
+				try {
+					final int[] info = getChunkInformation(streamId);
+					if (info == NO_CHUNK_INFORMATION || info[INFO_SECTOR_START] == target)
+						continue;
+					final int count = info[INFO_SECTOR_COUNT];
+					synchronized (this) {
+						if (this.channel == null || this.snapshotInfo != null)
+							break;
+						if (this.sectorUsed.isShared(info[INFO_SECTOR_START])
+								|| (info[INFO_SECTOR_START] < target + count && info[INFO_SECTOR_START] + count > target)
+								|| !claimKept(target, count, kept))
+							continue;
+					}
+					final int writeCount = this.writeCounts.get(streamId);
+					buffer = copyStream(info, target, buffer);
+					moves.add(new Relocation(streamId, info, target, writeCount));
+				} finally {
+					unlockChunk(streamId);
+				}
+			}
+			moved += commitRelocations(moves, 0, 0, null);
+
+		} finally {
+			abandonRelocations(moves);
+			synchronized (this) {
+				if (this.channel != null) {
+					// Places that were never used for the streams in the way
+					for (int i = next + 1; i < evicted; i++)
+						this.sectorUsed.free(evictedTargets[i], evictedInfo[i][INFO_SECTOR_COUNT]);
+					// Spots that weren't filled
+					for (int start = kept.nextSetBit(0); start != -1; start = kept.nextSetBit(start)) {
+						final int end = kept.nextClearBit(start);
+						freeSectors(start, end - start);
+						start = end;
+					}
+				}
+			}
+		}
+
+		truncateTail();
+		return moved;
+	}
+
+	// Marks the free sectors of a run used and notes them in the kept set.
+	// Caller holds the monitor.
+	private void keepFree(final int start, final int count, final BitSet kept) {
+		int run = -1;
+		for (int sector = start; sector <= start + count; sector++) {
+			final boolean free = sector < start + count && this.sectorUsed.isFree(sector, 1);
+			if (free && run == -1) {
+				run = sector;
+			} else if (!free && run != -1) {
+				this.sectorUsed.markUsed(run, sector - run);
+				kept.set(run, sector);
+				run = -1;
+			}
+		}
+	}
+
+	// Takes a planned spot out of the kept set so a stream can be copied to
+	// it. Sectors that were given back in the meantime are taken again if
+	// still free. Returns false if any of them went to another stream.
+	// Caller holds the monitor.
+	private boolean claimKept(final int start, final int count, final BitSet kept) {
+		for (int sector = start; sector < start + count; sector++)
+			if (!kept.get(sector) && !this.sectorUsed.isFree(sector, 1))
+				return false;
+		keepFree(start, count, kept);
+		kept.clear(start, start + count);
+		return true;
+	}
+
+	// Stream occupying each sector of the file, or -1 if none. Sectors of
+	// a shared extent map to one of the streams sharing it. Caller holds
+	// the monitor.
+	private int[] sectorOwners() {
+		final int[] owners = new int[this.sectorsInFile];
+		Arrays.fill(owners, -1);
+		for (int i = 0; i < CHUNKS_IN_REGION; i++) {
+			final int[] info = getChunkInformation(i);
+			if (info != NO_CHUNK_INFORMATION)
+				Arrays.fill(owners, info[INFO_SECTOR_START],
+						Math.min(info[INFO_SECTOR_START] + info[INFO_SECTOR_COUNT], owners.length), i);
+		}
+		return owners;
+	}
+
+	// Marks a run of sectors used, growing the file if the run goes past
+	// the end. Caller holds the monitor.
+	private void reserveSectors(final int start, final int count) throws Exception {
+		if (start + count > this.sectorsInFile)
+			extendFile(Math.max(start + count - this.sectorsInFile, EXTEND_SECTOR_QUANTITY));
+		this.sectorUsed.markUsed(start, count);
+	}
+
+	/**
+	 * Statistics for the region file, with the sector accounting as it
+	 * stands. Sector figures are zero once the region is closed.
+	 */
+	public RegionFileStats getStats() {
+		final RegionFileStats result = new RegionFileStats().add(this.stats);
+		synchronized (this) {
+			if (this.channel != null) {
+				final int[] sectors = analyzeSectors();
+				result.setSectors(sectors[0], this.sectorUsed.cardinality(), sectors[2], this.sectorUsed.gaps(),
+						sectors[3], sectors[4]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The live statistics the region records IO into.
+	 */
+	RegionFileStats ioStats() {
+		return this.stats;
+	}
+
+	public synchronized void close() throws Exception {
 		if (this.channel != null) {
-			final int[] result = analyzeSectors();
-			logger.debug(String.format(
-					"'%s': total sectors %d, last used sector %d, gaps %d (%d%%), chunks %d, avg sectors %f", name(),
-					result[0], result[1], result[2], result[2] * 100 / result[1], result[3],
-					(float) result[4] / result[3]));
+			logger.debug(String.format("'%s': %s", name(), getStats()));
+			// A snapshot that hasn't been exported is abandoned
+			endSnapshot();
+			if (USE_READ_AHEAD)
+				ChunkReadAhead.invalidate(this.regionId);
+			if (USE_STREAM_CACHE)
+				ChunkStreamCache.invalidate(this.regionId);
+			if (this.asyncChannel != null) {
+				ChunkAsyncReader.invalidate(this.regionId);
+				this.asyncChannel.close();
+				this.asyncChannel = null;
+			}
 			if (this.control != null) {
+				commitReleases();
+				if (PERSIST_SECTOR_MAP)
+					saveSectorMap();
 				this.control.force();
 				freeMemoryMap(this.control);
 				this.control = null;
 			}
+			freeDataWindows();
 			this.channel.force(true);
 			this.channel.close();
 			this.channel = null;
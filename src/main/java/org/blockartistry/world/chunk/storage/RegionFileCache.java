@@ -26,17 +26,45 @@ package org.blockartistry.world.chunk.storage;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Callables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import net.minecraft.world.ChunkCoordIntPair;
 
@@ -54,6 +82,22 @@ import net.minecraft.world.ChunkCoordIntPair;
  * 
  * + No cache size limit. The number of entries in the cache will float based on
  * demand and expiration policy.
+ * 
+ * + Background compaction of cached region files whose gaps have crossed the
+ * compaction threshold. Runs on a single low priority thread. Regions whose
+ * streams have drifted out of Z-order are reordered instead, which also
+ * reclaims the gaps.
+ * 
+ * + Trains a deflate dictionary for a world from its own chunk streams the
+ * first time a region with enough chunks is loaded. Only when the dictionary
+ * codec is enabled.
+ * 
+ * + Live snapshots of a world's region files. The control tables of each
+ * region are frozen and a point in time copy is exported in the background
+ * while chunk saving carries on.
+ * 
+ * + Storage statistics for each open region and each world are published
+ * over JMX. See RegionStorageMXBean.
  */
 public class RegionFileCache {
 
@@ -74,6 +118,40 @@ public class RegionFileCache {
 	// thread total about 8.
 	private static final int CONCURRENCY = 8;
 
+	// How often the compactor looks over the cached region files, and how
+	// many streams it will move in a single region per pass. Small passes
+	// keep it from hogging the chunk locks of any one region. Off by
+	// default; passes rewrite and sync live region files. When off the
+	// compactor thread is still there for dictionary training.
+	private static final boolean USE_COMPACTION = false;
+	private static final int COMPACTION_INTERVAL = 1;
+	private static final TimeUnit COMPACTION_UNIT = TimeUnit.MINUTES;
+	private static final int COMPACTION_MOVES_PER_PASS = 64;
+
+	// Number of chunk streams sampled from a region to train a dictionary,
+	// and the minimum that has to be present before training is attempted.
+	private static final int DICTIONARY_SAMPLES = 256;
+	private static final int DICTIONARY_MIN_SAMPLES = 64;
+
+	// Cold streams recompressed in a single region per pass
+	private static final int RECOMPRESSION_STREAMS_PER_PASS = 64;
+
+	// Chunk loads that are queued together are read in bulk ahead of time
+	// by preloadChunks(). Streams that aren't claimed by a load in time are
+	// dropped, as are preload requests that find the queue full. Off by
+	// default; there are no numbers yet showing it beats the loads it runs
+	// ahead of, and it reads chunks that may never be claimed.
+	private static final boolean USE_PRELOAD = false;
+	private static final int PRELOAD_EXPIRE_SECONDS = 10;
+	private static final int PRELOAD_MAX_CHUNKS = 512;
+	private static final int PRELOAD_QUEUE_SIZE = 16;
+
+	// How long the snapshot thread waits before retrying a region that is
+	// in the middle of being loaded or unloaded
+	private static final long SNAPSHOT_RETRY_MILLIS = 10;
+
+	private static final String MBEAN_NAME = "org.blockartistry.Jiffy:type=RegionStorage";
+
 	// Key into the cache. Makes use of the fact that the save directory
 	// for the region file can be considered immutable, and the coordinates
 	// are primitives. Most efficient if the save directory is an interned
@@ -109,7 +187,27 @@ public class RegionFileCache {
 			final File file1 = new File(file, new StringBuilder(64).append("r.").append(key.chunkXPos).append('.')
 					.append(key.chunkZPos).append(RegionFile.REGION_FILE_EXTENSION).toString());
 			logger.debug("Loading '" + key.toString() + "'");
-			return new RegionFile(file1);
+			saveDirs.add(key.dir);
+
+			// A region that is still open for a snapshot export is taken
+			// back rather than opened a second time.
+			RegionFile region;
+			synchronized (detached) {
+				region = detached.remove(key);
+				attached.add(key);
+			}
+			if (region == null)
+				region = new RegionFile(file1);
+
+			// Regions that are part of a snapshot are frozen before anyone
+			// gets a chance to write to them.
+			final RegionSnapshot snapshot = snapshots.get(key.dir);
+			if (snapshot != null && snapshot.pending.contains(key))
+				region.beginSnapshot(snapshot.target(key));
+
+			if (RegionFile.USE_DICTIONARY && region.dictionary() == null && training.add(key.dir))
+				compactor.execute(new DictionaryTrainer(key));
+			return region;
 		}
 	}
 
@@ -121,7 +219,20 @@ public class RegionFileCache {
 		public void onRemoval(RemovalNotification<RegionFileKey, RegionFile> notification) {
 			try {
 				logger.debug("Unloading '" + notification.getKey() + "'");
-				notification.getValue().close();
+				final RegionFile region = notification.getValue();
+				// Exporting can take a while and this runs on whatever
+				// thread tripped cache maintenance. The region is left open
+				// and handed to the snapshot thread instead.
+				synchronized (detached) {
+					attached.remove(notification.getKey());
+					if (region.hasSnapshot()) {
+						detached.put(notification.getKey(), region);
+						snapshotter.execute(new EvictedSnapshot(notification.getKey(), region));
+						return;
+					}
+				}
+				region.close();
+				retiredStats(notification.getKey().dir).add(region.ioStats());
 			} catch (final Exception ex) {
 				logger.error("Error unloading '" + notification.getKey() + "'", ex);
 			}
@@ -132,6 +243,372 @@ public class RegionFileCache {
 			.expireAfterAccess(EXPIRATION_TIME, EXPIRATION_UNIT).removalListener(new RegionFileEviction())
 			.initialCapacity(INITIAL_CAPACITY).concurrencyLevel(CONCURRENCY).build(new RegionFileLoader());
 
+	// A stream read ahead of a chunk load. It is only handed out if it came
+	// from the region file that is open now and the chunk hasn't been
+	// written since it was read.
+	private static final class Preloaded {
+
+		public final RegionFile region;
+		public final int writeCount;
+		public final DataInputStream stream;
+
+		public Preloaded(final RegionFile region, final int writeCount, final DataInputStream stream) {
+			this.region = region;
+			this.writeCount = writeCount;
+			this.stream = stream;
+		}
+	}
+
+	// Streams taken by a load are closed by the load. Everything else that
+	// leaves the cache is closed here so it goes back to the pool.
+	private static final class PreloadRelease implements RemovalListener<RegionFileKey, Preloaded> {
+		@Override
+		public void onRemoval(RemovalNotification<RegionFileKey, Preloaded> notification) {
+			if (notification.getCause() != RemovalCause.EXPLICIT)
+				try {
+					notification.getValue().stream.close();
+				} catch (final Exception ex) {
+					logger.error("Error releasing preloaded chunk '" + notification.getKey() + "'", ex);
+				}
+		}
+	}
+
+	// Keyed by chunk rather than region coordinates
+	private static final Cache<RegionFileKey, Preloaded> preloaded = CacheBuilder.newBuilder()
+			.expireAfterWrite(PRELOAD_EXPIRE_SECONDS, TimeUnit.SECONDS).maximumSize(PRELOAD_MAX_CHUNKS)
+			.concurrencyLevel(CONCURRENCY).removalListener(new PreloadRelease()).build();
+
+	private static final class ChunkPreload implements Runnable {
+
+		private final String saveDir;
+		private final int[] blockX;
+		private final int[] blockZ;
+
+		public ChunkPreload(final String saveDir, final int[] blockX, final int[] blockZ) {
+			this.saveDir = saveDir;
+			this.blockX = blockX;
+			this.blockZ = blockZ;
+		}
+
+		@Override
+		public void run() {
+			// Chunks that are already waiting for their load are left out
+			int count = 0;
+			final int[] x = new int[this.blockX.length];
+			final int[] z = new int[this.blockZ.length];
+			for (int i = 0; i < this.blockX.length; i++)
+				if (preloaded.getIfPresent(new RegionFileKey(this.saveDir, this.blockX[i], this.blockZ[i])) == null) {
+					x[count] = this.blockX[i];
+					z[count++] = this.blockZ[i];
+				}
+
+			try {
+				// Write counts are taken before the reads. A write that lands
+				// in between makes the stream look stale, which is safe.
+				final RegionFile[] regions = new RegionFile[count];
+				final int[] writeCounts = new int[count];
+				for (int i = 0; i < count; i++) {
+					regions[i] = createOrLoadRegionFile(this.saveDir, x[i], z[i]);
+					writeCounts[i] = regions[i].getWriteCount(x[i] & 31, z[i] & 31);
+				}
+
+				final DataInputStream[] streams = getChunkInputStreams(this.saveDir, Arrays.copyOf(x, count),
+						Arrays.copyOf(z, count));
+				for (int i = 0; i < count; i++)
+					if (streams[i] != null)
+						preloaded.put(new RegionFileKey(this.saveDir, x[i], z[i]),
+								new Preloaded(regions[i], writeCounts[i], streams[i]));
+			} catch (final Exception ex) {
+				logger.error("Unable to preload chunks from '" + this.saveDir + "'", ex);
+			}
+		}
+	}
+
+	private static final ThreadPoolExecutor preloader = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(PRELOAD_QUEUE_SIZE),
+			new ThreadFactoryBuilder().setNameFormat("Chunk Preload").setDaemon(true).build(),
+			new ThreadPoolExecutor.DiscardPolicy());
+
+	// Save directories that regions have been loaded from
+	private static final Set<String> saveDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	// IO of regions that have been unloaded, by save directory
+	private static final ConcurrentMap<String, RegionFileStats> retired = new ConcurrentHashMap<String, RegionFileStats>();
+
+	// Walks the region files that are currently cached and reorders or
+	// compacts those that need it. Iterating the map view does not count as an access so
+	// the compactor does not keep regions from expiring. Regions that need
+	// neither have their cold streams recompressed, and one region that
+	// isn't cached is brought in per pass so that the rest of the world gets
+	// recompressed over time.
+	private static final class RegionCompactor implements Runnable {
+
+		private final List<RegionFileKey> sweep = new ArrayList<RegionFileKey>();
+		private int sweepIndex;
+
+		@Override
+		public void run() {
+			for (final RegionFile region : regionsByFilename.asMap().values()) {
+				try {
+					if (region.needsReorder()) {
+						final int moved = region.reorder(COMPACTION_MOVES_PER_PASS);
+						logger.debug("Reordered '" + region.name() + "', moved " + moved + " streams");
+					} else if (region.needsCompaction()) {
+						final int moved = region.compact(COMPACTION_MOVES_PER_PASS);
+						logger.debug("Compacted '" + region.name() + "', moved " + moved + " streams");
+					} else if (RegionFile.USE_COLD_RECOMPRESSION) {
+						recompress(region);
+					}
+				} catch (final Exception ex) {
+					logger.error("Error compacting '" + region.name() + "'", ex);
+				}
+			}
+
+			if (RegionFile.USE_COLD_RECOMPRESSION)
+				sweep();
+		}
+
+		private void recompress(final RegionFile region) throws Exception {
+			final int rewritten = region.recompress(RECOMPRESSION_STREAMS_PER_PASS);
+			if (rewritten > 0)
+				logger.debug("Recompressed '" + region.name() + "', rewrote " + rewritten + " streams");
+		}
+
+		private void sweep() {
+			if (this.sweepIndex >= this.sweep.size()) {
+				this.sweep.clear();
+				this.sweepIndex = 0;
+				for (final String dir : saveDirs) {
+					final File[] files = new File(dir, "region").listFiles();
+					if (files != null)
+						for (final File file : files) {
+							final RegionFileKey key = keyFor(dir, file);
+							if (key != null)
+								this.sweep.add(key);
+						}
+				}
+				return;
+			}
+
+			final RegionFileKey key = this.sweep.get(this.sweepIndex++);
+			if (regionsByFilename.getIfPresent(key) != null)
+				return;
+			try {
+				recompress(regionsByFilename.get(key));
+			} catch (final Exception ex) {
+				logger.error("Error recompressing '" + key + "'", ex);
+			}
+		}
+	}
+
+	/**
+	 * Key for a region file in the region directory of the save directory.
+	 * Returns null if the file isn't a region file.
+	 */
+	private static RegionFileKey keyFor(final String saveDir, final File file) {
+		final String name = file.getName();
+		if (!name.startsWith("r.") || !name.endsWith(RegionFile.REGION_FILE_EXTENSION))
+			return null;
+		final String[] parts = name.substring(2, name.length() - RegionFile.REGION_FILE_EXTENSION.length())
+				.split("\\.");
+		if (parts.length != 2)
+			return null;
+		try {
+			return new RegionFileKey(saveDir, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		} catch (final NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	// Exports the regions of a snapshot one at a time. Regions that were on
+	// disk when the snapshot was started are pending until exported. They
+	// are frozen when the snapshot starts if cached, otherwise when they are
+	// first loaded. Evicted regions are exported on the way out.
+	private static final class RegionSnapshot implements Runnable {
+
+		public final String dir;
+		public final File targetDir;
+		public final Set<RegionFileKey> pending = Collections
+				.newSetFromMap(new ConcurrentHashMap<RegionFileKey, Boolean>());
+
+		public RegionSnapshot(final String dir, final File targetDir) {
+			this.dir = dir;
+			this.targetDir = targetDir;
+		}
+
+		public File target(final RegionFileKey key) {
+			return new File(this.targetDir, new StringBuilder(64).append("r.").append(key.chunkXPos).append('.')
+					.append(key.chunkZPos).append(RegionFile.REGION_FILE_EXTENSION).toString());
+		}
+
+		// Returns the RegionFile to export the region from. Cached and
+		// detached regions are used as they are. Regions nobody has open
+		// are opened here and parked in detached so the cache loader takes
+		// them over rather than opening them a second time. Returns null if
+		// the region is being loaded or unloaded right now.
+		private RegionFile acquire(final RegionFileKey key) {
+			synchronized (detached) {
+				RegionFile region = regionsByFilename.getIfPresent(key);
+				if (region != null)
+					return region;
+				if (attached.contains(key))
+					return null;
+				region = detached.get(key);
+				if (region == null) {
+					region = new RegionFile(new File(new File(key.dir, "region"), new StringBuilder(64).append("r.")
+							.append(key.chunkXPos).append('.').append(key.chunkZPos)
+							.append(RegionFile.REGION_FILE_EXTENSION).toString()));
+					detached.put(key, region);
+				}
+				return region;
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				final Deque<RegionFileKey> keys = new ArrayDeque<RegionFileKey>(this.pending);
+				while (!keys.isEmpty()) {
+					final RegionFileKey key = keys.poll();
+					if (!this.pending.contains(key))
+						continue;
+					final RegionFile region = acquire(key);
+					if (region == null) {
+						keys.add(key);
+						Thread.sleep(SNAPSHOT_RETRY_MILLIS);
+						continue;
+					}
+					try {
+						// Loaded before the snapshot was registered but
+						// missed by the freeze pass, or not loaded at all.
+						// Take it as it is now.
+						if (!region.hasSnapshot())
+							region.beginSnapshot(target(key));
+						region.exportSnapshot();
+					} catch (final Exception ex) {
+						logger.error("Error exporting snapshot of '" + key + "'", ex);
+					} finally {
+						this.pending.remove(key);
+						release(key, region);
+					}
+				}
+				logger.info("Snapshot of '" + this.dir + "' written to '" + this.targetDir + "'");
+			} catch (final InterruptedException ex) {
+				logger.error("Snapshot of '" + this.dir + "' interrupted");
+			} finally {
+				snapshots.remove(this.dir, this);
+			}
+		}
+	}
+
+	// Exports the snapshot of a region that was evicted while it was still
+	// pending, then closes it unless the cache has taken it back.
+	private static final class EvictedSnapshot implements Runnable {
+
+		private final RegionFileKey key;
+		private final RegionFile region;
+
+		public EvictedSnapshot(final RegionFileKey key, final RegionFile region) {
+			this.key = key;
+			this.region = region;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.region.exportSnapshot();
+				final RegionSnapshot snapshot = snapshots.get(this.key.dir);
+				if (snapshot != null)
+					snapshot.pending.remove(this.key);
+			} catch (final Exception ex) {
+				logger.error("Error exporting snapshot of '" + this.key + "'", ex);
+			} finally {
+				release(this.key, this.region);
+			}
+		}
+	}
+
+	// Closes a detached region once the snapshot thread is done with it.
+	// Nothing is done if it is cached, or was taken back by the loader.
+	private static void release(final RegionFileKey key, final RegionFile region) {
+		synchronized (detached) {
+			if (!detached.remove(key, region))
+				return;
+		}
+		try {
+			region.close();
+			retiredStats(key.dir).add(region.ioStats());
+		} catch (final Exception ex) {
+			logger.error("Error unloading '" + key + "'", ex);
+		}
+	}
+
+	// Samples the chunk streams of a region and installs a dictionary for
+	// its directory if there are enough of them. Runs on the compactor
+	// thread. If the region is too sparse the next region loaded from the
+	// directory gets a turn.
+	private static final class DictionaryTrainer implements Runnable {
+
+		private final RegionFileKey key;
+
+		public DictionaryTrainer(final RegionFileKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			try {
+				final RegionFile region = regionsByFilename.get(this.key);
+				if (region.dictionary() != null)
+					return;
+				final List<byte[]> samples = region.sampleChunkStreams(DICTIONARY_SAMPLES);
+				if (samples.size() < DICTIONARY_MIN_SAMPLES)
+					return;
+				final byte[] dictionary = ChunkDictionary.train(samples, ChunkDictionary.DEFAULT_DICTIONARY_SIZE);
+				ChunkDictionary.install(region.directory(), dictionary);
+				logger.info("Trained " + dictionary.length + " byte dictionary for '" + this.key.dir + "' from "
+						+ samples.size() + " chunks");
+			} catch (final Exception ex) {
+				logger.error("Error training dictionary for '" + this.key + "'", ex);
+			} finally {
+				training.remove(this.key.dir);
+			}
+		}
+	}
+
+	private static final Set<String> training = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private static final ConcurrentMap<String, RegionSnapshot> snapshots = new ConcurrentHashMap<String, RegionSnapshot>();
+
+	// Regions that are open outside of the cache for a snapshot export,
+	// and the regions the cache has loaded. Both are guarded by detached.
+	// Counted because a region can be loaded again before the listener for
+	// its last eviction has run.
+	private static final Map<RegionFileKey, RegionFile> detached = new HashMap<RegionFileKey, RegionFile>();
+	private static final Multiset<RegionFileKey> attached = HashMultiset.create();
+
+	private static final ExecutorService snapshotter = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("Region Snapshot").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+	private static final ExecutorService scrubber = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("Region Scrub").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+	private static final ScheduledExecutorService compactor;
+
+	static {
+		compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("Region Compactor").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+		if (USE_COMPACTION)
+			compactor.scheduleWithFixedDelay(new RegionCompactor(), COMPACTION_INTERVAL, COMPACTION_INTERVAL,
+					COMPACTION_UNIT);
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StorageStats(), new ObjectName(MBEAN_NAME));
+		} catch (final Exception ex) {
+			logger.warn("Unable to publish region storage statistics", ex);
+		}
+	}
+
 	@Deprecated
 	public static RegionFile createOrLoadRegionFile(final File saveDir, final int blockX, final int blockZ)
 			throws ExecutionException {
@@ -143,11 +620,239 @@ public class RegionFileCache {
 		return regionsByFilename.get(new RegionFileKey(saveDir, blockX >> 5, blockZ >> 5));
 	}
 
+	/**
+	 * Starts a snapshot of the region files of the save directory. The copy is
+	 * written to the target directory in the background and chunk saving is
+	 * not paused. The returned future completes when every region has been
+	 * exported.
+	 */
+	public static Future<?> snapshot(final String saveDir, final File targetDir) {
+		final RegionSnapshot snapshot = new RegionSnapshot(saveDir, targetDir);
+		final File[] files = new File(saveDir, "region").listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				final RegionFileKey key = keyFor(saveDir, file);
+				if (key != null)
+					snapshot.pending.add(key);
+			}
+		}
+
+		if (snapshots.putIfAbsent(saveDir, snapshot) != null)
+			throw new IllegalStateException("Snapshot of '" + saveDir + "' already in progress");
+
+		// Freeze what is cached right now. Anything loaded from here on is
+		// frozen by the loader.
+		for (final RegionFileKey key : regionsByFilename.asMap().keySet()) {
+			if (snapshot.pending.contains(key)) {
+				final RegionFile region = regionsByFilename.getIfPresent(key);
+				if (region != null)
+					region.beginSnapshot(snapshot.target(key));
+			}
+		}
+
+		return snapshotter.submit(snapshot);
+	}
+
+	// Hands the scrubber the cached RegionFile so it works on the same
+	// instance as the server. Regions that aren't cached are skipped.
+	private static final class CachedRegionSource implements RegionScrubber.RegionSource {
+
+		private final String saveDir;
+
+		public CachedRegionSource(final String saveDir) {
+			this.saveDir = saveDir;
+		}
+
+		@Override
+		public RegionFile open(final File file) throws Exception {
+			final RegionFileKey key = keyFor(this.saveDir, file);
+			if (key == null)
+				throw new IllegalArgumentException("Not a region file: '" + file + "'");
+			return regionsByFilename.getIfPresent(key);
+		}
+
+		@Override
+		public void close(final RegionFile region) {
+		}
+	}
+
+	private static final class RegionScrub implements Callable<RegionScrubber.Report> {
+
+		private final String saveDir;
+		private final boolean repair;
+		private final double bytesPerSecond;
+		private final int threads;
+
+		public RegionScrub(final String saveDir, final boolean repair, final double bytesPerSecond,
+				final int threads) {
+			this.saveDir = saveDir;
+			this.repair = repair;
+			this.bytesPerSecond = bytesPerSecond;
+			this.threads = threads;
+		}
+
+		@Override
+		public RegionScrubber.Report call() throws Exception {
+			return RegionScrubber.scrub(new CachedRegionSource(this.saveDir), new File(this.saveDir, "region"),
+					this.repair, this.bytesPerSecond, this.threads);
+		}
+	}
+
+	/**
+	 * Scrubs the region files of the save directory in the background while
+	 * the world stays loaded. Reads are held to the byte rate so chunk IO for
+	 * the server isn't starved. Only regions that are cached are scrubbed;
+	 * loading the others would push out the regions the server is using.
+	 * They are counted as skipped and left to RegionScrubber offline.
+	 */
+	public static Future<RegionScrubber.Report> scrub(final String saveDir, final boolean repair,
+			final double bytesPerSecond, final int threads) {
+		return scrubber.submit(new RegionScrub(saveDir, repair, bytesPerSecond, threads));
+	}
+
+	private static final class StorageStats implements RegionStorageMXBean {
+
+		@Override
+		public String[] getWorlds() {
+			return saveDirs.toArray(new String[0]);
+		}
+
+		@Override
+		public int getOpenRegions() {
+			return regionsByFilename.asMap().size();
+		}
+
+		@Override
+		public RegionFileStats getTotals() {
+			final RegionFileStats result = new RegionFileStats();
+			for (final String saveDir : saveDirs)
+				result.add(getWorldStats(saveDir));
+			return result;
+		}
+
+		@Override
+		public RegionFileStats getWorldStats(final String saveDir) {
+			return RegionFileCache.getWorldStats(saveDir);
+		}
+
+		@Override
+		public RegionFileStats getRegionStats(final String saveDir, final int regionX, final int regionZ) {
+			final RegionFile region = regionsByFilename.getIfPresent(new RegionFileKey(saveDir, regionX, regionZ));
+			return region == null ? null : region.getStats();
+		}
+
+		@Override
+		public String[] getBusiestRegions(final int count) {
+			final List<RegionFile> regions = new ArrayList<RegionFile>(regionsByFilename.asMap().values());
+
+			// Sort on kilobytes moved, read once so the sort isn't chasing
+			// live counters. The index rides along in the low bits.
+			final long[] order = new long[regions.size()];
+			for (int i = 0; i < order.length; i++) {
+				final RegionFileStats stats = regions.get(i).ioStats();
+				order[i] = ((stats.getBytesRead() + stats.getBytesWritten()) >> 10 << 20) | i;
+			}
+			Arrays.sort(order);
+
+			final String[] result = new String[Math.max(0, Math.min(count, order.length))];
+			for (int i = 0; i < result.length; i++) {
+				final RegionFile region = regions.get((int) (order[order.length - 1 - i] & 0xFFFFF));
+				result[i] = region.name() + ": " + region.getStats();
+			}
+			return result;
+		}
+
+		@Override
+		public long getStreamCacheHits() {
+			return ChunkStreamCache.hits();
+		}
+
+		@Override
+		public long getStreamCacheMisses() {
+			return ChunkStreamCache.misses();
+		}
+
+		@Override
+		public long getStreamCacheBytes() {
+			return ChunkStreamCache.cachedBytes();
+		}
+
+		@Override
+		public long getReadAheadHits() {
+			return ChunkReadAhead.hits();
+		}
+
+		@Override
+		public long getReadAheadMisses() {
+			return ChunkReadAhead.misses();
+		}
+
+		@Override
+		public long getReadAheadBytes() {
+			return ChunkReadAhead.cachedBytes();
+		}
+
+		@Override
+		public long getAsyncReadsIssued() {
+			return ChunkAsyncReader.issued();
+		}
+
+		@Override
+		public long getAsyncReadHits() {
+			return ChunkAsyncReader.hits();
+		}
+
+		@Override
+		public long getAsyncReadDrops() {
+			return ChunkAsyncReader.drops();
+		}
+
+		@Override
+		public long getPooledBufferBytes() {
+			return DirectBufferPool.pooledBytes();
+		}
+	}
+
+	private static RegionFileStats retiredStats(final String saveDir) {
+		RegionFileStats stats = retired.get(saveDir);
+		if (stats == null) {
+			final RegionFileStats created = new RegionFileStats();
+			stats = retired.putIfAbsent(saveDir, created);
+			if (stats == null)
+				stats = created;
+		}
+		return stats;
+	}
+
+	/**
+	 * Storage statistics for the world in the save directory. The sector
+	 * accounting covers the regions that are open; IO counts and latencies
+	 * include regions that have since been unloaded.
+	 */
+	public static RegionFileStats getWorldStats(final String saveDir) {
+		final RegionFileStats result = new RegionFileStats();
+		for (final Map.Entry<RegionFileKey, RegionFile> entry : regionsByFilename.asMap().entrySet())
+			if (entry.getKey().dir.equals(saveDir))
+				result.add(entry.getValue().getStats());
+		final RegionFileStats unloaded = retired.get(saveDir);
+		if (unloaded != null)
+			result.add(unloaded);
+		return result;
+	}
+
 	public static void clearRegionFileReferences() {
 		// Evicts all current entries. During the process
 		// of eviction the onRemoval() callback is made and the
 		// files are closed.
 		regionsByFilename.invalidateAll();
+
+		// Regions that were part of a snapshot are exported and closed on
+		// the snapshot thread. Wait for them.
+		try {
+			snapshotter.submit(Callables.returning(null)).get();
+		} catch (final Exception ex) {
+			logger.error("Error waiting for region snapshots", ex);
+		}
 	}
 
 	@Deprecated
@@ -159,9 +864,97 @@ public class RegionFileCache {
 	public static DataInputStream getChunkInputStream(final String saveDir, final int blockX, final int blockZ)
 			throws Exception {
 		final RegionFile regionfile = createOrLoadRegionFile(saveDir, blockX, blockZ);
+		if (USE_PRELOAD) {
+			final Preloaded preload = preloaded.asMap().remove(new RegionFileKey(saveDir, blockX, blockZ));
+			if (preload != null) {
+				if (preload.region == regionfile
+						&& preload.writeCount == regionfile.getWriteCount(blockX & 31, blockZ & 31))
+					return preload.stream;
+				preload.stream.close();
+			}
+		}
 		return regionfile.getChunkDataInputStream(blockX & 31, blockZ & 31);
 	}
 
+	/**
+	 * Reads a set of chunks in bulk on a background thread ahead of their
+	 * queued loads. getChunkInputStream() hands out the streams read here
+	 * as long as the chunks haven't been written in the meantime.
+	 */
+	public static void preloadChunks(final String saveDir, final int[] blockX, final int[] blockZ) {
+		if (USE_PRELOAD)
+			preloader.execute(new ChunkPreload(saveDir, blockX, blockZ));
+	}
+
+	/**
+	 * Starts reading a chunk ahead of a queued load. Only regions that are
+	 * already open are considered so the caller never waits on a region file
+	 * being opened.
+	 */
+	public static void prefetchChunk(final String saveDir, final int blockX, final int blockZ) {
+		final RegionFile regionfile = regionsByFilename.getIfPresent(new RegionFileKey(saveDir, blockX >> 5,
+				blockZ >> 5));
+		if (regionfile != null)
+			regionfile.readAsync(blockX & 31, blockZ & 31);
+	}
+
+	/**
+	 * Lists the chunks in the region containing the block coordinates that
+	 * were written at or after the specified time, in milliseconds. Chunk
+	 * coordinates returned are absolute. Intended for incremental backups;
+	 * no chunk data is read.
+	 */
+	public static List<ChunkCoordIntPair> getChunksModifiedSince(final String saveDir, final int blockX,
+			final int blockZ, final long time) throws ExecutionException {
+		final int baseX = blockX & ~31;
+		final int baseZ = blockZ & ~31;
+		final List<ChunkCoordIntPair> result = new ArrayList<ChunkCoordIntPair>();
+		for (final ChunkCoordIntPair coords : createOrLoadRegionFile(saveDir, blockX, blockZ)
+				.getChunksModifiedSince(time))
+			result.add(new ChunkCoordIntPair(baseX + coords.chunkXPos, baseZ + coords.chunkZPos));
+		return result;
+	}
+
+	/**
+	 * Reads a set of chunks in bulk. Requests are grouped by region file so
+	 * each region can coalesce its reads. The result lines up with the
+	 * coordinates passed in.
+	 */
+	public static DataInputStream[] getChunkInputStreams(final String saveDir, final int[] blockX,
+			final int[] blockZ) throws Exception {
+		final DataInputStream[] result = new DataInputStream[blockX.length];
+
+		// Group the requests by region in one pass
+		final Map<Long, List<Integer>> regions = new LinkedHashMap<Long, List<Integer>>();
+		for (int i = 0; i < blockX.length; i++) {
+			final Long region = Long.valueOf(((long) (blockX[i] >> 5) << 32) | ((blockZ[i] >> 5) & 0xFFFFFFFFL));
+			List<Integer> index = regions.get(region);
+			if (index == null) {
+				index = new ArrayList<Integer>();
+				regions.put(region, index);
+			}
+			index.add(i);
+		}
+
+		for (final List<Integer> index : regions.values()) {
+			final int count = index.size();
+			final int[] x = new int[count];
+			final int[] z = new int[count];
+			for (int j = 0; j < count; j++) {
+				x[j] = blockX[index.get(j)] & 31;
+				z[j] = blockZ[index.get(j)] & 31;
+			}
+
+			final int first = index.get(0);
+			final RegionFile regionfile = createOrLoadRegionFile(saveDir, blockX[first], blockZ[first]);
+			final DataInputStream[] streams = regionfile.getChunkDataInputStreams(x, z);
+			for (int j = 0; j < count; j++)
+				result[index.get(j)] = streams[j];
+		}
+
+		return result;
+	}
+
 	@Deprecated
 	public static DataOutputStream getChunkOutputStream(final File saveDir, final int blockX, final int blockZ)
 			throws ExecutionException {
@@ -173,4 +966,21 @@ public class RegionFileCache {
 		final RegionFile regionfile = createOrLoadRegionFile(saveDir, blockX, blockZ);
 		return regionfile.getChunkDataOutputStream(blockX & 31, blockZ & 31);
 	}
+
+	public static DataOutputStream getChunkOutputStream(final String saveDir, final int blockX, final int blockZ,
+			final ChunkStreamCodec codec) throws ExecutionException {
+		final RegionFile regionfile = createOrLoadRegionFile(saveDir, blockX, blockZ);
+		return regionfile.getChunkDataOutputStream(blockX & 31, blockZ & 31, codec);
+	}
+
+	public static ChunkWriteBatch getChunkWriteBatch(final String saveDir, final int blockX, final int blockZ)
+			throws ExecutionException {
+		return createOrLoadRegionFile(saveDir, blockX, blockZ).newWriteBatch();
+	}
+
+	public static ChunkSectionWriter getChunkSectionWriter(final String saveDir, final int blockX, final int blockZ)
+			throws ExecutionException {
+		final RegionFile regionfile = createOrLoadRegionFile(saveDir, blockX, blockZ);
+		return regionfile.getChunkSectionWriter(blockX & 31, blockZ & 31);
+	}
 }
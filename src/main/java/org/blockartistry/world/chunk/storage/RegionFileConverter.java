@@ -0,0 +1,694 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Bulk conversion of a region directory between the vanilla region format
+ * (.mca) and the RegionFile format (.mca2). Intended for migrating a world
+ * that isn't loaded, in either direction:
+ * 
+ * + Runs on a fork-join pool. Region files are converted in parallel and
+ * the chunks of each region are split into ranges that are converted in
+ * parallel as well, so a handful of very large regions still keep the pool
+ * busy.
+ * 
+ * + Vanilla chunks are zlib streams, which is what the DEFLATE codec
+ * writes. Such chunks are carried over as is in both directions without
+ * being inflated. Only gzip vanilla chunks and streams written with one of
+ * the other codecs are decoded and encoded again, through the pooled
+ * ChunkInputStream and ChunkOutputStream.
+ * 
+ * + Chunk write times are carried over.
+ * 
+ * + Chunks per second and megabytes per second are logged as the conversion
+ * progresses and returned in a report at the end.
+ * 
+ * Existing target regions are skipped unless overwriting is requested. A
+ * region that fails part way has its target removed so it is picked up by
+ * the next run.
+ */
+public final class RegionFileConverter {
+
+	private static final Logger logger = LogManager.getLogger("RegionFileConverter");
+
+	public final static String VANILLA_REGION_FILE_EXTENSION = ".mca";
+
+	// Layout of a vanilla region file. The header holds the offset table
+	// followed by the time stamp table. A chunk starts with its length and
+	// compression type.
+	private final static int VANILLA_HEADER_SECTORS = 2;
+	private final static int VANILLA_HEADER_SIZE = VANILLA_HEADER_SECTORS * RegionFile.SECTOR_SIZE;
+	private final static int VANILLA_STREAM_HEADER_SIZE = 5;
+	private final static int VANILLA_MAX_SECTORS = 255;
+	private final static byte VANILLA_VERSION_GZIP = 1;
+	private final static byte VANILLA_VERSION_DEFLATE = 2;
+
+	private final static int CHUNKS_IN_REGION = 1024;
+
+	// Chunks converted by a single task before it stops splitting
+	private final static int CHUNKS_PER_TASK = 128;
+
+	// Progress is logged each time this many regions are done
+	private final static int PROGRESS_INTERVAL = 32;
+
+	public enum Direction {
+
+		// Vanilla to RegionFile
+		IMPORT(VANILLA_REGION_FILE_EXTENSION, RegionFile.REGION_FILE_EXTENSION),
+
+		// RegionFile to vanilla
+		EXPORT(RegionFile.REGION_FILE_EXTENSION, VANILLA_REGION_FILE_EXTENSION);
+
+		private final String from;
+		private final String to;
+
+		private Direction(final String from, final String to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * Totals of a conversion run. Bytes are the sizes of the region files
+	 * read and written.
+	 */
+	public static final class Report {
+
+		public final int regions;
+		public final int regionsSkipped;
+		public final int regionsFailed;
+		public final long chunks;
+		public final long chunksFailed;
+		public final long bytesRead;
+		public final long bytesWritten;
+		public final long nanos;
+
+		Report(final Conversion conversion, final long nanos) {
+			this.regions = (int) conversion.regions.get();
+			this.regionsSkipped = (int) conversion.regionsSkipped.get();
+			this.regionsFailed = (int) conversion.regionsFailed.get();
+			this.chunks = conversion.chunks.get();
+			this.chunksFailed = conversion.chunksFailed.get();
+			this.bytesRead = conversion.bytesRead.get();
+			this.bytesWritten = conversion.bytesWritten.get();
+			this.nanos = nanos;
+		}
+
+		public double chunksPerSecond() {
+			return rate(this.chunks, this.nanos);
+		}
+
+		public double megabytesPerSecond() {
+			return rate(this.bytesRead, this.nanos) / (1024 * 1024);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d regions (%d skipped, %d failed), %d chunks (%d failed), %.1f MB read, %.1f MB written in %.1f s: %.0f chunks/s, %.1f MB/s",
+					this.regions, this.regionsSkipped, this.regionsFailed, this.chunks, this.chunksFailed,
+					this.bytesRead / (1024.0 * 1024), this.bytesWritten / (1024.0 * 1024), this.nanos / 1e9,
+					chunksPerSecond(), megabytesPerSecond());
+		}
+	}
+
+	private static double rate(final long count, final long nanos) {
+		return nanos > 0 ? count * 1e9 / nanos : 0;
+	}
+
+	// Shared state of a conversion run
+	private static final class Conversion {
+
+		final Direction direction;
+		final File targetDir;
+		final boolean overwrite;
+		final int totalRegions;
+		final long start = System.nanoTime();
+
+		final AtomicLong regions = new AtomicLong();
+		final AtomicLong regionsSkipped = new AtomicLong();
+		final AtomicLong regionsFailed = new AtomicLong();
+		final AtomicLong chunks = new AtomicLong();
+		final AtomicLong chunksFailed = new AtomicLong();
+		final AtomicLong bytesRead = new AtomicLong();
+		final AtomicLong bytesWritten = new AtomicLong();
+
+		Conversion(final Direction direction, final File targetDir, final boolean overwrite,
+				final int totalRegions) {
+			this.direction = direction;
+			this.targetDir = targetDir;
+			this.overwrite = overwrite;
+			this.totalRegions = totalRegions;
+		}
+
+		void regionDone() {
+			final long done = this.regions.incrementAndGet();
+			if (done % PROGRESS_INTERVAL == 0 || done == this.totalRegions) {
+				final long nanos = System.nanoTime() - this.start;
+				logger.info(String.format("%d/%d regions, %d chunks: %.0f chunks/s, %.1f MB/s", done,
+						this.totalRegions, this.chunks.get(), rate(this.chunks.get(), nanos),
+						rate(this.bytesRead.get(), nanos) / (1024 * 1024)));
+			}
+		}
+	}
+
+	// Per thread scratch. Fork-join workers live for the whole run so the
+	// buffers are only grown a few times.
+	private static final class Worker {
+
+		final ChunkBuffer stream = new ChunkBuffer(0, 0, null, ChunkStreamCodec.DEFLATE);
+		final Deflater deflater = new Deflater(ChunkStreamCodec.DEFLATE.level());
+		byte[] data = new byte[RegionFile.SECTOR_SIZE * 8];
+		byte[] encoded = new byte[RegionFile.SECTOR_SIZE * 8];
+		byte version;
+
+		// Buffers keep their contents when grown
+		private static byte[] grow(final byte[] buffer, final int size) {
+			if (buffer.length >= size)
+				return buffer;
+			final byte[] grown = new byte[Math.max(size, buffer.length << 1)];
+			System.arraycopy(buffer, 0, grown, 0, buffer.length);
+			return grown;
+		}
+
+		byte[] data(final int size) {
+			return this.data = grow(this.data, size);
+		}
+
+		byte[] encoded(final int size) {
+			return this.encoded = grow(this.encoded, size);
+		}
+
+		/**
+		 * Deflates the first length bytes of data into encoded, leaving room
+		 * for the vanilla stream header. Returns the encoded length.
+		 */
+		int deflate(final int length) {
+			this.deflater.reset();
+			this.deflater.setInput(this.data, 0, length);
+			this.deflater.finish();
+			int count = VANILLA_STREAM_HEADER_SIZE;
+			while (!this.deflater.finished()) {
+				encoded(count + RegionFile.SECTOR_SIZE);
+				count += this.deflater.deflate(this.encoded, count, this.encoded.length - count);
+			}
+			return count - VANILLA_STREAM_HEADER_SIZE;
+		}
+	}
+
+	private static final class Workers extends ThreadLocal<Worker> {
+		@Override
+		protected Worker initialValue() {
+			return new Worker();
+		}
+	}
+
+	private static final Workers workers = new Workers();
+
+	/**
+	 * Vanilla region file. Reads are positional and so are writes once the
+	 * sectors have been handed out, so chunks can be read or written by
+	 * several threads at once. The header is written when the file is
+	 * closed.
+	 */
+	private static final class VanillaRegionFile {
+
+		private final FileChannel channel;
+		private final int[] offsets = new int[CHUNKS_IN_REGION];
+		private final int[] timestamps = new int[CHUNKS_IN_REGION];
+		private final boolean writing;
+		private int sectorsInFile;
+
+		VanillaRegionFile(final File file, final boolean writing) throws IOException {
+			this.writing = writing;
+			if (writing) {
+				this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+				this.sectorsInFile = VANILLA_HEADER_SECTORS;
+			} else {
+				this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				this.sectorsInFile = (int) (this.channel.size() / RegionFile.SECTOR_SIZE);
+				if (this.channel.size() >= VANILLA_HEADER_SIZE) {
+					final ByteBuffer header = ByteBuffer.allocate(VANILLA_HEADER_SIZE);
+					read(header, 0);
+					header.flip();
+					header.asIntBuffer().get(this.offsets).get(this.timestamps);
+				}
+			}
+		}
+
+		private void read(final ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				final int count = this.channel.read(buffer, position);
+				if (count < 0)
+					throw new IOException("Unexpected end of file");
+				position += count;
+			}
+		}
+
+		private void write(final ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining())
+				position += this.channel.write(buffer, position);
+		}
+
+		boolean exists(final int index) {
+			return this.offsets[index] != 0;
+		}
+
+		int timestamp(final int index) {
+			return this.timestamps[index];
+		}
+
+		/**
+		 * Reads the compressed data of a chunk into the worker's data buffer
+		 * and records its compression type. Returns the length of the data.
+		 */
+		int read(final int index, final Worker worker) throws IOException {
+			final int sectorNumber = this.offsets[index] >>> 8;
+			final int numberOfSectors = this.offsets[index] & 0xFF;
+			if (sectorNumber < VANILLA_HEADER_SECTORS || sectorNumber + numberOfSectors > this.sectorsInFile)
+				throw new IOException("Chunk " + index + " lies outside of the file");
+
+			final byte[] data = worker.data(numberOfSectors * RegionFile.SECTOR_SIZE);
+			final ByteBuffer buffer = ByteBuffer.wrap(data, 0, numberOfSectors * RegionFile.SECTOR_SIZE);
+			read(buffer, (long) sectorNumber * RegionFile.SECTOR_SIZE);
+
+			final int length = buffer.getInt(0) - 1;
+			if (length <= 0 || length > numberOfSectors * RegionFile.SECTOR_SIZE - VANILLA_STREAM_HEADER_SIZE)
+				throw new IOException("Chunk " + index + " has a bad length " + length);
+			worker.version = data[4];
+			return length;
+		}
+
+		private synchronized int allocate(final int count) {
+			final int sectorNumber = this.sectorsInFile;
+			this.sectorsInFile += count;
+			return sectorNumber;
+		}
+
+		/**
+		 * Writes a zlib chunk. The data starts after room for the stream
+		 * header, which is filled in here.
+		 */
+		void write(final int index, final byte[] encoded, final int length, final int timestamp) throws IOException {
+			final int numberOfSectors = (length + VANILLA_STREAM_HEADER_SIZE + RegionFile.SECTOR_SIZE - 1)
+					/ RegionFile.SECTOR_SIZE;
+			if (numberOfSectors > VANILLA_MAX_SECTORS)
+				throw new IOException("Chunk " + index + " is too large for a vanilla region (" + length + " bytes)");
+
+			final ByteBuffer buffer = ByteBuffer.wrap(encoded, 0, length + VANILLA_STREAM_HEADER_SIZE);
+			buffer.putInt(0, length + 1);
+			buffer.put(4, VANILLA_VERSION_DEFLATE);
+
+			final int sectorNumber = allocate(numberOfSectors);
+			write(buffer, (long) sectorNumber * RegionFile.SECTOR_SIZE);
+			this.offsets[index] = sectorNumber << 8 | numberOfSectors;
+			this.timestamps[index] = timestamp;
+		}
+
+		void close() throws IOException {
+			try {
+				if (this.writing) {
+					final ByteBuffer header = ByteBuffer.allocate(VANILLA_HEADER_SIZE);
+					header.asIntBuffer().put(this.offsets).put(this.timestamps);
+					write(header, 0);
+					// The last chunk only wrote as far as its data
+					final long length = (long) this.sectorsInFile * RegionFile.SECTOR_SIZE;
+					if (this.channel.size() < length)
+						write(ByteBuffer.allocate(1), length - 1);
+					this.channel.force(true);
+				}
+			} finally {
+				this.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Conversion of a single region. The chunk tasks call convert() for
+	 * their share of the chunks.
+	 */
+	private static abstract class RegionJob {
+
+		final Conversion conversion;
+
+		// A region with chunks that didn't make it across is not kept
+		final AtomicInteger chunksFailed = new AtomicInteger();
+
+		RegionJob(final Conversion conversion) {
+			this.conversion = conversion;
+		}
+
+		/**
+		 * Converts a chunk. Returns false if there was no chunk to convert.
+		 */
+		abstract boolean convert(final int index, final Worker worker) throws Exception;
+
+		abstract void close() throws Exception;
+	}
+
+	private static final class ImportJob extends RegionJob {
+
+		private final VanillaRegionFile source;
+		private final RegionFile target;
+
+		ImportJob(final Conversion conversion, final File source, final File target) throws IOException {
+			super(conversion);
+			this.source = new VanillaRegionFile(source, false);
+			this.target = new RegionFile(target);
+		}
+
+		@Override
+		boolean convert(final int index, final Worker worker) throws Exception {
+			if (!this.source.exists(index))
+				return false;
+
+			final int x = index & 31;
+			final int z = index >> 5;
+			final int length = this.source.read(index, worker);
+			if (worker.version == VANILLA_VERSION_DEFLATE) {
+				// Same encoding as the DEFLATE codec. Straight across.
+				final ChunkBuffer stream = worker.stream.reset(x, z, this.target, ChunkStreamCodec.DEFLATE);
+				stream.write(worker.data, VANILLA_STREAM_HEADER_SIZE, length);
+				stream.commit();
+			} else if (worker.version == VANILLA_VERSION_GZIP) {
+				// Inflated in full first so a bad stream doesn't leave a
+				// partial chunk behind, then deflated like any other.
+				final byte[] nbt = ByteStreams.toByteArray(
+						new GZIPInputStream(new ByteArrayInputStream(worker.data, VANILLA_STREAM_HEADER_SIZE, length)));
+				System.arraycopy(nbt, 0, worker.data(nbt.length), 0, nbt.length);
+				final int encoded = worker.deflate(nbt.length);
+				final ChunkBuffer stream = worker.stream.reset(x, z, this.target, ChunkStreamCodec.DEFLATE);
+				stream.write(worker.encoded, VANILLA_STREAM_HEADER_SIZE, encoded);
+				stream.commit();
+			} else {
+				throw new IOException("Chunk " + index + " has an unknown compression type " + worker.version);
+			}
+
+			this.target.setChunkTimestamp(x, z, this.source.timestamp(index) * 1000L);
+			return true;
+		}
+
+		@Override
+		void close() throws Exception {
+			try {
+				this.source.close();
+			} finally {
+				this.target.close();
+			}
+		}
+	}
+
+	private static final class ExportJob extends RegionJob {
+
+		private final RegionFile source;
+		private final VanillaRegionFile target;
+
+		ExportJob(final Conversion conversion, final File source, final File target) throws IOException {
+			super(conversion);
+			this.source = new RegionFile(source);
+			this.target = new VanillaRegionFile(target, true);
+		}
+
+		@Override
+		boolean convert(final int index, final Worker worker) throws Exception {
+			final int x = index & 31;
+			final int z = index >> 5;
+			if (!this.source.chunkExists(x, z))
+				return false;
+
+			final int timestamp = (int) (this.source.getChunkTimestamp(x, z) / 1000);
+
+			// Streams that are already zlib are copied across
+			byte[] payload = this.source.getChunkStreamPayload(x, z, ChunkStreamCodec.DEFLATE);
+			if (payload == null)
+				payload = this.source.getChunkStreamPayload(x, z, ChunkStreamCodec.DEFLATE_FAST);
+			if (payload != null) {
+				final byte[] encoded = worker.encoded(payload.length + VANILLA_STREAM_HEADER_SIZE);
+				System.arraycopy(payload, 0, encoded, VANILLA_STREAM_HEADER_SIZE, payload.length);
+				this.target.write(index, encoded, payload.length, timestamp);
+				return true;
+			}
+
+			final DataInputStream in = this.source.getChunkDataInputStream(x, z);
+			if (in == null)
+				throw new IOException("Chunk " + index + " could not be read");
+			int length = 0;
+			try {
+				int count;
+				while ((count = in.read(worker.data(length + RegionFile.SECTOR_SIZE), length,
+						worker.data.length - length)) > 0)
+					length += count;
+			} finally {
+				in.close();
+			}
+
+			this.target.write(index, worker.encoded, worker.deflate(length), timestamp);
+			return true;
+		}
+
+		@Override
+		void close() throws Exception {
+			try {
+				this.source.close();
+			} finally {
+				this.target.close();
+			}
+		}
+	}
+
+	private static final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final RegionJob job;
+		private final int from;
+		private final int to;
+
+		ChunkTask(final RegionJob job, final int from, final int to) {
+			this.job = job;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from > CHUNKS_PER_TASK) {
+				final int middle = (this.from + this.to) >>> 1;
+				invokeAll(new ChunkTask(this.job, this.from, middle), new ChunkTask(this.job, middle, this.to));
+				return;
+			}
+
+			final Worker worker = workers.get();
+			int converted = 0;
+			int failed = 0;
+			for (int i = this.from; i < this.to; i++) {
+				try {
+					if (this.job.convert(i, worker))
+						converted++;
+				} catch (final Exception ex) {
+					logger.error("Unable to convert chunk " + i + ": " + ex.getMessage());
+					failed++;
+				}
+			}
+			this.job.conversion.chunks.addAndGet(converted);
+			this.job.conversion.chunksFailed.addAndGet(failed);
+			this.job.chunksFailed.addAndGet(failed);
+		}
+	}
+
+	private static final class RegionTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Conversion conversion;
+		private final File source;
+
+		RegionTask(final Conversion conversion, final File source) {
+			this.conversion = conversion;
+			this.source = source;
+		}
+
+		@Override
+		protected void compute() {
+			final String name = this.source.getName();
+			final File target = new File(this.conversion.targetDir,
+					name.substring(0, name.length() - this.conversion.direction.from.length())
+							+ this.conversion.direction.to);
+
+			if (target.exists()) {
+				if (!this.conversion.overwrite) {
+					this.conversion.regionsSkipped.incrementAndGet();
+					this.conversion.regionDone();
+					return;
+				}
+				target.delete();
+			}
+
+			RegionJob job = null;
+			try {
+				job = this.conversion.direction == Direction.IMPORT
+						? new ImportJob(this.conversion, this.source, target)
+						: new ExportJob(this.conversion, this.source, target);
+				new ChunkTask(job, 0, CHUNKS_IN_REGION).invoke();
+				if (job.chunksFailed.get() > 0)
+					throw new IOException(job.chunksFailed.get() + " chunks could not be converted");
+				job.close();
+				job = null;
+				this.conversion.bytesRead.addAndGet(this.source.length());
+				this.conversion.bytesWritten.addAndGet(target.length());
+			} catch (final Exception ex) {
+				logger.error("Unable to convert '" + this.source + "'", ex);
+				if (job != null)
+					try {
+						job.close();
+					} catch (final Exception ignore) {
+						;
+					}
+				target.delete();
+				this.conversion.regionsFailed.incrementAndGet();
+			}
+			this.conversion.regionDone();
+		}
+	}
+
+	private static final class ConversionTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<RegionTask> regions;
+
+		ConversionTask(final List<RegionTask> regions) {
+			this.regions = regions;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(this.regions);
+		}
+	}
+
+	private static final class RegionFilter implements FileFilter {
+
+		private final String extension;
+
+		RegionFilter(final String extension) {
+			this.extension = extension;
+		}
+
+		@Override
+		public boolean accept(final File file) {
+			return file.isFile() && file.getName().startsWith("r.") && file.getName().endsWith(this.extension);
+		}
+	}
+
+	private RegionFileConverter() {
+	}
+
+	/**
+	 * Converts the region files of a region directory. Targets are written to
+	 * the target directory, which may be the same as the source since the
+	 * formats use different extensions. The world must not be loaded.
+	 */
+	public static Report convert(final Direction direction, final File sourceDir, final File targetDir,
+			final int parallelism, final boolean overwrite) {
+		final File[] files = sourceDir.listFiles(new RegionFilter(direction.from));
+
+		targetDir.mkdirs();
+		final Conversion conversion = new Conversion(direction, targetDir, overwrite,
+				files == null ? 0 : files.length);
+		final List<RegionTask> tasks = new ArrayList<RegionTask>();
+		if (files != null)
+			for (final File file : files)
+				tasks.add(new RegionTask(conversion, file));
+
+		logger.info(String.format("Converting %d regions from '%s' to '%s' on %d threads", tasks.size(),
+				sourceDir, targetDir, parallelism));
+
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ConversionTask(tasks));
+		} finally {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		final Report report = new Report(conversion, System.nanoTime() - conversion.start);
+		logger.info("Conversion done: " + report);
+		return report;
+	}
+
+	public static Report importRegions(final File sourceDir, final File targetDir) {
+		return convert(Direction.IMPORT, sourceDir, targetDir, Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	public static Report exportRegions(final File sourceDir, final File targetDir) {
+		return convert(Direction.EXPORT, sourceDir, targetDir, Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	/**
+	 * Command line entry: import|export sourceDir [targetDir] [threads]
+	 * [overwrite]
+	 */
+	public static void main(final String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: RegionFileConverter import|export <source dir> [target dir] [threads] [overwrite]");
+			System.exit(1);
+		}
+		final Direction direction = Direction.valueOf(args[0].toUpperCase());
+		final File sourceDir = new File(args[1]);
+		final File targetDir = args.length > 2 ? new File(args[2]) : sourceDir;
+		final int threads = args.length > 3 ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+		final boolean overwrite = args.length > 4 && "overwrite".equalsIgnoreCase(args[4]);
+		System.out.println(convert(direction, sourceDir, targetDir, threads, overwrite));
+	}
+}
@@ -0,0 +1,235 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage statistics for a RegionFile, or a set of them added together.
+ * Each RegionFile keeps one to record IO into as it happens and hands out
+ * copies that have the sector accounting filled in:
+ * 
+ * + Sector figures describe the file at the time the copy was made. They
+ * are zero in the live instance.
+ * 
+ * + Stream reads and writes are counted per chunk stream. Byte counts are
+ * what went to and from the file, which includes compaction and file
+ * extension.
+ * 
+ * + A reallocation is a write that had to move a stream to new sectors
+ * because it no longer fit, or shrunk enough to give sectors back.
+ * 
+ * + The getters make the class usable as an MXBean composite.
+ */
+public final class RegionFileStats {
+
+	private int regions;
+	private int sectorsInFile;
+	private int sectorsUsed;
+	private int gapSectors;
+	private int gaps;
+	private int chunks;
+	private int chunkSectors;
+
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong reallocations = new AtomicLong();
+	private final AtomicLong extensions = new AtomicLong();
+
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	private final LatencyHistogram batchReadLatency = new LatencyHistogram();
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
+	private final LatencyHistogram batchWriteLatency = new LatencyHistogram();
+	private final LatencyHistogram allocationLatency = new LatencyHistogram();
+	private final LatencyHistogram extensionLatency = new LatencyHistogram();
+
+	void setSectors(final int sectorsInFile, final int sectorsUsed, final int gapSectors, final int gaps,
+			final int chunks, final int chunkSectors) {
+		this.regions = 1;
+		this.sectorsInFile = sectorsInFile;
+		this.sectorsUsed = sectorsUsed;
+		this.gapSectors = gapSectors;
+		this.gaps = gaps;
+		this.chunks = chunks;
+		this.chunkSectors = chunkSectors;
+	}
+
+	void recordRead(final long nanos) {
+		this.reads.incrementAndGet();
+		this.readLatency.record(nanos);
+	}
+
+	void recordBatchRead(final int streams, final long nanos) {
+		this.reads.addAndGet(streams);
+		this.batchReadLatency.record(nanos);
+	}
+
+	void recordWrite(final long nanos) {
+		this.writes.incrementAndGet();
+		this.writeLatency.record(nanos);
+	}
+
+	void recordBatchWrite(final int streams, final long nanos) {
+		this.writes.addAndGet(streams);
+		this.batchWriteLatency.record(nanos);
+	}
+
+	void recordBytesRead(final long bytes) {
+		this.bytesRead.addAndGet(bytes);
+	}
+
+	void recordBytesWritten(final long bytes) {
+		this.bytesWritten.addAndGet(bytes);
+	}
+
+	void recordAllocation(final int reallocations, final long nanos) {
+		this.reallocations.addAndGet(reallocations);
+		this.allocationLatency.record(nanos);
+	}
+
+	void recordExtension(final long nanos) {
+		this.extensions.incrementAndGet();
+		this.extensionLatency.record(nanos);
+	}
+
+	/**
+	 * Adds the figures of another set of statistics to this one.
+	 */
+	public RegionFileStats add(final RegionFileStats stats) {
+		this.regions += stats.regions;
+		this.sectorsInFile += stats.sectorsInFile;
+		this.sectorsUsed += stats.sectorsUsed;
+		this.gapSectors += stats.gapSectors;
+		this.gaps += stats.gaps;
+		this.chunks += stats.chunks;
+		this.chunkSectors += stats.chunkSectors;
+		this.reads.addAndGet(stats.reads.get());
+		this.bytesRead.addAndGet(stats.bytesRead.get());
+		this.writes.addAndGet(stats.writes.get());
+		this.bytesWritten.addAndGet(stats.bytesWritten.get());
+		this.reallocations.addAndGet(stats.reallocations.get());
+		this.extensions.addAndGet(stats.extensions.get());
+		this.readLatency.add(stats.readLatency);
+		this.batchReadLatency.add(stats.batchReadLatency);
+		this.writeLatency.add(stats.writeLatency);
+		this.batchWriteLatency.add(stats.batchWriteLatency);
+		this.allocationLatency.add(stats.allocationLatency);
+		this.extensionLatency.add(stats.extensionLatency);
+		return this;
+	}
+
+	public int getRegions() {
+		return this.regions;
+	}
+
+	public int getSectorsInFile() {
+		return this.sectorsInFile;
+	}
+
+	public int getSectorsUsed() {
+		return this.sectorsUsed;
+	}
+
+	public int getGapSectors() {
+		return this.gapSectors;
+	}
+
+	public int getGaps() {
+		return this.gaps;
+	}
+
+	public int getGapPercent() {
+		final int span = this.sectorsUsed + this.gapSectors;
+		return span == 0 ? 0 : (int) ((long) this.gapSectors * 100 / span);
+	}
+
+	public int getChunks() {
+		return this.chunks;
+	}
+
+	public double getAverageSectorsPerChunk() {
+		return this.chunks == 0 ? 0 : (double) this.chunkSectors / this.chunks;
+	}
+
+	public long getReads() {
+		return this.reads.get();
+	}
+
+	public long getBytesRead() {
+		return this.bytesRead.get();
+	}
+
+	public long getWrites() {
+		return this.writes.get();
+	}
+
+	public long getBytesWritten() {
+		return this.bytesWritten.get();
+	}
+
+	public long getReallocations() {
+		return this.reallocations.get();
+	}
+
+	public long getExtensions() {
+		return this.extensions.get();
+	}
+
+	public LatencyHistogram getReadLatency() {
+		return this.readLatency;
+	}
+
+	public LatencyHistogram getBatchReadLatency() {
+		return this.batchReadLatency;
+	}
+
+	public LatencyHistogram getWriteLatency() {
+		return this.writeLatency;
+	}
+
+	public LatencyHistogram getBatchWriteLatency() {
+		return this.batchWriteLatency;
+	}
+
+	public LatencyHistogram getAllocationLatency() {
+		return this.allocationLatency;
+	}
+
+	public LatencyHistogram getExtensionLatency() {
+		return this.extensionLatency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d regions, %d sectors (%d used, %d gap sectors in %d gaps, %d%%), %d chunks, avg sectors %.2f; "
+						+ "%d reads (%.1f MB), %d writes (%.1f MB), %d reallocations, %d extensions; read [%s], write [%s]",
+				this.regions, this.sectorsInFile, this.sectorsUsed, this.gapSectors, this.gaps, getGapPercent(),
+				this.chunks, getAverageSectorsPerChunk(), getReads(), getBytesRead() / 1048576.0, getWrites(),
+				getBytesWritten() / 1048576.0, getReallocations(), getExtensions(), this.readLatency,
+				this.writeLatency);
+	}
+}
@@ -0,0 +1,265 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Verifies the region files of a region directory. Each region is checked
+ * by RegionFile.scrub():
+ * 
+ * + Every chunk stream is read and inflated, sidecars included. Streams that
+ * fail their checksum or don't inflate are reported as corrupt.
+ * 
+ * + The control tables are checked against the sector map. Streams whose
+ * sectors overlap, sectors that are marked used but belong to no stream,
+ * and sectors that belong to a stream but are marked free are reported.
+ * 
+ * + Optionally repairs the region. Corrupt streams are dropped, the same as
+ * what happens to them when they are loaded, and the sector map is rebuilt
+ * from the control tables. Overlapping streams that still read fine are
+ * only reported; which of them is right can't be told from the region.
+ * 
+ * Regions are checked in parallel. Reads are throttled to a byte rate shared
+ * by all threads so a scrub can run next to a live server; online scrubs go
+ * through RegionFileCache so they share the RegionFile instances the server
+ * is using. Online scrubs skip regions the server doesn't have open rather
+ * than loading them; those are left to an offline scrub.
+ */
+public final class RegionScrubber {
+
+	private static final Logger logger = LogManager.getLogger("RegionScrubber");
+
+	// Scrubs are background work
+	private final static int THREAD_PRIORITY = Thread.MIN_PRIORITY;
+
+	/**
+	 * Findings of a scrub. The counts of a single region are filled in by
+	 * RegionFile.scrub() and added to the totals of the run.
+	 */
+	public static final class Report {
+
+		public int regions;
+		public int regionsFailed;
+		public int regionsSkipped;
+		public long chunks;
+		public long bytes;
+		public int corruptStreams;
+		public int overlappingStreams;
+		public int orphanedSectors;
+		public int unmarkedSectors;
+		public int unsharedExtents;
+		public int droppedStreams;
+		public int sectorMapsRebuilt;
+		public long nanos;
+
+		synchronized void add(final Report region) {
+			this.regions += region.regions;
+			this.regionsFailed += region.regionsFailed;
+			this.regionsSkipped += region.regionsSkipped;
+			this.chunks += region.chunks;
+			this.bytes += region.bytes;
+			this.corruptStreams += region.corruptStreams;
+			this.overlappingStreams += region.overlappingStreams;
+			this.orphanedSectors += region.orphanedSectors;
+			this.unmarkedSectors += region.unmarkedSectors;
+			this.unsharedExtents += region.unsharedExtents;
+			this.droppedStreams += region.droppedStreams;
+			this.sectorMapsRebuilt += region.sectorMapsRebuilt;
+		}
+
+		public boolean isClean() {
+			return this.regionsFailed == 0 && this.corruptStreams == 0 && this.overlappingStreams == 0
+					&& this.orphanedSectors == 0 && this.unmarkedSectors == 0 && this.unsharedExtents == 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d regions (%d failed, %d skipped), %d chunks, %.1f MB in %.1f s: %d corrupt, %d overlapping, %d orphaned sectors, %d unmarked sectors, %d unshared extents; repaired %d streams, %d sector maps",
+					this.regions, this.regionsFailed, this.regionsSkipped, this.chunks, this.bytes / (1024.0 * 1024), this.nanos / 1e9,
+					this.corruptStreams, this.overlappingStreams, this.orphanedSectors, this.unmarkedSectors,
+					this.unsharedExtents, this.droppedStreams, this.sectorMapsRebuilt);
+		}
+	}
+
+	/**
+	 * Supplies the RegionFile for a region file on disk. Offline scrubs open
+	 * and close their own; online scrubs borrow them from RegionFileCache.
+	 * Returns null if the region is to be skipped.
+	 */
+	interface RegionSource {
+
+		RegionFile open(final File file) throws Exception;
+
+		void close(final RegionFile region) throws Exception;
+	}
+
+	private static final class OfflineSource implements RegionSource {
+
+		@Override
+		public RegionFile open(final File file) throws Exception {
+			return new RegionFile(file);
+		}
+
+		@Override
+		public void close(final RegionFile region) throws Exception {
+			region.close();
+		}
+	}
+
+	private static final class RegionFilter implements FileFilter {
+		@Override
+		public boolean accept(final File file) {
+			return file.isFile() && file.getName().startsWith("r.")
+					&& file.getName().endsWith(RegionFile.REGION_FILE_EXTENSION);
+		}
+	}
+
+	private static final class ScrubTask implements Runnable {
+
+		private final RegionSource source;
+		private final File file;
+		private final RateLimiter limiter;
+		private final boolean repair;
+		private final Report totals;
+
+		ScrubTask(final RegionSource source, final File file, final RateLimiter limiter, final boolean repair,
+				final Report totals) {
+			this.source = source;
+			this.file = file;
+			this.limiter = limiter;
+			this.repair = repair;
+			this.totals = totals;
+		}
+
+		@Override
+		public void run() {
+			Report report = null;
+			try {
+				final RegionFile region = this.source.open(this.file);
+				if (region == null) {
+					report = new Report();
+					report.regions = 1;
+					report.regionsSkipped = 1;
+					this.totals.add(report);
+					return;
+				}
+				try {
+					report = region.scrub(this.limiter, this.repair);
+				} finally {
+					this.source.close(region);
+				}
+			} catch (final Exception ex) {
+				logger.error("Unable to scrub '" + this.file + "'", ex);
+			}
+
+			if (report == null) {
+				report = new Report();
+				report.regions = 1;
+				report.regionsFailed = 1;
+			} else if (!report.isClean()) {
+				logger.warn("'" + this.file + "': " + report);
+			}
+			this.totals.add(report);
+		}
+	}
+
+	private RegionScrubber() {
+	}
+
+	/**
+	 * Scrubs a region directory that isn't in use by a server.
+	 */
+	public static Report scrub(final File regionDir, final boolean repair, final double bytesPerSecond,
+			final int threads) throws InterruptedException {
+		return scrub(new OfflineSource(), regionDir, repair, bytesPerSecond, threads);
+	}
+
+	/**
+	 * Scrubs the region files of a directory with the specified number of
+	 * threads. Reads are limited to the byte rate across all threads.
+	 */
+	static Report scrub(final RegionSource source, final File regionDir, final boolean repair,
+			final double bytesPerSecond, final int threads) throws InterruptedException {
+		final long start = System.nanoTime();
+		final File[] files = regionDir.listFiles(new RegionFilter());
+		final Report totals = new Report();
+		if (files == null)
+			return totals;
+
+		logger.info(String.format("Scrubbing %d regions in '%s' at %.1f MB/s%s", files.length, regionDir,
+				bytesPerSecond / (1024 * 1024), repair ? " with repair" : ""));
+
+		final RateLimiter limiter = RateLimiter.create(bytesPerSecond);
+		final ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+				.setNameFormat("Region Scrubber %d").setDaemon(true).setPriority(THREAD_PRIORITY).build());
+		try {
+			final List<Future<?>> tasks = new ArrayList<Future<?>>(files.length);
+			for (final File file : files)
+				tasks.add(pool.submit(new ScrubTask(source, file, limiter, repair, totals)));
+			for (final Future<?> task : tasks)
+				try {
+					task.get();
+				} catch (final ExecutionException ex) {
+					logger.error("Scrub task failed", ex.getCause());
+				}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		totals.nanos = System.nanoTime() - start;
+		logger.info("Scrub of '" + regionDir + "' done: " + totals);
+		return totals;
+	}
+
+	/**
+	 * Command line entry: regionDir [MB/s] [threads] [repair]
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: RegionScrubber <region dir> [MB/s] [threads] [repair]");
+			System.exit(1);
+		}
+		final double rate = (args.length > 1 ? Double.parseDouble(args[1]) : 64) * 1024 * 1024;
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		final boolean repair = args.length > 3 && "repair".equalsIgnoreCase(args[3]);
+		final Report report = scrub(new File(args[0]), repair, rate, threads);
+		System.out.println(report);
+		System.exit(report.isClean() ? 0 : 2);
+	}
+}
@@ -0,0 +1,81 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+/**
+ * Region storage statistics as published over JMX by RegionFileCache under
+ * the name "org.blockartistry.Jiffy:type=RegionStorage". Worlds are
+ * identified by their save directory.
+ */
+public interface RegionStorageMXBean {
+
+	/**
+	 * Save directories that regions have been loaded from.
+	 */
+	String[] getWorlds();
+
+	int getOpenRegions();
+
+	/**
+	 * All worlds added together.
+	 */
+	RegionFileStats getTotals();
+
+	/**
+	 * The open regions of the world added together, plus the IO of regions
+	 * that have since been unloaded.
+	 */
+	RegionFileStats getWorldStats(String saveDir);
+
+	/**
+	 * Statistics for an open region, or null if it isn't open. Coordinates
+	 * are region coordinates, as in the file name.
+	 */
+	RegionFileStats getRegionStats(String saveDir, int regionX, int regionZ);
+
+	/**
+	 * The open regions that have moved the most bytes, busiest first.
+	 */
+	String[] getBusiestRegions(int count);
+
+	long getStreamCacheHits();
+
+	long getStreamCacheMisses();
+
+	long getStreamCacheBytes();
+
+	long getReadAheadHits();
+
+	long getReadAheadMisses();
+
+	long getReadAheadBytes();
+
+	long getAsyncReadsIssued();
+
+	long getAsyncReadHits();
+
+	long getAsyncReadDrops();
+
+	long getPooledBufferBytes();
+}
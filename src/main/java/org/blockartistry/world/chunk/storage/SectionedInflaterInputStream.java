@@ -0,0 +1,118 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the blocks of a sectioned chunk stream one after another so the
+ * reader sees the NBT as a single stream. The encoded stream is attached
+ * rather than copied, same as AttachableByteArrayInputStream. Layout is
+ * described in ChunkSectionWriter.
+ */
+public class SectionedInflaterInputStream extends InputStream {
+
+	private final Inflater inflater;
+	private final byte[] single = new byte[1];
+	private final int[] starts = new int[ChunkSectionWriter.MAX_BLOCKS];
+	private final int[] lengths = new int[ChunkSectionWriter.MAX_BLOCKS];
+	private byte[] buf;
+	private int blocks;
+	private int current;
+
+	public SectionedInflaterInputStream(final Inflater inflater) {
+		this.inflater = inflater;
+	}
+
+	/**
+	 * Attaches the encoded stream. The index is checked against the length
+	 * of the stream before anything is inflated.
+	 */
+	public void attach(final byte[] buf, final int offset, final int length) throws IOException {
+		if (length < 4)
+			throw new IOException("Sectioned chunk stream is truncated");
+		final int blocks = getInt(buf, offset);
+		if (blocks <= 0 || blocks > ChunkSectionWriter.MAX_BLOCKS
+				|| length < 4 + blocks * ChunkSectionWriter.INDEX_ENTRY_SIZE)
+			throw new IOException("Sectioned chunk stream has a bad block count");
+
+		int start = offset + 4 + blocks * ChunkSectionWriter.INDEX_ENTRY_SIZE;
+		for (int i = 0; i < blocks; i++) {
+			this.starts[i] = start;
+			this.lengths[i] = getInt(buf, offset + 4 + i * ChunkSectionWriter.INDEX_ENTRY_SIZE + 4);
+			start += this.lengths[i];
+			if (this.lengths[i] <= 0 || start > offset + length)
+				throw new IOException("Sectioned chunk stream has a bad block length");
+		}
+
+		this.buf = buf;
+		this.blocks = blocks;
+		this.current = -1;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(this.single, 0, 1) == -1 ? -1 : this.single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		try {
+			while (true) {
+				if (this.current == -1 || this.inflater.finished()) {
+					if (++this.current >= this.blocks) {
+						this.current = this.blocks;
+						return -1;
+					}
+					this.inflater.reset();
+					this.inflater.setInput(this.buf, this.starts[this.current], this.lengths[this.current]);
+				}
+
+				final int n = this.inflater.inflate(b, off, len);
+				if (n > 0)
+					return n;
+				if (this.inflater.finished())
+					continue;
+				if (this.inflater.needsDictionary())
+					throw new IOException("Sectioned chunk stream block requires a dictionary");
+				if (this.inflater.needsInput())
+					throw new EOFException("Unexpected end of sectioned chunk stream block");
+			}
+		} catch (final DataFormatException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private static int getInt(final byte[] buffer, final int offset) {
+		return (buffer[offset] << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8)
+				| (buffer[offset + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,355 @@
+/* This file is part of Jiffy, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) OreCruncher
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.blockartistry.world.chunk.storage;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tracks used and free sectors of a RegionFile. Replaces the linear scan of a
+ * BitSet when looking for space to place a chunk stream:
+ * 
+ * + Free extents are indexed by start sector so a free can be coalesced with
+ * its neighbors in O(log n).
+ * 
+ * + Free extents are also indexed by size. Finding a best fit for a stream is
+ * a single ceiling lookup, O(log n), regardless of how fragmented the file
+ * is.
+ * 
+ * + The used sector BitSet is kept for the cheap length()/cardinality()
+ * queries used when validating and analyzing the file.
+ * 
+ * + The allocator can be restored from a saved copy of the used sector map
+ * rather than being rebuilt from the chunk control entries.
+ * 
+ * + Placement can be steered toward a hint sector so that streams of chunks
+ * that are close in the world end up close in the file.
+ * 
+ * + Extents can be shared by identical streams. Shared extents are reference
+ * counted and only freed when the last reference is released.
+ * 
+ * Not thread safe. The RegionFile serializes access through its monitor.
+ */
+public final class SectorAllocator {
+
+	// Size index key: length in the upper 32 bits, start sector in the
+	// lower. Ordering gives best fit, with ties going to the lowest sector.
+	private static long sizeKey(final int start, final int length) {
+		return ((long) length << 32) | start;
+	}
+
+	private static int keyStart(final long key) {
+		return (int) key;
+	}
+
+	private final int reservedSectors;
+	private final BitSet used;
+	private final TreeMap<Integer, Integer> freeByStart = new TreeMap<Integer, Integer>();
+	private final TreeSet<Long> freeBySize = new TreeSet<Long>();
+	// Extra references to shared extents by start sector
+	private final Map<Integer, Integer> shares = new HashMap<Integer, Integer>();
+	private int fileSectors;
+
+	/**
+	 * Creates an allocator for a file with the specified number of sectors.
+	 * The reserved sectors at the head of the file are never handed out. All
+	 * other sectors start out free.
+	 */
+	public SectorAllocator(final int reservedSectors, final int fileSectors, final int expectedSectors) {
+		this.reservedSectors = reservedSectors;
+		this.used = new BitSet(Math.max(expectedSectors, fileSectors));
+		this.used.set(0, reservedSectors);
+		this.fileSectors = reservedSectors;
+		extend(fileSectors);
+	}
+
+	/**
+	 * Creates an allocator from a saved used sector map. Free extents are
+	 * rebuilt from the clear runs in the map.
+	 */
+	public SectorAllocator(final int reservedSectors, final int fileSectors, final int expectedSectors,
+			final BitSet usedSectors) {
+		this.reservedSectors = reservedSectors;
+		this.used = new BitSet(Math.max(expectedSectors, fileSectors));
+		this.used.or(usedSectors);
+		this.used.clear(fileSectors, Math.max(fileSectors, this.used.length()));
+		this.used.set(0, reservedSectors);
+		this.fileSectors = fileSectors;
+
+		int start = this.used.nextClearBit(reservedSectors);
+		while (start < fileSectors) {
+			int end = this.used.nextSetBit(start);
+			if (end < 0 || end > fileSectors)
+				end = fileSectors;
+			addFree(start, end - start);
+			start = this.used.nextClearBit(end);
+		}
+	}
+
+	private void addFree(final int start, final int length) {
+		this.freeByStart.put(start, length);
+		this.freeBySize.add(sizeKey(start, length));
+	}
+
+	private void removeFree(final int start, final int length) {
+		this.freeByStart.remove(start);
+		this.freeBySize.remove(sizeKey(start, length));
+	}
+
+	/**
+	 * Number of sectors in the file that the allocator is managing.
+	 */
+	public int fileSectors() {
+		return this.fileSectors;
+	}
+
+	/**
+	 * Informs the allocator that the file has grown. The new sectors are free
+	 * and coalesced with any free extent at the tail of the file.
+	 */
+	public void extend(final int newFileSectors) {
+		if (newFileSectors <= this.fileSectors)
+			return;
+		final int start = this.fileSectors;
+		this.fileSectors = newFileSectors;
+		free(start, newFileSectors - start);
+	}
+
+	/**
+	 * Finds a place for a run of the specified number of sectors. The best
+	 * fitting free extent is used. If none is large enough the start of the
+	 * free extent at the tail of the file is returned, or the end of the file.
+	 * The caller is responsible for extending the file if the run goes past
+	 * the end, and for marking the sectors used.
+	 */
+	public int find(final int count) {
+		final Long fit = this.freeBySize.ceiling(sizeKey(0, count));
+		if (fit != null)
+			return keyStart(fit);
+
+		final Map.Entry<Integer, Integer> tail = this.freeByStart.lastEntry();
+		if (tail != null && tail.getKey() + tail.getValue() == this.fileSectors)
+			return tail.getKey();
+
+		return this.fileSectors;
+	}
+
+	/**
+	 * Finds the lowest free extent that can hold the run entirely before the
+	 * limit sector. Returns -1 if there isn't one. Used when compacting to
+	 * pull streams toward the head of the file.
+	 */
+	public int findBefore(final int count, final int limit) {
+		for (final Map.Entry<Integer, Integer> entry : this.freeByStart.headMap(limit).entrySet()) {
+			if (entry.getKey() + count > limit)
+				break;
+			if (entry.getValue() >= count)
+				return entry.getKey();
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the highest free extent that starts at or after the specified
+	 * sector and can hold the run within the file. Returns -1 if there isn't
+	 * one. Used when moving streams out of the way without growing the file;
+	 * the highest extent is the last one reordering will need back.
+	 */
+	public int findFrom(final int count, final int from) {
+		for (final Map.Entry<Integer, Integer> entry : this.freeByStart.tailMap(from, true).descendingMap()
+				.entrySet()) {
+			final int start = entry.getKey();
+			if (entry.getValue() >= count && start + count <= this.fileSectors)
+				return start;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds a place for a run close after the hint sector. The free extent
+	 * holding the hint is used if the run fits from the hint on, otherwise
+	 * the first free extent that fits and starts within the window. The free
+	 * extent at the tail of the file counts as fitting since the caller will
+	 * extend. Returns -1 if there isn't one.
+	 */
+	public int findNear(final int count, final int hint, final int window) {
+		if (hint < this.reservedSectors || hint > this.fileSectors)
+			return -1;
+		if (hint == this.fileSectors)
+			return hint;
+
+		final Map.Entry<Integer, Integer> holding = this.freeByStart.floorEntry(hint);
+		if (holding != null) {
+			final int end = holding.getKey() + holding.getValue();
+			if (end - hint >= count || (end > hint && end == this.fileSectors))
+				return hint;
+		}
+
+		final int limit = hint + window;
+		for (final Map.Entry<Integer, Integer> entry : this.freeByStart.tailMap(hint, false).entrySet()) {
+			if (entry.getKey() >= limit)
+				break;
+			if (entry.getValue() >= count || entry.getKey() + entry.getValue() == this.fileSectors)
+				return entry.getKey();
+		}
+		return -1;
+	}
+
+	/**
+	 * Indicates whether none of the sectors in the run are in use. Sectors
+	 * past the end of the file count as free.
+	 */
+	public boolean isFree(final int start, final int count) {
+		final int used = this.used.nextSetBit(start);
+		return used == -1 || used >= start + count;
+	}
+
+	/**
+	 * Informs the allocator that the file has been truncated. Only free
+	 * sectors at the tail of the file can be released this way.
+	 */
+	public void truncate(final int newFileSectors) {
+		if (newFileSectors >= this.fileSectors || newFileSectors < this.used.length())
+			return;
+		final Map.Entry<Integer, Integer> tail = this.freeByStart.lastEntry();
+		removeFree(tail.getKey(), tail.getValue());
+		if (tail.getKey() < newFileSectors)
+			addFree(tail.getKey(), newFileSectors - tail.getKey());
+		this.fileSectors = newFileSectors;
+	}
+
+	/**
+	 * Marks the run of sectors as used. Any free extents that overlap the run
+	 * are trimmed.
+	 */
+	public void markUsed(final int start, final int count) {
+		final int end = start + count;
+		this.used.set(start, end);
+
+		Map.Entry<Integer, Integer> entry = this.freeByStart.floorEntry(start);
+		if (entry == null || entry.getKey() + entry.getValue() <= start)
+			entry = this.freeByStart.higherEntry(start);
+
+		while (entry != null && entry.getKey() < end) {
+			final int extentStart = entry.getKey();
+			final int extentEnd = extentStart + entry.getValue();
+			removeFree(extentStart, entry.getValue());
+			if (extentStart < start)
+				addFree(extentStart, start - extentStart);
+			if (extentEnd > end)
+				addFree(end, extentEnd - end);
+			entry = this.freeByStart.higherEntry(extentStart);
+		}
+	}
+
+	/**
+	 * Releases the run of sectors. The run is coalesced with adjacent free
+	 * extents.
+	 */
+	public void free(int start, int count) {
+		start = Math.max(start, this.reservedSectors);
+		int end = Math.min(start + count, this.fileSectors);
+		if (end <= start)
+			return;
+
+		this.used.clear(start, end);
+
+		final Map.Entry<Integer, Integer> before = this.freeByStart.floorEntry(start);
+		if (before != null && before.getKey() + before.getValue() >= start) {
+			removeFree(before.getKey(), before.getValue());
+			end = Math.max(end, before.getKey() + before.getValue());
+			start = before.getKey();
+		}
+
+		Map.Entry<Integer, Integer> after = this.freeByStart.ceilingEntry(start);
+		while (after != null && after.getKey() <= end) {
+			removeFree(after.getKey(), after.getValue());
+			end = Math.max(end, after.getKey() + after.getValue());
+			after = this.freeByStart.ceilingEntry(start);
+		}
+
+		addFree(start, end - start);
+	}
+
+	/**
+	 * Adds a reference to the used extent starting at the sector.
+	 */
+	public void share(final int start) {
+		final Integer count = this.shares.get(start);
+		this.shares.put(start, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Indicates whether more than one stream references the extent starting
+	 * at the sector.
+	 */
+	public boolean isShared(final int start) {
+		return this.shares.containsKey(start);
+	}
+
+	/**
+	 * Drops a reference to the extent. The sectors are freed once the last
+	 * reference is gone.
+	 */
+	public void release(final int start, final int count) {
+		final Integer references = this.shares.get(start);
+		if (references == null)
+			free(start, count);
+		else if (references == 1)
+			this.shares.remove(start);
+		else
+			this.shares.put(start, references - 1);
+	}
+
+	/**
+	 * Index of the last used sector plus one.
+	 */
+	public int length() {
+		return this.used.length();
+	}
+
+	/**
+	 * Number of used sectors, including the reserved sectors.
+	 */
+	public int cardinality() {
+		return this.used.cardinality();
+	}
+
+	/**
+	 * Number of free extents that sit below the last used sector.
+	 */
+	public int gaps() {
+		return this.freeByStart.headMap(this.used.length()).size();
+	}
+
+	/**
+	 * Copy of the used sector map, suitable for saving.
+	 */
+	public byte[] toByteArray() {
+		return this.used.toByteArray();
+	}
+}